@@ -0,0 +1,78 @@
+package org.exoplatform.addons.trashCleaner.benchmark;
+
+import java.net.URL;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.StandaloneContainer;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.core.ManageableRepository;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+
+/**
+ * Starts a standalone eXo container holding an in-memory JCR repository, with
+ * the <code>collaboration</code> workspace used by the trash cleaner.
+ */
+public class BenchmarkRepository {
+
+  public static final String WORKSPACE = "collaboration";
+
+  private static BenchmarkRepository instance;
+
+  private final StandaloneContainer  container;
+
+  private final RepositoryService    repositoryService;
+
+  private BenchmarkRepository() throws Exception {
+    URL configuration = BenchmarkRepository.class.getResource("/conf/benchmark/configuration.xml");
+    StandaloneContainer.addConfigurationURL(configuration.toString());
+    container = StandaloneContainer.getInstance();
+    ExoContainerContext.setCurrentContainer(container);
+    repositoryService = container.getComponentInstanceOfType(RepositoryService.class);
+    repositoryService.setCurrentRepositoryName(repositoryService.getDefaultRepository().getConfiguration().getName());
+  }
+
+  public static synchronized BenchmarkRepository getInstance() throws Exception {
+    if (instance == null) {
+      instance = new BenchmarkRepository();
+    }
+    ExoContainerContext.setCurrentContainer(instance.container);
+    return instance;
+  }
+
+  public StandaloneContainer getContainer() {
+    return container;
+  }
+
+  public RepositoryService getRepositoryService() {
+    return repositoryService;
+  }
+
+  public ManageableRepository getRepository() throws RepositoryException {
+    return repositoryService.getDefaultRepository();
+  }
+
+  public Session getSession(SessionProvider sessionProvider) throws RepositoryException {
+    return sessionProvider.getSession(WORKSPACE, getRepository());
+  }
+
+  /**
+   * Removes the given root node and all its content, if it exists.
+   */
+  public void clear(String rootName) throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = getSession(sessionProvider);
+      if (session.getRootNode().hasNode(rootName)) {
+        Node root = session.getRootNode().getNode(rootName);
+        root.remove();
+        session.save();
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.exoplatform.addons.trashCleaner.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import org.exoplatform.commons.utils.ListAccess;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserHandler;
+
+/**
+ * Stubs of the services which are not part of the benchmark repository. Methods
+ * do nothing and return null, 0 or false, unless an answer is given for them.
+ */
+public final class NoOpProxy {
+
+  private NoOpProxy() {
+  }
+
+  public static <T> T of(Class<T> type) {
+    return of(type, Collections.emptyMap());
+  }
+
+  /**
+   * @param answers return values by method name
+   */
+  public static <T> T of(Class<T> type, Map<String, Object> answers) {
+    InvocationHandler handler = (proxy, method, args) -> {
+      switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return "NoOp " + type.getSimpleName();
+      default:
+        return answers.containsKey(method.getName()) ? answers.get(method.getName()) : defaultValue(method.getReturnType());
+      }
+    };
+    return type.cast(Proxy.newProxyInstance(NoOpProxy.class.getClassLoader(), new Class<?>[] { type }, handler));
+  }
+
+  /**
+   * @return an organization service without any user, all user folders are then
+   *         considered as belonging to deleted users
+   */
+  public static OrganizationService emptyOrganizationService() {
+    ListAccess<User> noUsers = new ListAccess<User>() {
+      @Override
+      public User[] load(int index, int length) {
+        return new User[0];
+      }
+
+      @Override
+      public int getSize() {
+        return 0;
+      }
+    };
+    UserHandler userHandler = of(UserHandler.class, Collections.singletonMap("findAllUsers", noUsers));
+    return of(OrganizationService.class, Collections.singletonMap("getUserHandler", userHandler));
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (!type.isPrimitive() || type == void.class) {
+      return null;
+    }
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == char.class) {
+      return '\0';
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    if (type == float.class) {
+      return 0f;
+    }
+    if (type == double.class) {
+      return 0d;
+    }
+    if (type == byte.class) {
+      return (byte) 0;
+    }
+    if (type == short.class) {
+      return (short) 0;
+    }
+    return 0;
+  }
+}
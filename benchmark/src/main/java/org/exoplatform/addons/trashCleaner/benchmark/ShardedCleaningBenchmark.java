@@ -0,0 +1,154 @@
+package org.exoplatform.addons.trashCleaner.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.exoplatform.addons.trashCleaner.DeletionMetrics;
+import org.exoplatform.addons.trashCleaner.ExpiredTrashItemQuery;
+import org.exoplatform.addons.trashCleaner.ShardLeaseManager;
+import org.exoplatform.addons.trashCleaner.TrashBatchDeleter;
+import org.exoplatform.addons.trashCleaner.TrashCleanerCounters;
+import org.exoplatform.addons.trashCleaner.TrashNodeCleaner;
+import org.exoplatform.addons.trashCleaner.TrashShard;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.cms.actions.ActionServiceContainer;
+import org.exoplatform.services.cms.relations.RelationsService;
+import org.exoplatform.services.cms.thumbnail.ThumbnailService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+
+/**
+ * Cleans the expired trash items with several simulated cluster nodes, each one
+ * with its own lease owner name and its own sessions on the same repository, to
+ * measure how the deletion scales with the number of nodes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ShardedCleaningBenchmark {
+
+  private static final long   LEASE_DURATION = 60 * 1000;
+
+  @Param({ "1", "2", "4" })
+  public int                  nodes;
+
+  @Param({ "16" })
+  public int                  shards;
+
+  @Param({ "2000" })
+  public int                  items;
+
+  private BenchmarkRepository repository;
+
+  private String              trashPath;
+
+  private long                expirationTime;
+
+  private TrashCleanerCounters counters;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    repository = BenchmarkRepository.getInstance();
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpIteration() throws Exception {
+    trashPath = new SyntheticRepositoryGenerator(repository, 1, 2, 1024, 0).generateTrash(items);
+    repository.clear("exo:applications");
+    expirationTime = System.currentTimeMillis() - 30L * 24 * 3600 * 1000;
+    counters = new TrashCleanerCounters();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownIteration() {
+    if (counters.getDeleted() != items / 2) {
+      throw new IllegalStateException("Expected " + items / 2 + " deleted items, got " + counters);
+    }
+  }
+
+  @Benchmark
+  public TrashCleanerCounters clean() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(nodes);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < nodes; i++) {
+        String owner = "node" + i;
+        futures.add(executor.submit(() -> {
+          runNode(owner);
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return counters;
+  }
+
+  /**
+   * Same loop as the sharded mode of the trash cleaner job, for one node.
+   */
+  private void runNode(String owner) throws Exception {
+    ExoContainerContext.setCurrentContainer(repository.getContainer());
+    ShardLeaseManager leaseManager = new ShardLeaseManager(repository.getRepositoryService(),
+                                                           BenchmarkRepository.WORKSPACE,
+                                                           owner,
+                                                           LEASE_DURATION);
+    if (!leaseManager.preparePlan(trashPath, expirationTime, shards)) {
+      return;
+    }
+    TrashNodeCleaner cleaner = new TrashNodeCleaner(NoOpProxy.of(ActionServiceContainer.class),
+                                                    NoOpProxy.of(ThumbnailService.class),
+                                                    NoOpProxy.of(RelationsService.class),
+                                                    repository.getRepositoryService(),
+                                                    new DeletionMetrics());
+    TrashBatchDeleter deleter = new TrashBatchDeleter(cleaner, BenchmarkRepository.WORKSPACE, 20, counters);
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = repository.getSession(sessionProvider);
+      TrashShard shard;
+      while ((shard = leaseManager.claim()) != null) {
+        ExpiredTrashItemQuery query = shard.createQuery(session, trashPath, 100);
+        List<String> page = query.getPage(shard.getOffset());
+        while (!page.isEmpty()) {
+          for (String identifier : page) {
+            deleter.add(identifier);
+          }
+          deleter.flush();
+          session.refresh(false);
+          if (!leaseManager.renew(shard, 0)) {
+            break;
+          }
+          page = query.getPage(0);
+        }
+        leaseManager.complete(shard, 0);
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package org.exoplatform.addons.trashCleaner.benchmark;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.exoplatform.addons.trashCleaner.ComputeTrashSizeService;
+import org.exoplatform.addons.trashCleaner.ComputeUserFolderSizeService;
+import org.exoplatform.addons.trashCleaner.ContentSizeResolver;
+import org.exoplatform.addons.trashCleaner.JobProgress;
+import org.exoplatform.addons.trashCleaner.TrashSizeScan;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValuesParam;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+
+/**
+ * Measures the trash size and the user folders size computations, for each size
+ * probe used alone. Run with <code>-prof gc</code> to compare the allocation rate
+ * of the probes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SizeComputationBenchmark {
+
+  @Param({ "org.exoplatform.addons.trashCleaner.PropertyLengthSizeProbe",
+      "org.exoplatform.addons.trashCleaner.ValueStorageSizeProbe", "org.exoplatform.addons.trashCleaner.StreamingSizeProbe" })
+  public String                        probe;
+
+  @Param({ "500" })
+  public int                           items;
+
+  @Param({ "200" })
+  public int                           users;
+
+  /** Above 100K, contents go to the file value storage */
+  @Param({ "4096", "262144" })
+  public int                           fileSize;
+
+  @Param({ "2" })
+  public int                           versions;
+
+  private SessionProvider              sessionProvider;
+
+  private Node                         trashNode;
+
+  private ComputeTrashSizeService      trashSizeService;
+
+  private ComputeUserFolderSizeService userFolderSizeService;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    BenchmarkRepository repository = BenchmarkRepository.getInstance();
+    SyntheticRepositoryGenerator generator = new SyntheticRepositoryGenerator(repository, 2, 3, fileSize, versions);
+    String trashPath = generator.generateTrash(items);
+    generator.generateUsers(users);
+
+    ValuesParam probes = new ValuesParam();
+    probes.setName(ContentSizeResolver.SIZE_PROBES_PARAM);
+    probes.setValues(Collections.singletonList(probe));
+    InitParams initParams = new InitParams();
+    initParams.addParameter(probes);
+    ContentSizeResolver resolver = new ContentSizeResolver(initParams);
+
+    trashSizeService = new ComputeTrashSizeService(repository.getRepositoryService(), resolver);
+    userFolderSizeService = new ComputeUserFolderSizeService(repository.getRepositoryService(),
+                                                             NoOpProxy.emptyOrganizationService(),
+                                                             resolver);
+    sessionProvider = SessionProvider.createSystemProvider();
+    Session session = repository.getSession(sessionProvider);
+    trashNode = (Node) session.getItem(trashPath);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    sessionProvider.close();
+  }
+
+  @Benchmark
+  public TrashSizeScan trashSize() {
+    return trashSizeService.scan(trashNode, new JobProgress());
+  }
+
+  @Benchmark
+  public String userFolderSize() throws Exception {
+    return userFolderSizeService.computeUserFolderSize(Instant.now().plus(1, ChronoUnit.DAYS), new JobProgress());
+  }
+}
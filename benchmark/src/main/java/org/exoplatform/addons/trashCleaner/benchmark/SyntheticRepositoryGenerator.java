@@ -0,0 +1,191 @@
+package org.exoplatform.addons.trashCleaner.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Calendar;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Generates a synthetic trash and a synthetic hashed Users tree. Half of the
+ * trash items are expired, trashed between 60 and 360 days ago, the other half
+ * was trashed today.
+ */
+public class SyntheticRepositoryGenerator {
+
+  private static final Log LOG         = ExoLogger.getLogger(SyntheticRepositoryGenerator.class);
+
+  public static final String TRASH_NODE  = "Trash";
+
+  public static final String USERS_NODE  = "Users";
+
+  private static final int   SAVE_EVERY  = 100;
+
+  private final BenchmarkRepository repository;
+
+  private final int                 folderDepth;
+
+  private final int                 filesPerFolder;
+
+  private final int                 fileSize;
+
+  private final int                 versions;
+
+  private final Random              random = new Random(42);
+
+  /**
+   * @param folderDepth number of nested folders inside each item, 0 for items which
+   *          are single files
+   * @param filesPerFolder number of files in each folder
+   * @param fileSize size of each file in bytes
+   * @param versions number of versions of each file
+   */
+  public SyntheticRepositoryGenerator(BenchmarkRepository repository,
+                                      int folderDepth,
+                                      int filesPerFolder,
+                                      int fileSize,
+                                      int versions) {
+    this.repository = repository;
+    this.folderDepth = folderDepth;
+    this.filesPerFolder = filesPerFolder;
+    this.fileSize = fileSize;
+    this.versions = versions;
+  }
+
+  /**
+   * Replaces the trash with the given number of items.
+   *
+   * @return the path of the trash node
+   */
+  public String generateTrash(int items) throws RepositoryException {
+    repository.clear(TRASH_NODE);
+    long startTime = System.currentTimeMillis();
+    Calendar recent = Calendar.getInstance();
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = repository.getSession(sessionProvider);
+      Node trash = session.getRootNode().addNode(TRASH_NODE, "nt:folder");
+      session.save();
+      for (int i = 0; i < items; i++) {
+        Node item;
+        if (folderDepth == 0) {
+          item = addFile(trash, "file" + i);
+        } else {
+          item = trash.addNode("folder" + i, "nt:folder");
+          addFolderContent(item, folderDepth);
+        }
+        item.addMixin("exo:restoreLocation");
+        item.addMixin("exo:modify");
+        item.setProperty("exo:restorePath", "/Documents/folder" + i);
+        item.setProperty("exo:restoreWorkspace", BenchmarkRepository.WORKSPACE);
+        item.setProperty("exo:lastModifiedDate", i % 2 == 0 ? expiredDate(i) : recent);
+        if ((i + 1) % SAVE_EVERY == 0) {
+          session.save();
+        }
+      }
+      session.save();
+      addVersions(session, trash);
+      LOG.info("Generated {} trash items in {} ms", items, System.currentTimeMillis() - startTime);
+      return trash.getPath();
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Replaces the Users tree with the given number of user folders, hashed on 3
+   * levels like the platform does (/Users/r___/ro___/roo___/root).
+   */
+  public void generateUsers(int users) throws RepositoryException {
+    repository.clear(USERS_NODE);
+    long startTime = System.currentTimeMillis();
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = repository.getSession(sessionProvider);
+      Node usersNode = session.getRootNode().addNode(USERS_NODE, "nt:unstructured");
+      for (int i = 0; i < users; i++) {
+        String username = "user" + i;
+        Node parent = usersNode;
+        for (int level = 1; level <= 3; level++) {
+          String shard = username.substring(0, level) + "___";
+          parent = parent.hasNode(shard) ? parent.getNode(shard) : parent.addNode(shard, "nt:unstructured");
+        }
+        Node userFolder = parent.addNode(username, "exo:userFolder");
+        Node privateFolder = userFolder.addNode("Private", "nt:folder");
+        addFolderContent(privateFolder, folderDepth);
+        if ((i + 1) % SAVE_EVERY == 0) {
+          session.save();
+        }
+      }
+      session.save();
+      LOG.info("Generated {} user folders in {} ms", users, System.currentTimeMillis() - startTime);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private void addFolderContent(Node folder, int depth) throws RepositoryException {
+    for (int i = 0; i < filesPerFolder; i++) {
+      addFile(folder, "file" + i);
+    }
+    if (depth > 1) {
+      addFolderContent(folder.addNode("sub", "nt:folder"), depth - 1);
+    }
+  }
+
+  private Node addFile(Node parent, String name) throws RepositoryException {
+    Node file = parent.addNode(name, "nt:file");
+    Node content = file.addNode("jcr:content", "nt:resource");
+    content.setProperty("jcr:mimeType", "application/octet-stream");
+    content.setProperty("jcr:lastModified", Calendar.getInstance());
+    content.setProperty("jcr:data", new ByteArrayInputStream(randomBytes()));
+    if (versions > 0) {
+      file.addMixin("mix:versionable");
+    }
+    return file;
+  }
+
+  /**
+   * Versions can only be created on saved nodes, so they are added once the
+   * trash is saved.
+   */
+  private void addVersions(Session session, Node node) throws RepositoryException {
+    for (NodeIterator children = node.getNodes(); children.hasNext();) {
+      Node child = children.nextNode();
+      if (child.isNodeType("nt:file")) {
+        if (child.isNodeType("mix:versionable")) {
+          for (int v = 0; v < versions; v++) {
+            child.checkin();
+            child.checkout();
+            child.getNode("jcr:content").setProperty("jcr:data", new ByteArrayInputStream(randomBytes()));
+            session.save();
+          }
+        }
+      } else {
+        addVersions(session, child);
+      }
+    }
+  }
+
+  /**
+   * @return a date between 60 and 360 days ago, so expired items are spread over time
+   */
+  private Calendar expiredDate(int item) {
+    Calendar date = Calendar.getInstance();
+    date.add(Calendar.DAY_OF_YEAR, -60 - (item / 2) % 300);
+    return date;
+  }
+
+  private byte[] randomBytes() {
+    byte[] data = new byte[fileSize];
+    random.nextBytes(data);
+    return data;
+  }
+}
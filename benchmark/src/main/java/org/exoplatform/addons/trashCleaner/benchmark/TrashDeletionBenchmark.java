@@ -0,0 +1,102 @@
+package org.exoplatform.addons.trashCleaner.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.exoplatform.addons.trashCleaner.DeletionMetrics;
+import org.exoplatform.addons.trashCleaner.ExpiredTrashItemQuery;
+import org.exoplatform.addons.trashCleaner.TrashBatchDeleter;
+import org.exoplatform.addons.trashCleaner.TrashCleanerCounters;
+import org.exoplatform.addons.trashCleaner.TrashNodeCleaner;
+import org.exoplatform.services.cms.actions.ActionServiceContainer;
+import org.exoplatform.services.cms.relations.RelationsService;
+import org.exoplatform.services.cms.thumbnail.ThumbnailService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Measures the deletion of the expired trash items, for several batch sizes. The
+ * trash is generated again before each iteration, so each iteration is a single
+ * shot. ECMS services are stubbed, the benchmark measures the JCR work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrashDeletionBenchmark {
+
+  private static final Log    LOG = ExoLogger.getLogger(TrashDeletionBenchmark.class);
+
+  @Param({ "1", "20", "100" })
+  public int                  batchSize;
+
+  @Param({ "1000" })
+  public int                  items;
+
+  @Param({ "2" })
+  public int                  folderDepth;
+
+  private BenchmarkRepository repository;
+
+  private TrashNodeCleaner    cleaner;
+
+  private List<String>        expiredItems;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    repository = BenchmarkRepository.getInstance();
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpIteration() throws Exception {
+    String trashPath = new SyntheticRepositoryGenerator(repository, folderDepth, 2, 1024, 0).generateTrash(items);
+    cleaner = new TrashNodeCleaner(NoOpProxy.of(ActionServiceContainer.class),
+                                   NoOpProxy.of(ThumbnailService.class),
+                                   NoOpProxy.of(RelationsService.class),
+                                   repository.getRepositoryService(),
+                                   new DeletionMetrics());
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = repository.getSession(sessionProvider);
+      long expirationTime = System.currentTimeMillis() - 30L * 24 * 3600 * 1000;
+      expiredItems = new ExpiredTrashItemQuery(session, trashPath, expirationTime, items).getPage(0);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownIteration() {
+    LOG.info("Deletion phases for batch size {} :\n{}", batchSize, cleaner.getMetrics().toTable());
+  }
+
+  @Benchmark
+  public TrashCleanerCounters delete() {
+    TrashCleanerCounters counters = new TrashCleanerCounters();
+    TrashBatchDeleter deleter = new TrashBatchDeleter(cleaner, BenchmarkRepository.WORKSPACE, batchSize, counters);
+    for (String identifier : expiredItems) {
+      deleter.add(identifier);
+    }
+    deleter.flush();
+    return counters;
+  }
+}
@@ -0,0 +1,96 @@
+package org.exoplatform.addons.trashCleaner.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.exoplatform.addons.trashCleaner.ExpiredTrashItemQuery;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+
+/**
+ * Compares the two ways of selecting expired trash items : the paged indexed
+ * query, and the walk of all the trash children.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrashScanBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int              items;
+
+  @Param({ "1000" })
+  public int              pageSize;
+
+  private SessionProvider sessionProvider;
+
+  private Session         session;
+
+  private String          trashPath;
+
+  private long            expirationTime;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    BenchmarkRepository repository = BenchmarkRepository.getInstance();
+    trashPath = new SyntheticRepositoryGenerator(repository, 0, 1, 1024, 0).generateTrash(items);
+    expirationTime = System.currentTimeMillis() - 30L * 24 * 3600 * 1000;
+    sessionProvider = SessionProvider.createSystemProvider();
+    session = repository.getSession(sessionProvider);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    sessionProvider.close();
+  }
+
+  @Benchmark
+  public List<String> queryPages() throws Exception {
+    ExpiredTrashItemQuery query = new ExpiredTrashItemQuery(session, trashPath, expirationTime, pageSize);
+    List<String> identifiers = new ArrayList<>();
+    long offset = 0;
+    List<String> page;
+    do {
+      page = query.getPage(offset);
+      identifiers.addAll(page);
+      offset += page.size();
+    } while (page.size() == pageSize);
+    return identifiers;
+  }
+
+  @Benchmark
+  public List<String> childrenWalk() throws Exception {
+    List<String> identifiers = new ArrayList<>();
+    NodeIterator children = ((Node) session.getItem(trashPath)).getNodes();
+    while (children.hasNext()) {
+      Node child = children.nextNode();
+      if (child.isNodeType("exo:restoreLocation")
+          && child.getProperty("exo:lastModifiedDate").getDate().getTimeInMillis() < expirationTime) {
+        identifiers.add(((NodeImpl) child).getIdentifier());
+      }
+    }
+    return identifiers;
+  }
+}
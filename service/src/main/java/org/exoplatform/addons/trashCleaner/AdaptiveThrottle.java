@@ -0,0 +1,164 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Paces the trash deletions of a run, shared by all its workers. The rate is
+ * adapted to the load : it is halved when the save latency, or the saturation of
+ * the database connection pool, goes above its target, and it increases slowly
+ * when the system is idle, between a floor and a ceiling (additive increase,
+ * multiplicative decrease).
+ * <p>
+ * The pool saturation is read from the JMX bean of the pool, when its name is
+ * configured, with the <code>NumActive</code> and <code>MaxActive</code>
+ * attributes of the Tomcat JDBC pool.
+ */
+public class AdaptiveThrottle {
+
+  private static final Log   LOG                     = ExoLogger.getLogger(AdaptiveThrottle.class);
+
+  public static final String ENABLED_PROPERTY        = "trashcleaner.throttle.enabled";
+
+  public static final String TARGET_LATENCY_PROPERTY = "trashcleaner.throttle.target.latency";
+
+  public static final String MIN_RATE_PROPERTY       = "trashcleaner.throttle.min.rate";
+
+  public static final String MAX_RATE_PROPERTY       = "trashcleaner.throttle.max.rate";
+
+  public static final String POOL_MBEAN_PROPERTY     = "trashcleaner.throttle.pool.mbean";
+
+  /** Weight of the last save in the average latency */
+  private static final double LATENCY_WEIGHT         = 0.2;
+
+  private static final double MAX_POOL_SATURATION    = 0.8;
+
+  private final double       minRate;
+
+  private final double       maxRate;
+
+  private final long         targetLatency;
+
+  private final ObjectName   poolName;
+
+  private double             rate;
+
+  private double             averageLatency;
+
+  private double             poolSaturation;
+
+  private long               nextPermitTime          = System.nanoTime();
+
+  /**
+   * @param minRate the floor, in items per second
+   * @param maxRate the ceiling, in items per second
+   * @param targetLatency the save latency above which the rate decreases, in ms
+   * @param poolName the JMX name of the connection pool, or null
+   */
+  public AdaptiveThrottle(double minRate, double maxRate, long targetLatency, ObjectName poolName) {
+    this.minRate = minRate;
+    this.maxRate = maxRate;
+    this.targetLatency = targetLatency;
+    this.poolName = poolName;
+    this.rate = minRate;
+  }
+
+  /**
+   * @return the throttle configured by the system properties, or null if
+   *         throttling is disabled
+   */
+  public static AdaptiveThrottle fromSystemProperties() {
+    if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "false"))) {
+      return null;
+    }
+    ObjectName poolName = null;
+    String pool = System.getProperty(POOL_MBEAN_PROPERTY);
+    if (pool != null && !pool.isEmpty()) {
+      try {
+        poolName = new ObjectName(pool);
+      } catch (Exception e) {
+        LOG.warn("Invalid connection pool MBean name {}, pool saturation is ignored", pool);
+      }
+    }
+    return new AdaptiveThrottle(Double.parseDouble(System.getProperty(MIN_RATE_PROPERTY, "1")),
+                                Double.parseDouble(System.getProperty(MAX_RATE_PROPERTY, "50")),
+                                Long.parseLong(System.getProperty(TARGET_LATENCY_PROPERTY, "500")),
+                                poolName);
+  }
+
+  /**
+   * Waits for the permit to delete one trash item.
+   */
+  public void acquire() throws InterruptedException {
+    long waitTime;
+    synchronized (this) {
+      long now = System.nanoTime();
+      waitTime = Math.max(0, nextPermitTime - now);
+      nextPermitTime = Math.max(now, nextPermitTime) + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+    if (waitTime > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitTime);
+    }
+  }
+
+  /**
+   * Adapts the rate to the latency of a save.
+   */
+  public synchronized void recordSave(long latency) {
+    averageLatency = averageLatency == 0 ? latency : LATENCY_WEIGHT * latency + (1 - LATENCY_WEIGHT) * averageLatency;
+    poolSaturation = readPoolSaturation();
+    double previousRate = rate;
+    if (averageLatency > targetLatency || poolSaturation > MAX_POOL_SATURATION) {
+      rate = Math.max(minRate, rate / 2);
+    } else if (averageLatency < targetLatency / 2d && poolSaturation < MAX_POOL_SATURATION / 2) {
+      rate = Math.min(maxRate, rate + Math.max(1, rate / 10));
+    }
+    if (rate != previousRate) {
+      LOG.debug("Trash cleaner rate changed from {} to {} items/s, save latency {} ms, pool saturation {}",
+                previousRate,
+                rate,
+                averageLatency,
+                poolSaturation);
+    }
+  }
+
+  /**
+   * @return the current rate, in items per second
+   */
+  public synchronized double getRate() {
+    return rate;
+  }
+
+  public synchronized double getAverageLatency() {
+    return averageLatency;
+  }
+
+  private double readPoolSaturation() {
+    if (poolName == null) {
+      return 0;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      double active = ((Number) server.getAttribute(poolName, "NumActive")).doubleValue();
+      double max = ((Number) server.getAttribute(poolName, "MaxActive")).doubleValue();
+      return max > 0 ? active / max : 0;
+    } catch (Exception e) {
+      LOG.debug("Unable to read connection pool saturation from {}", poolName, e);
+      return 0;
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("rate %.1f items/s, save latency %.0f ms, pool saturation %.0f%%",
+                         rate,
+                         averageLatency,
+                         poolSaturation * 100);
+  }
+}
@@ -0,0 +1,113 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.concurrent.Future;
+
+/**
+ * An operation submitted to {@link TrashCleanerJobManager}.
+ */
+public class AsyncJob {
+
+  public enum Status {
+    PENDING, RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  private final String      id;
+
+  private final String      type;
+
+  private final JobProgress progress = new JobProgress();
+
+  private final long        submittedAt = System.currentTimeMillis();
+
+  private volatile Status   status      = Status.PENDING;
+
+  private volatile long     startedAt;
+
+  private volatile long     endedAt;
+
+  private volatile String   result;
+
+  private volatile String   error;
+
+  private volatile Future<?> future;
+
+  public AsyncJob(String id, String type) {
+    this.id = id;
+    this.type = type;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public JobProgress getProgress() {
+    return progress;
+  }
+
+  public long getSubmittedAt() {
+    return submittedAt;
+  }
+
+  public long getStartedAt() {
+    return startedAt;
+  }
+
+  public long getEndedAt() {
+    return endedAt;
+  }
+
+  public String getResult() {
+    return result;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public boolean isFinished() {
+    return status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED;
+  }
+
+  void started() {
+    startedAt = System.currentTimeMillis();
+    progress.start();
+    status = Status.RUNNING;
+  }
+
+  void finished(String result) {
+    this.result = result;
+    endedAt = System.currentTimeMillis();
+    status = progress.isCancelled() ? Status.CANCELLED : Status.DONE;
+  }
+
+  void failed(Throwable throwable) {
+    error = throwable.getMessage();
+    endedAt = System.currentTimeMillis();
+    status = Status.FAILED;
+  }
+
+  void setFuture(Future<?> future) {
+    this.future = future;
+  }
+
+  /**
+   * Asks the operation to stop. A pending job is removed from the queue, a running
+   * one stops at its next check.
+   */
+  public void cancel() {
+    progress.cancel();
+    Future<?> jobFuture = future;
+    if (status == Status.PENDING && jobFuture != null && jobFuture.cancel(false)) {
+      endedAt = System.currentTimeMillis();
+      status = Status.CANCELLED;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.exoplatform.services.jcr.datamodel.ValueData;
+import org.exoplatform.services.jcr.impl.core.value.BaseValue;
+import org.exoplatform.services.jcr.impl.dataflow.persistent.FilePersistedValueData;
+
+/**
+ * Finds the binaries already counted during a trash size computation, to report
+ * the storage which would really be reclaimed.
+ * <p>
+ * Binaries stored in a value storage are identified by their file, so binaries
+ * shared by a content addressable storage are counted once. The files seen are
+ * kept in a least recently used set bounded by
+ * <code>trashcleaner.dedup.max.files</code>, so the memory of a scan does not
+ * grow with the trash : a binary shared by items too far apart in the scan may be
+ * counted again. Binaries without a file are compared by SHA-256 hash, only
+ * within the history of one file (its current content and its versions), and
+ * only with the binaries of the same length, so most binaries are never hashed
+ * and identical binaries of different files are not detected.
+ */
+public class BinaryDeduplicator {
+
+  public static final String               MAX_FILES_PROPERTY = "trashcleaner.dedup.max.files";
+
+  private static final int                 BUFFER_SIZE        = 8192;
+
+  private final Map<String, Boolean>       storageIdentities;
+
+  private final Map<Long, List<Candidate>> historyCandidates = new HashMap<>();
+
+  public BinaryDeduplicator() {
+    this(Integer.parseInt(System.getProperty(MAX_FILES_PROPERTY, "100000")));
+  }
+
+  /**
+   * @param maxFiles the maximum number of value storage files remembered
+   */
+  public BinaryDeduplicator(int maxFiles) {
+    this.storageIdentities = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxFiles;
+      }
+    };
+  }
+
+  /**
+   * Starts the history of a new file, the binaries of the previous one are no
+   * longer compared by hash.
+   */
+  public void startHistory() {
+    historyCandidates.clear();
+  }
+
+  /**
+   * @param data a <code>jcr:data</code> property
+   * @param length the length of the binary
+   * @return true if the same binary was already counted
+   */
+  public boolean isDuplicate(Property data, long length) throws RepositoryException {
+    String identity = getStorageIdentity(data);
+    if (identity != null) {
+      return isDuplicateIdentity(identity);
+    }
+    Candidate candidate = new Candidate(data);
+    List<Candidate> sameLength = historyCandidates.computeIfAbsent(length, key -> new ArrayList<>());
+    for (Candidate other : sameLength) {
+      if (Arrays.equals(other.getHash(), candidate.getHash())) {
+        return true;
+      }
+    }
+    sameLength.add(candidate);
+    return false;
+  }
+
+  /**
+   * @param identity the value storage file of a binary
+   * @return true if the file is among the most recently seen ones
+   */
+  boolean isDuplicateIdentity(String identity) {
+    return storageIdentities.put(identity, Boolean.TRUE) != null;
+  }
+
+  private String getStorageIdentity(Property data) throws RepositoryException {
+    Value value = data.getValue();
+    if (value instanceof BaseValue) {
+      ValueData valueData = ((BaseValue) value).getInternalData();
+      if (valueData instanceof FilePersistedValueData) {
+        File file = ((FilePersistedValueData) valueData).getFile();
+        if (file != null) {
+          return file.getAbsolutePath();
+        }
+      }
+    }
+    return null;
+  }
+
+  private static class Candidate {
+    private final Property data;
+
+    private byte[]         hash;
+
+    private Candidate(Property data) {
+      this.data = data;
+    }
+
+    private byte[] getHash() throws RepositoryException {
+      if (hash == null) {
+        try (InputStream stream = data.getValue().getStream()) {
+          MessageDigest digest = MessageDigest.getInstance("SHA-256");
+          byte[] buffer = new byte[BUFFER_SIZE];
+          int read;
+          while ((read = stream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+          }
+          hash = digest.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+          throw new RepositoryException("Unable to hash binary of " + data.getPath(), e);
+        }
+      }
+      return hash;
+    }
+  }
+}
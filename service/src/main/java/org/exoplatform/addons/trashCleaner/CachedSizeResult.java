@@ -0,0 +1,77 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Date;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Result of a size computation kept in the {@link SizeResultCache}, with the
+ * time it was computed and where the returned result comes from.
+ */
+public class CachedSizeResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Source {
+    /** Computed for this request */
+    COMPUTED,
+    /** Computed for a concurrent identical request */
+    COALESCED,
+    /** Read from the cache */
+    CACHE
+  }
+
+  private final String value;
+
+  private final long   computedAt;
+
+  private final Source source;
+
+  public CachedSizeResult(String value, long computedAt, Source source) {
+    this.value = value;
+    this.computedAt = computedAt;
+    this.source = source;
+  }
+
+  public CachedSizeResult withSource(Source source) {
+    return new CachedSizeResult(value, computedAt, source);
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public long getComputedAt() {
+    return computedAt;
+  }
+
+  public Source getSource() {
+    return source;
+  }
+
+  /**
+   * @return the result, with its computation time and source in the message and
+   *         in the Last-Modified and X-Cache headers
+   */
+  public Response toResponse() {
+    return Response.ok(value + " Computed at " + Instant.ofEpochMilli(computedAt) + ", result "
+        + source.name().toLowerCase() + ".")
+                   .lastModified(new Date(computedAt))
+                   .header("X-Cache", source == Source.CACHE ? "HIT" : "MISS")
+                   .build();
+  }
+
+  /**
+   * @return the result as is, a JSON document holding its computation time, with
+   *         the Last-Modified and X-Cache headers
+   */
+  public Response toJsonResponse() {
+    return Response.ok(value, MediaType.APPLICATION_JSON)
+                   .lastModified(new Date(computedAt))
+                   .header("X-Cache", source == Source.CACHE ? "HIT" : "MISS")
+                   .build();
+  }
+}
@@ -3,103 +3,282 @@ package org.exoplatform.addons.trashCleaner;
 import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.services.cms.documents.TrashService;
 import org.exoplatform.services.jcr.RepositoryService;
-import org.exoplatform.services.jcr.core.ManageableRepository;
-import org.exoplatform.services.jcr.ext.app.SessionProviderService;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
 import org.exoplatform.services.rest.resource.ResourceContainer;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
-import org.quartz.JobExecutionContext;
-import org.quartz.JobExecutionException;
+
+import io.swagger.v3.oas.annotations.Parameter;
 
 import javax.annotation.security.RolesAllowed;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
 import javax.jcr.version.VersionIterator;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Path("computeTrashSize")
 public class ComputeTrashSizeService implements ResourceContainer {
 
   private static final Log LOG = ExoLogger.getLogger(ComputeTrashSizeService.class);
-  int nbFiles;
-  long size;
-
-  long versionHistorySize;
 
   RepositoryService      repositoryService;
-  SessionProviderService sessionProviderService;
+  ContentSizeResolver    contentSizeResolver;
+  TreeWalker             treeWalker;
 
-  public ComputeTrashSizeService(RepositoryService repositoryService, SessionProviderService sessionProviderService) {
+  public ComputeTrashSizeService(RepositoryService repositoryService,
+                                 ContentSizeResolver contentSizeResolver) {
     this.repositoryService = repositoryService;
-    this.sessionProviderService = sessionProviderService;
+    this.contentSizeResolver = contentSizeResolver;
+    this.treeWalker = TreeWalker.fromSystemProperties();
   }
 
 
   @GET
   @RolesAllowed("administrators")
-  public Response computeTrashSize() {
+  public Response computeTrashSize(@Parameter(description = "Rescan the whole trash instead of reading the trash size index") @QueryParam("rescan") boolean rescan,
+                                   @Parameter(description = "Stream one record per trash item instead of the total : ndjson or csv") @QueryParam("format") String format,
+                                   @Parameter(description = "Return the byte distribution by MIME type, age since trashing and owner as JSON") @QueryParam("analytics") boolean analytics) {
+    ScanReport.Format reportFormat;
+    try {
+      reportFormat = ScanReport.Format.parse(format);
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("Unknown report format " + format).build();
+    }
+    if (reportFormat != null) {
+      TrashService trashService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(TrashService.class);
+      StreamingOutput output = outputStream -> {
+        JobProgress progress = new JobProgress();
+        ScanReport report = new ScanReport(outputStream, reportFormat, progress, "path", "size", "versionHistorySize", "ageInDays");
+        TrashSizeScan scan = scan(trashService.getTrashHomeNode(), progress, report);
+        LOG.info("Trash size report of {} items streamed, {} files with a size of {}",
+                 report.getRecords(), scan.getNbFiles(), humanReadableByteCountBin(scan.getSize()));
+      };
+      return Response.ok(output, reportFormat.getMediaType()).build();
+    }
+    if (analytics) {
+      SizeResultCache sizeResultCache = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(SizeResultCache.class);
+      if (sizeResultCache == null) {
+        return Response.ok(computeTrashAnalytics(new JobProgress()), MediaType.APPLICATION_JSON).build();
+      }
+      try {
+        return sizeResultCache.get("computeTrashAnalytics", rescan, () -> computeTrashAnalytics(new JobProgress())).toJsonResponse();
+      } catch (Exception e) {
+        LOG.error("Error when computing trash analytics", e);
+        return Response.serverError().build();
+      }
+    }
+    TrashSizeIndex trashSizeIndex = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(TrashSizeIndex.class);
+    TrashSizeSummary summary = trashSizeIndex == null ? null : trashSizeIndex.getSummary();
+    if (!rescan && summary != null) {
+      return Response.ok("Trash size read from index. " + summary).build();
+    }
+    SizeResultCache sizeResultCache = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(SizeResultCache.class);
+    if (sizeResultCache == null) {
+      return Response.ok(computeTrashSize(new JobProgress())).build();
+    }
+    try {
+      return sizeResultCache.get("computeTrashSize", rescan, () -> computeTrashSize(new JobProgress())).toResponse();
+    } catch (Exception e) {
+      LOG.error("Error when computing trash size", e);
+      return Response.serverError().build();
+    }
+  }
+
+  /**
+   * Computes the trash size, reporting to the given progress and stopping when it
+   * is cancelled.
+   *
+   * @return the result message
+   */
+  public String computeTrashSize(JobProgress progress) {
     LOG.info("Compute Trash size.");
     TrashService trashService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(TrashService.class);
-    nbFiles = 0;
-    size = 0;
-    versionHistorySize=0;
-    Node trashNode = trashService.getTrashHomeNode();
+    TrashSizeScan scan = scan(trashService.getTrashHomeNode(), progress);
+    String result = (progress.isCancelled() ? "Compute Trash size cancelled. " : "Compute Trash size successfully. ")
+        + "There are "+scan.getNbFiles()+" files in trash, with a size of "+humanReadableByteCountBin(scan.getSize())+". Theses files are related to a size of "+humanReadableByteCountBin(scan.getVersionHistorySize())+" in versions history! Identical binaries counted once, the reclaimable size is "+humanReadableByteCountBin(scan.getReclaimableSize())+".";
+    LOG.info(result);
+    LOG.info("Size probes statistics : {}", scan.getProbeStatistics());
+    return result;
+  }
 
-    try {
+  /**
+   * Computes the size of the files under the given trash node.
+   */
+  public TrashSizeScan scan(Node trashNode, JobProgress progress) {
+    return scan(trashNode, progress, null);
+  }
 
-      if (trashNode.hasNodes()){
-        computeSubFolderSize(trashNode);
+  /**
+   * Computes the size of the files under the given trash node, and writes one
+   * record per trash item in the report, if any.
+   */
+  public TrashSizeScan scan(Node trashNode, JobProgress progress, ScanReport report) {
+    return scan(trashNode, progress, report, null);
+  }
+
+  /**
+   * Computes the size of the files under the given trash node, writes one record
+   * per trash item in the report, if any, and fills the analytics, if any, in the
+   * same traversal.
+   */
+  public TrashSizeScan scan(Node trashNode, JobProgress progress, ScanReport report, StorageAnalytics analytics) {
+    return scan(trashNode, progress, report, analytics, null);
+  }
+
+  /**
+   * Computes the size of the files under the given trash node, and in the same
+   * traversal writes one record per trash item in the report, fills the analytics
+   * and adds one entry per trash item to the snapshot, each one if any.
+   */
+  public TrashSizeScan scan(Node trashNode,
+                            JobProgress progress,
+                            ScanReport report,
+                            StorageAnalytics analytics,
+                            ScanSnapshot.Writer snapshot) {
+    TrashSizeScan scan = new TrashSizeScan(contentSizeResolver.newStatistics(), progress, analytics);
+    try {
+      NodeIterator items = trashNode.getNodes();
+      while (items.hasNext() && !progress.isCancelled()) {
+        Node item = items.nextNode();
+        if (analytics != null) {
+          scan.startItem(getAgeInDays(item), StorageAnalytics.getOwner(getRestorePath(item)));
+        }
+        long size = scan.getSize();
+        long versionHistorySize = scan.getVersionHistorySize();
+        computeNodeSize(item, scan);
+        if (report != null) {
+          report.record(item.getPath(), scan.getSize() - size, scan.getVersionHistorySize() - versionHistorySize, getAgeInDays(item));
+        }
+        if (snapshot != null) {
+          addToSnapshot(snapshot, item, scan.getSize() - size, scan.getVersionHistorySize() - versionHistorySize, progress);
+        }
       }
     } catch (RepositoryException ex){
       LOG.info("Failed to get child nodes", ex);
     }
-    String result = "Compute Trash size successfully. There are "+nbFiles+" files in trash, with a size of "+humanReadableByteCountBin(size)+". Theses files are related to a size of "+humanReadableByteCountBin(versionHistorySize)+" in versions history!";
-    LOG.info(result);
-    return Response.ok(result).build();
+    return scan;
+  }
 
+  /**
+   * Computes the byte distribution of the trash by MIME type, by age since trashing
+   * and by owner, reporting to the given progress.
+   *
+   * @return the histograms as JSON
+   */
+  public String computeTrashAnalytics(JobProgress progress) {
+    TrashService trashService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(TrashService.class);
+    StorageAnalytics analytics = new StorageAnalytics("trash", "trashing");
+    scan(trashService.getTrashHomeNode(), progress, null, analytics);
+    LOG.info("Trash analytics computed : {} files with a size of {}",
+             analytics.getFiles(), humanReadableByteCountBin(analytics.getBytes()));
+    return analytics.toJson();
   }
 
-  private void computeSubFolderSize(Node node) throws RepositoryException {
-    NodeIterator childNodes = node.getNodes();
+  private void addToSnapshot(ScanSnapshot.Writer snapshot,
+                             Node item,
+                             long size,
+                             long versionHistorySize,
+                             JobProgress progress) throws RepositoryException {
+    long trashDate = item.hasProperty("exo:lastModifiedDate") ? item.getProperty("exo:lastModifiedDate").getDate().getTimeInMillis() : -1;
+    byte flags = item.isNodeType("exo:restoreLocation") ? ScanSnapshot.FLAG_RESTORABLE : 0;
+    try {
+      snapshot.add(((NodeImpl) item).getIdentifier(), item.getPath(), size, versionHistorySize, trashDate, flags);
+    } catch (IOException e) {
+      LOG.warn("Unable to write trash snapshot, the scan is cancelled : {}", e.getMessage());
+      progress.cancel();
+    }
+  }
 
-    while (childNodes.hasNext()){
-      Node currentNode = (Node) childNodes.next();
-      if (currentNode.isNodeType("nt:file")) {
-        nbFiles++;
-        Node content=currentNode.getNode("jcr:content");
-        size += getContentSize(content);
-        if (currentNode.isNodeType("mix:versionable")) {
-          versionHistorySize += computeVersionHistorySizeForNode(currentNode);
-        }
-      } else if (currentNode.isNodeType("nt:folder") || currentNode.isNodeType("nt:unstructured")) {
-        computeSubFolderSize(currentNode);
+  private String getRestorePath(Node item) throws RepositoryException {
+    return item.hasProperty("exo:restorePath") ? item.getProperty("exo:restorePath").getString() : null;
+  }
+
+  /**
+   * @return the number of days since the item was moved to the trash, null if unknown
+   */
+  private Long getAgeInDays(Node item) throws RepositoryException {
+    if (!item.hasProperty("exo:lastModifiedDate")) {
+      return null;
+    }
+    return TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - item.getProperty("exo:lastModifiedDate").getDate().getTimeInMillis());
+  }
+
+  /**
+   * Computes the size of a single trash item, a file or a folder.
+   */
+  public TrashSizeScan scanItem(Node item, JobProgress progress) throws RepositoryException {
+    TrashSizeScan scan = new TrashSizeScan(contentSizeResolver.newStatistics(), progress);
+    computeNodeSize(item, scan);
+    return scan;
+  }
+
+  private void computeNodeSize(Node node, TrashSizeScan scan) throws RepositoryException {
+    treeWalker.walk(node, (currentNode, depth) -> visitNode(currentNode, scan), scan.getProgress());
+  }
+
+  /**
+   * @return true if the node is a folder, whose children must be visited
+   */
+  private boolean visitNode(Node currentNode, TrashSizeScan scan) throws RepositoryException {
+    if (currentNode.isNodeType("nt:file")) {
+      Node content=currentNode.getNode("jcr:content");
+      long fileSize = getContentSize(content, scan);
+      scan.addFile(fileSize);
+      scan.getDeduplicator().startHistory();
+      if (content.hasProperty("jcr:data")) {
+        scan.addReclaimable(content.getProperty("jcr:data"), fileSize);
+      }
+      long versionsSize = 0;
+      if (currentNode.isNodeType("mix:versionable")) {
+        versionsSize = computeVersionHistorySizeForNode(currentNode, scan);
+        scan.addVersionHistory(versionsSize);
       }
+      if (scan.getAnalytics() != null) {
+        scan.addAnalytics(StorageAnalytics.getMimeType(content), fileSize, versionsSize);
+      }
+      return false;
     }
+    return currentNode.isNodeType("nt:folder") || currentNode.isNodeType("nt:unstructured");
   }
 
-  private long computeVersionHistorySizeForNode(Node currentNode) throws RepositoryException {
-    List<Version> versions = getFileVersions(currentNode.getUUID());
-    return versions.stream().reduce(0, (subtotal, element) -> {
+  /**
+   * @return the logical size of the versions. The distinct binaries are added to
+   *         the reclaimable size of the scan.
+   */
+  private long computeVersionHistorySizeForNode(Node currentNode, TrashSizeScan scan) throws RepositoryException {
+    List<Version> versions = getFileVersions(currentNode);
+    long subtotal = 0;
+    for (Version version : versions) {
       try {
-        return subtotal + getContentSize(element.getNode("jcr:frozenNode").getNode("jcr:content"));
+        Node content = version.getNode("jcr:frozenNode").getNode("jcr:content");
+        long versionSize = getContentSize(content, scan);
+        subtotal += versionSize;
+        if (content.hasProperty("jcr:data")) {
+          scan.addReclaimable(content.getProperty("jcr:data"), versionSize);
+        }
       } catch (RepositoryException e) {
         try {
-          LOG.error("Unable to read version {} size",element.getPath(),e);
+          LOG.error("Unable to read version {} size",version.getPath(),e);
         } catch (RepositoryException ex) {
           //ignore it
         }
-        return subtotal;
       }
-    }, Integer::sum);
+    }
+    return subtotal;
   }
 
   public static String humanReadableByteCountBin(long bytes) {
@@ -118,18 +297,20 @@ public class ComputeTrashSizeService implements ResourceContainer {
   }
 
 
-  public List<Version> getFileVersions(String fileNodeId) {
+  /**
+   * @param fileNode a versionable file, read with the session of the current computation
+   * @return the versions of the file, without the root version
+   */
+  public List<Version> getFileVersions(Node fileNode) {
     List<Version> fileVersions = new ArrayList<>();
 
     try {
-      ManageableRepository manageableRepository = repositoryService.getCurrentRepository();
-      Session session = this.sessionProviderService.getSystemSessionProvider(null).getSession("collaboration", manageableRepository);
-      Node node = session.getNodeByUUID(fileNodeId);
-      Version rootVersion = node.getVersionHistory().getRootVersion();
-      VersionIterator versionIterator = node.getVersionHistory().getAllVersions();
+      VersionHistory versionHistory = fileNode.getVersionHistory();
+      String rootVersionUUID = versionHistory.getRootVersion().getUUID();
+      VersionIterator versionIterator = versionHistory.getAllVersions();
       while (versionIterator.hasNext()) {
         Version version = versionIterator.nextVersion();
-        if (version.getUUID().equals(rootVersion.getUUID())) {
+        if (version.getUUID().equals(rootVersionUUID)) {
           continue;
         }
         fileVersions.add(version);
@@ -141,12 +322,7 @@ public class ComputeTrashSizeService implements ResourceContainer {
   }
 
 
-  public int getContentSize(Node content) throws RepositoryException {
-    try {
-      return content.getProperty("jcr:data").getValue().getStream().readAllBytes().length;
-    } catch (Exception e) {
-      LOG.error("Unable to compute size for node {}", content.getPath());
-      return 0;
-    }
+  public long getContentSize(Node content, TrashSizeScan scan) throws RepositoryException {
+    return contentSizeResolver.getContentSize(content, scan.getProbeStatistics());
   }
 }
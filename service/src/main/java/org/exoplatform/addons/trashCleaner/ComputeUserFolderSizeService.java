@@ -4,21 +4,27 @@ import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.security.RolesAllowed;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import org.exoplatform.container.ExoContainer;
 import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.container.component.RequestLifeCycle;
 import org.exoplatform.services.jcr.RepositoryService;
-import org.exoplatform.services.jcr.ext.app.SessionProviderService;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.organization.OrganizationService;
@@ -32,111 +38,308 @@ import io.swagger.v3.oas.annotations.Parameter;
 public class ComputeUserFolderSizeService implements ResourceContainer {
   private static final Log LOG = ExoLogger.getLogger(ComputeUserFolderSizeService.class);
 
-  private SessionProviderService sessionProviderService;
+  private static final long USER_NOT_FOUND = Long.MIN_VALUE;
+
+  public static final String PARALLELISM_PROPERTY = "trashcleaner.userfolders.parallelism";
+
   private RepositoryService repositoryService;
   private OrganizationService organizationService;
-  int totalUsersCount;
-  public ComputeUserFolderSizeService(SessionProviderService sessionProviderService, RepositoryService repositoryService, OrganizationService organizationService) {
-    this.sessionProviderService=sessionProviderService;
+  private ContentSizeResolver contentSizeResolver;
+  private TreeWalker treeWalker;
+  public ComputeUserFolderSizeService(RepositoryService repositoryService, OrganizationService organizationService, ContentSizeResolver contentSizeResolver) {
     this.repositoryService = repositoryService;
     this.organizationService=organizationService;
+    this.contentSizeResolver=contentSizeResolver;
+    this.treeWalker = TreeWalker.fromSystemProperties();
   }
 
   @GET
   @RolesAllowed("administrators")
-  public Response computeUserFolderSizeSize(@Parameter(description = "Check for user not connected since this date (format timestamp in ms)") @QueryParam("date") String date) {
+  public Response computeUserFolderSizeSize(@Parameter(description = "Check for user not connected since this date (format timestamp in ms)") @QueryParam("date") String date,
+                                            @Parameter(description = "Stream one record per user folder instead of the total : ndjson or csv") @QueryParam("format") String format,
+                                            @Parameter(description = "Return the byte distribution by MIME type, age since last modification and user as JSON") @QueryParam("analytics") boolean analytics,
+                                            @Parameter(description = "Recompute a cached result") @QueryParam("rescan") boolean rescan) {
+    ScanReport.Format reportFormat;
+    try {
+      reportFormat = ScanReport.Format.parse(format);
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("Unknown report format " + format).build();
+    }
+    if (reportFormat != null) {
+      Instant limitDate = getLimitDate(date);
+      StreamingOutput output = outputStream -> {
+        JobProgress progress = new JobProgress();
+        ScanReport report = new ScanReport(outputStream, reportFormat, progress, "username", "path", "lastActivity", "folderSize");
+        try {
+          computeUserFolderSize(limitDate, progress, report);
+        } catch (Exception e) {
+          LOG.error("Error when streaming users folder report", e);
+        }
+      };
+      return Response.ok(output, reportFormat.getMediaType()).build();
+    }
+    try {
+      SizeResultCache sizeResultCache = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(SizeResultCache.class);
+      if (analytics) {
+        if (sizeResultCache == null) {
+          return Response.ok(computeUserFolderAnalytics(getLimitDate(date), new JobProgress()), MediaType.APPLICATION_JSON).build();
+        }
+        return sizeResultCache.get("computeUserFolderAnalytics:" + (date == null ? "" : date),
+                                   rescan,
+                                   () -> computeUserFolderAnalytics(getLimitDate(date), new JobProgress()))
+                              .toJsonResponse();
+      }
+      if (sizeResultCache == null) {
+        return Response.ok(computeUserFolderSize(getLimitDate(date), new JobProgress())).build();
+      }
+      return sizeResultCache.get("computeUserFolderSize:" + (date == null ? "" : date),
+                                 rescan,
+                                 () -> computeUserFolderSize(getLimitDate(date), new JobProgress()))
+                            .toResponse();
+    } catch (Exception e) {
+      LOG.error("Error when searching users",e);
+      return Response.serverError().build();
+    }
+  }
+
+  /**
+   * @return the workspace of the Users tree, the default workspace of the
+   *         repository, where the user homes are created
+   */
+  public String getUsersWorkspace() throws RepositoryException {
+    return repositoryService.getDefaultRepository().getConfiguration().getDefaultWorkspaceName();
+  }
+
+  /**
+   * @param date timestamp in ms, or null for 2 years ago
+   */
+  public static Instant getLimitDate(String date) {
     Instant limitDate = Instant.now();
     if (date == null || date.equals("")) {
       limitDate = limitDate.minus(365*2, ChronoUnit.DAYS);
     } else {
       limitDate = Instant.ofEpochMilli(Long.parseLong(date));
     }
-    LOG.info("Compute Users Folder size for user not connected since {}", limitDate);
-    int totalSize = 0;
-    this.totalUsersCount = 0;
+    return limitDate;
+  }
+
+  /**
+   * Computes the size of the folders of users not connected since the limit date,
+   * reporting to the given progress and stopping when it is cancelled.
+   *
+   * @return the result message
+   */
+  public String computeUserFolderSize(Instant limitDate, JobProgress progress) throws Exception {
+    return computeUserFolderSize(limitDate, progress, null);
+  }
+
+  /**
+   * Computes the size of the folders of users not connected since the limit date,
+   * and writes one record per matching user folder in the report, if any.
+   *
+   * @return the result message
+   */
+  public String computeUserFolderSize(Instant limitDate, JobProgress progress, ScanReport report) throws Exception {
+    return computeUserFolderSize(limitDate, progress, report, null);
+  }
+
+  /**
+   * Computes the size of the folders of users not connected since the limit date,
+   * and adds each matching user folder to the plan, if any.
+   *
+   * @return the result message
+   */
+  public String computeUserFolderSize(Instant limitDate, JobProgress progress, ScanReport report, UserFolderPlan plan) throws Exception {
+    return computeUserFolderSize(limitDate, progress, report, plan, null);
+  }
+
+  /**
+   * Computes the byte distribution of the folders of users not connected since
+   * the limit date, by MIME type, age since last modification and user.
+   *
+   * @return the histograms as JSON
+   */
+  public String computeUserFolderAnalytics(Instant limitDate, JobProgress progress) throws Exception {
+    StorageAnalytics analytics = new StorageAnalytics("userFolders", "lastModification");
+    computeUserFolderSize(limitDate, progress, null, null, analytics);
+    return analytics.toJson();
+  }
+
+  /**
+   * Computes the size of the folders of users not connected since the limit date,
+   * writes one record per matching user folder in the report, adds it to the plan
+   * and fills the analytics with its files, each one if any.
+   *
+   * @return the result message
+   */
+  public String computeUserFolderSize(Instant limitDate,
+                                      JobProgress progress,
+                                      ScanReport report,
+                                      UserFolderPlan plan,
+                                      StorageAnalytics analytics) throws Exception {
+    int parallelism = Integer.parseInt(System.getProperty(PARALLELISM_PROPERTY, "4"));
+    LOG.info("Compute Users Folder size for user not connected since {}, with {} workers", limitDate, parallelism);
+    UserFolderScan scan = null;
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
     try {
 
       long startTime = System.currentTimeMillis();
 
-      Session session = sessionProviderService.getSystemSessionProvider(null).getSession("collaboration",repositoryService.getDefaultRepository());
+      UserActivityIndex userActivityIndex = UserActivityIndex.build(organizationService);
+      progress.setTotalItems(userActivityIndex.size());
 
-      Node userRootNode = session.getRootNode().getNode("Users");
+      scan = new UserFolderScan(limitDate.toEpochMilli(),
+                                userActivityIndex,
+                                contentSizeResolver.newStatistics(),
+                                progress,
+                                repositoryService.getDefaultRepository(),
+                                getUsersWorkspace(),
+                                report,
+                                plan,
+                                analytics);
 
-      totalSize = browserUsersFolders(userRootNode,limitDate);
+      String usersPath = scan.getSession().getRootNode().getNode("Users").getPath();
 
-      String result = "Total size for users not connected since "+limitDate.toString()+" is "+humanReadableByteCountBin(totalSize)+", for a total of "+totalUsersCount+" users, execution time "+(System.currentTimeMillis() - startTime)+" ms";
+      pool.invoke(new UsersFolderTask(usersPath, scan, ExoContainerContext.getCurrentContainer()));
 
-      LOG.info(result);
-      return Response.ok(result).build();
+      String result = (progress.isCancelled() ? "Cancelled. " : "")
+          + "Total size for users not connected since "+limitDate.toString()+" is "+humanReadableByteCountBin(scan.getTotalSize())+", for a total of "+scan.getUsersCount()+" users, "+scan.getLookupFailures()+" user folders skipped as their user could not be looked up, execution time "+(System.currentTimeMillis() - startTime)+" ms"
+          + " (users index of "+userActivityIndex.size()+" users built in "+userActivityIndex.getBuildTime()+" ms, "+humanReadableByteCountBin(userActivityIndex.getEstimatedFootprint())+")";
 
-    } catch (Exception e) {
-      LOG.error("Error when searching users",e);
-      return Response.serverError().build();
+      LOG.info(result);
+      LOG.info("Size probes statistics : {}", scan.getProbeStatistics());
+      return result;
+    } finally {
+      pool.shutdown();
+      if (scan != null) {
+        scan.close();
+      }
     }
   }
 
-  private int browserUsersFolders(Node currentNode, Instant limitDate) {
-    NodeIterator iterator = null;
-    String path=null;
-    int subTotalSize = 0;
-    try {
-      path=currentNode.getPath();
-      iterator = currentNode.getNodes();
-    } catch (RepositoryException e) {
-      LOG.error("Error when reading child nodes of {}",path,e);
-      return subTotalSize;
+  /**
+   * Browses one level of the hashed Users tree. User folders found at this level
+   * are computed by the task itself, other children are shard folders which are
+   * forked as sub tasks. The paths of the children are read before any of them is
+   * computed, as computing a user folder refreshes the session of the worker,
+   * which would invalidate an iterator on the children.
+   */
+  private class UsersFolderTask extends RecursiveAction {
+
+    private final String         path;
+
+    private final UserFolderScan scan;
+
+    private final ExoContainer   container;
+
+    private UsersFolderTask(String path, UserFolderScan scan, ExoContainer container) {
+      this.path = path;
+      this.scan = scan;
+      this.container = container;
     }
-    long startTime = System.currentTimeMillis();
 
-    while (iterator.hasNext()) {
-      Node child = iterator.nextNode();
-      String username ="";
+    @Override
+    protected void compute() {
+      ExoContainerContext.setCurrentContainer(container);
+      List<String> childPaths = new ArrayList<>();
       try {
-        username = child.getName();
-        if (child.isNodeType("exo:userFolder")) {
-          //check if user is connected
-          User user = getUser(username);
-          if (user == null) {
-            LOG.info("Folder {} correspond to a not found user. We can delete it", child.getPath());
-            subTotalSize += computeSubFolderSize(child);
-            this.totalUsersCount++;
-          } else if (isConnected(user)) {
-            Instant lastLoginTime = user.getLastLoginTime().toInstant();
-            if (lastLoginTime.isBefore(limitDate)) {
-              LOG.debug("User {} lastLoginTime ({}) is before limitDate ({}), need to compute size", user.getUserName(), user.getLastLoginTime(), limitDate);
-              subTotalSize += computeSubFolderSize(child);
-              this.totalUsersCount++;
+        NodeIterator iterator = ((Node) scan.getSession().getItem(path)).getNodes();
+        while (iterator.hasNext()) {
+          childPaths.add(iterator.nextNode().getPath());
+        }
+      } catch (RepositoryException e) {
+        LOG.error("Error when reading child nodes of {}",path,e);
+        return;
+      }
+      long startTime = System.currentTimeMillis();
+      List<UsersFolderTask> subTasks = new ArrayList<>();
+
+      for (String childPath : childPaths) {
+        if (scan.getProgress().isCancelled()) {
+          break;
+        }
+        String username ="";
+        try {
+          Node child = (Node) scan.getSession().getItem(childPath);
+          username = child.getName();
+          if (child.isNodeType("exo:userFolder")) {
+            scan.getProgress().addItems(1);
+            //check if user is connected
+            long lastActivityTime;
+            try {
+              lastActivityTime = getLastActivityTime(username, scan.getUserActivityIndex());
+            } catch (Exception e) {
+              LOG.warn("Unable to look up user {}, folder {} is skipped", username, child.getPath(), e);
+              scan.addLookupFailure();
+              continue;
             }
-          } else {
-            Instant createdDate = user.getCreatedDate().toInstant();
-            if (createdDate.isBefore(limitDate)) {
-              LOG.debug("User {} never connected and created ({}) before limitDate ({}) , need to compute size", user.getUserName(), user.getCreatedDate(), limitDate);
-              subTotalSize += computeSubFolderSize(child);
-              this.totalUsersCount++;
+            if (lastActivityTime == USER_NOT_FOUND) {
+              LOG.info("Folder {} correspond to a not found user. We can delete it", child.getPath());
+              scan.addUserFolder(child, username, null, computeSubFolderSize(child, username, scan));
+            } else if (lastActivityTime < scan.getLimitDate()) {
+              LOG.debug("User {} last activity ({}) is before limitDate ({}), need to compute size", username, Instant.ofEpochMilli(lastActivityTime), Instant.ofEpochMilli(scan.getLimitDate()));
+              scan.addUserFolder(child,
+                                 username,
+                                 Instant.ofEpochMilli(lastActivityTime),
+                                 computeSubFolderSize(child, username, scan));
             }
+          } else {
+            subTasks.add(new UsersFolderTask(child.getPath(), scan, container));
           }
-          if (this.totalUsersCount % 100 ==0) {
-            LOG.info("Progression : {} users folder computed",this.totalUsersCount);
-          }
-        } else {
-          subTotalSize += browserUsersFolders(child, limitDate);
+        } catch (RepositoryException e) {
+          LOG.error("Error when computing user folder size for user {}",username);
         }
-      } catch (RepositoryException e) {
-        LOG.error("Error when computing user folder size for user {}",username);
       }
+      invokeAll(subTasks);
+
+      LOG.debug("Spent {} ms to browse folder {}",System.currentTimeMillis() - startTime, path);
     }
+  }
+
+  /**
+   * @return the last login time of the user, or its creation time if the user never
+   * logged in, or {@link #USER_NOT_FOUND}. The preloaded index is used first, the
+   * organization service is only called for users created after the index.
+   * @throws Exception if the user can not be looked up
+   */
+  private long getLastActivityTime(String username, UserActivityIndex userActivityIndex) throws Exception {
+    int slot = userActivityIndex.indexOf(username);
+    if (slot >= 0) {
+      long createdDate = userActivityIndex.getCreatedDate(slot);
+      long lastLoginDate = userActivityIndex.getLastLoginDate(slot);
+      return isConnected(createdDate, lastLoginDate) ? lastLoginDate : createdDate;
+    }
+    User user = findUser(username);
+    if (user == null) {
+      return USER_NOT_FOUND;
+    }
+    return isConnected(user) ? user.getLastLoginTime().getTime() : user.getCreatedDate().getTime();
+  }
 
-    LOG.debug("Spent {} ms to browse folder {}",System.currentTimeMillis() - startTime, path);
-    return subTotalSize;
+  /**
+   * @return true if the user has not been active since the limit date, or no
+   *         longer exists
+   * @throws Exception if the user can not be looked up, its folder must then be
+   *           kept
+   */
+  public boolean isInactiveSince(String username, long limitDate) throws Exception {
+    User user = findUser(username);
+    if (user == null) {
+      return true;
+    }
+    long lastActivityTime = isConnected(user) ? user.getLastLoginTime().getTime() : user.getCreatedDate().getTime();
+    return lastActivityTime < limitDate;
   }
 
-  private User getUser(String username) {
+  /**
+   * @return the user, null only if it does not exist
+   * @throws Exception if the organization service fails, which never means the
+   *           user does not exist
+   */
+  private User findUser(String username) throws Exception {
     RequestLifeCycle.begin(ExoContainerContext.getCurrentContainer());
     try {
       return organizationService.getUserHandler().findUserByName(username,UserStatus.ANY);
-    } catch (Exception e) {
-      LOG.error("Unable to find user {}",username);
-      return null;
     } finally {
       RequestLifeCycle.end();
     }
@@ -146,28 +349,41 @@ public class ComputeUserFolderSizeService implements ResourceContainer {
     return (user.getLastLoginTime() != null && !user.getCreatedDate().equals(user.getLastLoginTime()));
   }
 
-  private int computeSubFolderSize(Node node) throws RepositoryException {
-    NodeIterator childNodes = node.getNodes();
-    int size = 0;
-    while (childNodes.hasNext()){
-      Node currentNode = (Node) childNodes.next();
+  private boolean isConnected(long createdDate, long lastLoginDate) {
+    return lastLoginDate != UserActivityIndex.NEVER && createdDate != lastLoginDate;
+  }
+
+  /**
+   * @return the size of the files of the whole subtree of the folder
+   */
+  private long computeSubFolderSize(Node node, String username, UserFolderScan scan) throws RepositoryException {
+    long[] size = new long[1];
+    treeWalker.walk(node, (currentNode, depth) -> {
+      if (depth == 0) {
+        return true;
+      }
       if (currentNode.isNodeType("nt:file")) {
         Node content=currentNode.getNode("jcr:content");
-        size += getContentSize(content);
-      } else if (currentNode.isNodeType("nt:folder") || currentNode.isNodeType("nt:unstructured")) {
-        computeSubFolderSize(currentNode);
+        long fileSize = contentSizeResolver.getContentSize(content, scan.getProbeStatistics());
+        size[0] += fileSize;
+        if (scan.getAnalytics() != null) {
+          scan.getAnalytics().addFile(StorageAnalytics.getMimeType(content), getAgeInDays(currentNode), "user:" + username, fileSize, 0);
+        }
+        return false;
       }
-    }
-    return size;
+      return currentNode.isNodeType("nt:folder") || currentNode.isNodeType("nt:unstructured");
+    }, scan.getProgress());
+    return size[0];
   }
 
-  public int getContentSize(Node content) throws RepositoryException {
-    try {
-      return content.getProperty("jcr:data").getValue().getStream().readAllBytes().length;
-    } catch (Exception e) {
-      LOG.error("Unable to compute size for node {}", content.getPath());
-      return 0;
+  /**
+   * @return the number of days since the file was modified, null if unknown
+   */
+  private Long getAgeInDays(Node file) throws RepositoryException {
+    if (!file.hasProperty("exo:lastModifiedDate")) {
+      return null;
     }
+    return TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - file.getProperty("exo:lastModifiedDate").getDate().getTimeInMillis());
   }
 
   public static String humanReadableByteCountBin(long bytes) {
@@ -0,0 +1,99 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValuesParam;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Resolves the size of <code>jcr:content</code> nodes by chaining {@link SizeProbe}s,
+ * from the cheapest to the most expensive one. The probes chain can be changed with
+ * the values-param <code>size.probes</code>, listing the probe classes in order.
+ */
+public class ContentSizeResolver {
+
+  private static final Log   LOG               = ExoLogger.getLogger(ContentSizeResolver.class);
+
+  public static final String SIZE_PROBES_PARAM = "size.probes";
+
+  private final List<SizeProbe> probes;
+
+  private final List<String>    probeNames;
+
+  public ContentSizeResolver(InitParams initParams) {
+    this(createProbes(initParams));
+  }
+
+  protected ContentSizeResolver(List<SizeProbe> probes) {
+    this.probes = Collections.unmodifiableList(new ArrayList<>(probes));
+    List<String> names = new ArrayList<>();
+    for (SizeProbe probe : probes) {
+      names.add(probe.getName());
+    }
+    this.probeNames = Collections.unmodifiableList(names);
+    LOG.info("Content size probes : {}", probeNames);
+  }
+
+  public SizeProbeStatistics newStatistics() {
+    return new SizeProbeStatistics(probeNames);
+  }
+
+  /**
+   * @param content the <code>jcr:content</code> node
+   * @param statistics the statistics of the current computation
+   * @return the size in bytes of the content, 0 if no probe was able to resolve it
+   */
+  public long getContentSize(Node content, SizeProbeStatistics statistics) throws RepositoryException {
+    Property data;
+    try {
+      data = content.getProperty("jcr:data");
+    } catch (RepositoryException e) {
+      LOG.error("Unable to compute size for node {}", content.getPath());
+      statistics.unresolved();
+      return 0;
+    }
+    for (int i = 0; i < probes.size(); i++) {
+      SizeProbe probe = probes.get(i);
+      try {
+        long size = probe.probe(data);
+        if (size >= 0) {
+          statistics.resolved(i);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Size of {} resolved by probe {} : {} bytes", content.getPath(), probe.getName(), size);
+          }
+          return size;
+        }
+      } catch (Exception e) {
+        LOG.debug("Probe {} failed for node {}", probe.getName(), content.getPath(), e);
+      }
+    }
+    LOG.error("Unable to compute size for node {}", content.getPath());
+    statistics.unresolved();
+    return 0;
+  }
+
+  private static List<SizeProbe> createProbes(InitParams initParams) {
+    ValuesParam probesParam = initParams == null ? null : initParams.getValuesParam(SIZE_PROBES_PARAM);
+    if (probesParam == null || probesParam.getValues().isEmpty()) {
+      return Arrays.asList(new PropertyLengthSizeProbe(), new ValueStorageSizeProbe(), new StreamingSizeProbe());
+    }
+    List<SizeProbe> probes = new ArrayList<>();
+    for (String className : probesParam.getValues()) {
+      try {
+        probes.add((SizeProbe) Class.forName(className.trim()).getDeclaredConstructor().newInstance());
+      } catch (Exception e) {
+        throw new IllegalStateException("Unable to instantiate size probe " + className, e);
+      }
+    }
+    return probes;
+  }
+}
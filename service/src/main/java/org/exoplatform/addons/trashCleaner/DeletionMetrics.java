@@ -0,0 +1,115 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, errors and latencies of each {@link DeletionPhase}. A run has its own
+ * metrics, which also record into the parent ones, cumulated since startup.
+ */
+public class DeletionMetrics {
+
+  /**
+   * A timed phase, which may fail.
+   */
+  @FunctionalInterface
+  public interface Phase {
+    void run() throws Exception;
+  }
+
+  private final DeletionMetrics    parent;
+
+  private final LongAdder[]        errors     = new LongAdder[DeletionPhase.values().length];
+
+  private final LatencyHistogram[] histograms = new LatencyHistogram[DeletionPhase.values().length];
+
+  public DeletionMetrics() {
+    this(null);
+  }
+
+  public DeletionMetrics(DeletionMetrics parent) {
+    this.parent = parent;
+    for (int i = 0; i < histograms.length; i++) {
+      errors[i] = new LongAdder();
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * Runs the phase and records its latency, and its error if it fails.
+   */
+  public void time(DeletionPhase phase, Phase action) throws Exception {
+    long startTime = System.nanoTime();
+    boolean error = true;
+    try {
+      action.run();
+      error = false;
+    } finally {
+      record(phase, (System.nanoTime() - startTime) / 1000, error);
+    }
+  }
+
+  public void record(DeletionPhase phase, long micros, boolean error) {
+    histograms[phase.ordinal()].record(micros);
+    if (error) {
+      errors[phase.ordinal()].increment();
+    }
+    if (parent != null) {
+      parent.record(phase, micros, error);
+    }
+  }
+
+  public long getCount(DeletionPhase phase) {
+    return histograms[phase.ordinal()].getCount();
+  }
+
+  public long getErrors(DeletionPhase phase) {
+    return errors[phase.ordinal()].sum();
+  }
+
+  /**
+   * @return the latency percentile in µs
+   */
+  public long getPercentile(DeletionPhase phase, double percentile) {
+    return histograms[phase.ordinal()].getPercentile(percentile);
+  }
+
+  public long getMax(DeletionPhase phase) {
+    return histograms[phase.ordinal()].getMax();
+  }
+
+  /**
+   * Clears the metrics in place, so the runs holding them keep recording into
+   * them. The parent metrics are not cleared.
+   */
+  public void reset() {
+    for (int i = 0; i < histograms.length; i++) {
+      errors[i].reset();
+      histograms[i].reset();
+    }
+  }
+
+  /**
+   * @return a table with one line per phase, latencies in ms
+   */
+  public String toTable() {
+    StringBuilder table = new StringBuilder(String.format("%-10s %10s %8s %10s %10s %10s %10s%n",
+                                                          "phase",
+                                                          "count",
+                                                          "errors",
+                                                          "p50(ms)",
+                                                          "p95(ms)",
+                                                          "p99(ms)",
+                                                          "max(ms)"));
+    for (DeletionPhase phase : DeletionPhase.values()) {
+      table.append(String.format("%-10s %10d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                                 phase.name().toLowerCase(),
+                                 getCount(phase),
+                                 getErrors(phase),
+                                 getPercentile(phase, 50) / 1000d,
+                                 getPercentile(phase, 95) / 1000d,
+                                 getPercentile(phase, 99) / 1000d,
+                                 getMax(phase) / 1000d));
+    }
+    return table.toString();
+  }
+}
@@ -0,0 +1,23 @@
+package org.exoplatform.addons.trashCleaner;
+
+/**
+ * Phases of a trash item deletion, measured by {@link DeletionMetrics}.
+ */
+public enum DeletionPhase {
+  /** Traversal of the subtree to find what must be cleaned */
+  COLLECT,
+  /** Removal of a chunk of versions of a versionable node */
+  VERSIONS,
+  /** Removal of a relation pointing into the subtree */
+  REFERENCES,
+  /** Removal of the actions of an actionable node */
+  ACTIONS,
+  /** Removal of the subtree root thumbnail */
+  THUMBNAIL,
+  /** Removal of the audit entries */
+  AUDIT,
+  /** Removal of the subtree root in the session */
+  REMOVE,
+  /** Session save */
+  SAVE
+}
@@ -0,0 +1,123 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.exoplatform.commons.utils.ISO8601;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+
+/**
+ * Selects the expired trash items with an indexed query instead of loading all
+ * the trash children. An item is expired when it is an <code>exo:restoreLocation</code>
+ * modified before the expiration date, or when it has no modification date at all.
+ * <p>
+ * Results are ordered by modification date and read by pages. As expired items are
+ * removed between two pages, the caller gives as offset the number of selected
+ * items which are still in the trash (skipped or failed), not the number of items
+ * already read.
+ */
+public class ExpiredTrashItemQuery {
+
+  private final Session session;
+
+  private final String  statement;
+
+  private final int     pageSize;
+
+  public ExpiredTrashItemQuery(Session session, String trashPath, long expirationTime, int pageSize) {
+    this(session,
+         trashItems(trashPath) + " AND ((jcr:mixinTypes = 'exo:restoreLocation' AND exo:lastModifiedDate < "
+             + timestamp(expirationTime) + ") OR exo:lastModifiedDate IS NULL) ORDER BY exo:lastModifiedDate ASC",
+         pageSize);
+  }
+
+  private ExpiredTrashItemQuery(Session session, String statement, int pageSize) {
+    this.session = session;
+    this.statement = statement;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * @return the query of the items modified in [from, to[
+   */
+  public static ExpiredTrashItemQuery forRange(Session session, String trashPath, long from, long to, int pageSize) {
+    return new ExpiredTrashItemQuery(session,
+                                     trashItems(trashPath) + " AND jcr:mixinTypes = 'exo:restoreLocation' AND exo:lastModifiedDate >= "
+                                         + timestamp(from) + " AND exo:lastModifiedDate < " + timestamp(to)
+                                         + " ORDER BY exo:lastModifiedDate ASC",
+                                     pageSize);
+  }
+
+  /**
+   * @return the query of the items without modification date
+   */
+  public static ExpiredTrashItemQuery undated(Session session, String trashPath, int pageSize) {
+    return new ExpiredTrashItemQuery(session, trashItems(trashPath) + " AND exo:lastModifiedDate IS NULL", pageSize);
+  }
+
+  /**
+   * @return the modification date of the oldest item, -1 if no item has a date
+   */
+  public static long getOldestDate(Session session, String trashPath) throws RepositoryException {
+    QueryImpl query = (QueryImpl) session.getWorkspace()
+                                         .getQueryManager()
+                                         .createQuery(trashItems(trashPath)
+                                             + " AND jcr:mixinTypes = 'exo:restoreLocation' AND exo:lastModifiedDate IS NOT NULL"
+                                             + " ORDER BY exo:lastModifiedDate ASC", Query.SQL);
+    query.setLimit(1);
+    NodeIterator nodes = query.execute().getNodes();
+    return nodes.hasNext() ? nodes.nextNode().getProperty("exo:lastModifiedDate").getDate().getTimeInMillis() : -1;
+  }
+
+  /**
+   * The trash path is the only value of the statements which does not come from
+   * this class, all of them are built from this condition.
+   */
+  private static String trashItems(String trashPath) {
+    String pattern = likePattern(trashPath);
+    return "SELECT * FROM nt:base WHERE jcr:path LIKE " + pattern.replace("{0}", "/%") + " AND NOT jcr:path LIKE "
+        + pattern.replace("{0}", "/%/%");
+  }
+
+  /**
+   * @return the LIKE pattern of the given path followed by a {0} placeholder
+   *         for the wildcards, as a quoted literal : the quotes of the path are
+   *         doubled, its LIKE wildcards and escape characters are escaped, with
+   *         an ESCAPE clause only when there is one, so the usual paths give the
+   *         same statement as before
+   */
+  static String likePattern(String path) {
+    boolean escaped = path.indexOf('%') >= 0 || path.indexOf('_') >= 0 || path.indexOf('\\') >= 0;
+    String pattern = escaped ? path.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") : path;
+    return "'" + pattern.replace("'", "''") + "{0}'" + (escaped ? " ESCAPE '\\'" : "");
+  }
+
+  private static String timestamp(long time) {
+    Calendar date = Calendar.getInstance();
+    date.setTimeInMillis(time);
+    return "TIMESTAMP '" + ISO8601.format(date) + "'";
+  }
+
+  /**
+   * @param offset number of selected items to skip
+   * @return the identifiers of the next page of expired items, empty when there is no more item
+   */
+  public List<String> getPage(long offset) throws RepositoryException {
+    QueryImpl query = (QueryImpl) session.getWorkspace().getQueryManager().createQuery(statement, Query.SQL);
+    query.setOffset(offset);
+    query.setLimit(pageSize);
+    NodeIterator nodes = query.execute().getNodes();
+    List<String> identifiers = new ArrayList<>(pageSize);
+    while (nodes.hasNext()) {
+      identifiers.add(((NodeImpl) nodes.nextNode()).getIdentifier());
+    }
+    return identifiers;
+  }
+}
@@ -0,0 +1,80 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a long running operation, updated by the operation and read by the
+ * status endpoint. It also carries the cooperative cancellation flag, which the
+ * operation checks between items.
+ */
+public class JobProgress {
+
+  private final LongAdder itemsScanned = new LongAdder();
+
+  private final LongAdder bytes        = new LongAdder();
+
+  private volatile long   totalItems   = -1;
+
+  private volatile long   startTime    = System.currentTimeMillis();
+
+  private volatile boolean cancelled;
+
+  public void start() {
+    startTime = System.currentTimeMillis();
+  }
+
+  public void addItems(long count) {
+    itemsScanned.add(count);
+  }
+
+  public void addBytes(long count) {
+    bytes.add(count);
+  }
+
+  /**
+   * @param totalItems the expected number of items, -1 if unknown
+   */
+  public void setTotalItems(long totalItems) {
+    this.totalItems = totalItems;
+  }
+
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public long getItemsScanned() {
+    return itemsScanned.sum();
+  }
+
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  public long getTotalItems() {
+    return totalItems;
+  }
+
+  /**
+   * @return the number of items scanned per second since the start
+   */
+  public double getRate() {
+    long elapsed = System.currentTimeMillis() - startTime;
+    return elapsed <= 0 ? 0 : getItemsScanned() * 1000d / elapsed;
+  }
+
+  /**
+   * @return the estimated remaining time in ms, -1 if the total is unknown
+   */
+  public long getEta() {
+    double rate = getRate();
+    long total = totalItems;
+    if (total < 0 || rate <= 0) {
+      return -1;
+    }
+    return (long) (Math.max(0, total - getItemsScanned()) * 1000 / rate);
+  }
+}
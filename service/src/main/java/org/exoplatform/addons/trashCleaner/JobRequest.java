@@ -0,0 +1,127 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.time.Instant;
+
+/**
+ * Parameters of a job submitted to the REST API, each one used by some job
+ * types only. The values are parsed by the job factories, an invalid value
+ * throws an {@link IllegalArgumentException} whose message is returned to the
+ * client.
+ */
+public class JobRequest {
+
+  private final String  type;
+
+  private final String  date;
+
+  private final String  target;
+
+  private final long    budget;
+
+  private final String  lifetime;
+
+  private final boolean dryRun;
+
+  private final int     keep;
+
+  private final boolean analytics;
+
+  private final String  snapshot;
+
+  public JobRequest(String type,
+                    String date,
+                    String target,
+                    long budget,
+                    String lifetime,
+                    boolean dryRun,
+                    int keep,
+                    boolean analytics,
+                    String snapshot) {
+    this.type = type;
+    this.date = date;
+    this.target = target;
+    this.budget = budget;
+    this.lifetime = lifetime;
+    this.dryRun = dryRun;
+    this.keep = keep;
+    this.analytics = analytics;
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * @return a request with the default values of all the parameters
+   */
+  public static JobRequest of(String type) {
+    return new JobRequest(type, null, null, 0, null, true, -1, false, null);
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * @return the date users must not have connected since, two years ago by
+   *         default
+   */
+  public Instant getLimitDate() {
+    try {
+      return ComputeUserFolderSizeService.getLimitDate(date);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid date " + date);
+    }
+  }
+
+  /**
+   * @return the number of bytes to reclaim, 0 if none is given
+   */
+  public long getTargetBytes() {
+    try {
+      return target == null ? 0 : SpaceTargetCleaner.parseSize(target);
+    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Invalid target " + target);
+    }
+  }
+
+  public boolean hasTarget() {
+    return target != null;
+  }
+
+  /**
+   * @return the time budget in minutes, 0 or less if none is given
+   */
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return the number of days after which trash items expire,
+   *         trashcleaner.lifetime by default
+   */
+  public long getLifetimeDays() {
+    String days = lifetime != null ? lifetime : System.getProperty("trashcleaner.lifetime", "30");
+    try {
+      return Long.parseLong(days);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid lifetime " + days);
+    }
+  }
+
+  public boolean isDryRun() {
+    return dryRun;
+  }
+
+  /**
+   * @return the number of versions to keep, negative if none is given
+   */
+  public int getKeep() {
+    return keep;
+  }
+
+  public boolean isAnalytics() {
+    return analytics;
+  }
+
+  public String getSnapshot() {
+    return snapshot;
+  }
+}
@@ -0,0 +1,20 @@
+package org.exoplatform.addons.trashCleaner;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * Reads the binary length from the property metadata, without opening the stream.
+ */
+public class PropertyLengthSizeProbe implements SizeProbe {
+
+  @Override
+  public String getName() {
+    return "length";
+  }
+
+  @Override
+  public long probe(Property data) throws RepositoryException {
+    return data.getLength();
+  }
+}
@@ -0,0 +1,151 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Per-item report of a scan, written while the scan is running : each record is
+ * written and flushed as soon as it is produced, nothing is buffered. When the
+ * client goes away, the scan is cancelled.
+ * <p>
+ * Records can be written from several threads.
+ */
+public class ScanReport {
+
+  private static final Log LOG = ExoLogger.getLogger(ScanReport.class);
+
+  public enum Format {
+    NDJSON("application/x-ndjson"), CSV("text/csv");
+
+    private final String mediaType;
+
+    Format(String mediaType) {
+      this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+      return mediaType;
+    }
+
+    /**
+     * @return the format with the given name, case insensitive, or null if the
+     *         name is null or empty
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    public static Format parse(String name) {
+      if (name == null || name.isEmpty()) {
+        return null;
+      }
+      return Format.valueOf(name.toUpperCase());
+    }
+  }
+
+  private final Writer      writer;
+
+  private final Format      format;
+
+  private final String[]    columns;
+
+  private final JobProgress progress;
+
+  private long              records;
+
+  /**
+   * @param progress the progress of the scan, cancelled if the report can no
+   *          longer be written
+   */
+  public ScanReport(OutputStream output, Format format, JobProgress progress, String... columns) {
+    this.writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+    this.format = format;
+    this.progress = progress;
+    this.columns = columns;
+    if (format == Format.CSV) {
+      write(String.join(",", columns));
+    }
+  }
+
+  /**
+   * @param values the values of the columns, strings, numbers or null
+   */
+  public synchronized void record(Object... values) {
+    StringBuilder line = new StringBuilder();
+    if (format == Format.NDJSON) {
+      line.append('{');
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0) {
+          line.append(',');
+        }
+        line.append('"').append(columns[i]).append("\":");
+        appendJson(line, values[i]);
+      }
+      line.append('}');
+    } else {
+      for (int i = 0; i < columns.length; i++) {
+        if (i > 0) {
+          line.append(',');
+        }
+        appendCsv(line, values[i]);
+      }
+    }
+    write(line.toString());
+    records++;
+  }
+
+  public synchronized long getRecords() {
+    return records;
+  }
+
+  private void write(String line) {
+    if (progress.isCancelled()) {
+      return;
+    }
+    try {
+      writer.write(line);
+      writer.write('\n');
+      writer.flush();
+    } catch (IOException e) {
+      LOG.warn("Unable to write scan report, the scan is cancelled : {}", e.getMessage());
+      progress.cancel();
+    }
+  }
+
+  static void appendJson(StringBuilder line, Object value) {
+    if (value == null) {
+      line.append("null");
+    } else if (value instanceof Number) {
+      line.append(value);
+    } else {
+      line.append('"');
+      String string = value.toString();
+      for (int i = 0; i < string.length(); i++) {
+        char c = string.charAt(i);
+        if (c == '"' || c == '\\') {
+          line.append('\\').append(c);
+        } else if (c < 0x20) {
+          line.append(String.format("\\u%04x", (int) c));
+        } else {
+          line.append(c);
+        }
+      }
+      line.append('"');
+    }
+  }
+
+  private static void appendCsv(StringBuilder line, Object value) {
+    if (value == null) {
+      return;
+    }
+    String string = value.toString();
+    if (string.indexOf(',') >= 0 || string.indexOf('"') >= 0 || string.indexOf('\n') >= 0) {
+      line.append('"').append(string.replace("\"", "\"\"")).append('"');
+    } else {
+      line.append(string);
+    }
+  }
+}
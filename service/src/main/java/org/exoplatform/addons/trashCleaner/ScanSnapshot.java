@@ -0,0 +1,352 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Compact binary snapshot of a scan : one entry per trash item or user folder,
+ * with its identifier, path, sizes, date and flags. Snapshots are written
+ * sequentially, in a temporary file renamed when complete, and read through a
+ * memory mapping with a single reusable cursor, so reading creates no object per
+ * entry but its strings.
+ * <p>
+ * Layout : a header (magic, version, kind, creation time, limit date, number of
+ * entries) followed by the entries (identifier and path as length prefixed UTF-8,
+ * size, versions size, date, flags). Strings longer than 65535 bytes do not fit
+ * their length prefix, the entries holding one are not written. The whole file
+ * is checked when opened, so a corrupt snapshot is rejected before any entry is
+ * executed.
+ */
+public class ScanSnapshot {
+
+  private static final Log LOG                 = ExoLogger.getLogger(ScanSnapshot.class);
+
+  private static final int MAGIC               = 0x54435353;
+
+  private static final int FORMAT_VERSION      = 1;
+
+  private static final int COUNT_OFFSET        = 4 + 4 + 1 + 8 + 8;
+
+  private static final int HEADER_SIZE         = COUNT_OFFSET + 8;
+
+  private static final int MAX_STRING_LENGTH   = 0xFFFF;
+
+  /** Size of an entry with empty strings */
+  private static final int MIN_ENTRY_SIZE      = 2 + 2 + 8 + 8 + 8 + 1;
+
+  /** Trash item moved from a restorable location */
+  public static final byte FLAG_RESTORABLE     = 1;
+
+  /** User folder of a user which no longer exists */
+  public static final byte FLAG_USER_NOT_FOUND = 2;
+
+  public enum Kind {
+    TRASH, USER_FOLDERS
+  }
+
+  private final Path             file;
+
+  private final Kind             kind;
+
+  private final long             createdAt;
+
+  private final long             limitDate;
+
+  private final long             count;
+
+  private final MappedByteBuffer buffer;
+
+  private ScanSnapshot(Path file, MappedByteBuffer buffer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+      throw new IOException(file + " is not a scan snapshot");
+    }
+    int version = buffer.getInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException(file + " has an unsupported snapshot format version " + version);
+    }
+    int kindIndex = buffer.get();
+    if (kindIndex < 0 || kindIndex >= Kind.values().length) {
+      throw new IOException(file + " has an unknown snapshot kind " + kindIndex);
+    }
+    this.kind = Kind.values()[kindIndex];
+    this.createdAt = buffer.getLong();
+    this.limitDate = buffer.getLong();
+    this.count = buffer.getLong();
+    if (count < 0 || count > (buffer.capacity() - HEADER_SIZE) / MIN_ENTRY_SIZE) {
+      throw new IOException(file + " is corrupt : " + count + " entries can not fit in " + buffer.capacity() + " bytes");
+    }
+    checkEntries();
+  }
+
+  /**
+   * Checks that the entries exactly fill the file, without decoding their strings.
+   */
+  private void checkEntries() throws IOException {
+    ByteBuffer entries = buffer.duplicate();
+    entries.position(HEADER_SIZE);
+    for (long i = 0; i < count; i++) {
+      for (int string = 0; string < 2; string++) {
+        if (entries.remaining() < 2) {
+          throw new IOException(file + " is corrupt : entry " + i + " is truncated");
+        }
+        int length = entries.getShort() & 0xFFFF;
+        if (entries.remaining() < length) {
+          throw new IOException(file + " is corrupt : entry " + i + " is truncated");
+        }
+        entries.position(entries.position() + length);
+      }
+      if (entries.remaining() < MIN_ENTRY_SIZE - 4) {
+        throw new IOException(file + " is corrupt : entry " + i + " is truncated");
+      }
+      entries.position(entries.position() + MIN_ENTRY_SIZE - 4);
+    }
+    if (entries.hasRemaining()) {
+      throw new IOException(file + " is corrupt : " + entries.remaining() + " bytes after the last entry");
+    }
+  }
+
+  /**
+   * Maps a snapshot file in memory and checks it, snapshots are limited to 2 GB.
+   *
+   * @throws IOException if the file is not a complete snapshot
+   */
+  public static ScanSnapshot open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new ScanSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * @param limitDate the expiration time of the trash items or the inactivity
+   *          limit date of the users, entries older than it are to be deleted
+   * @throws java.nio.file.FileAlreadyExistsException if the snapshot is
+   *           already being written
+   */
+  public static Writer create(Path file, Kind kind, long limitDate) throws IOException {
+    return new Writer(file, kind, limitDate);
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public long getLimitDate() {
+    return limitDate;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return a cursor on the entries, positioned before the first one
+   */
+  public Cursor cursor() {
+    ByteBuffer entries = buffer.duplicate();
+    entries.position(HEADER_SIZE);
+    return new Cursor(entries, count);
+  }
+
+  @Override
+  public String toString() {
+    return "{\"kind\":\"" + kind + "\",\"createdAt\":" + createdAt + ",\"limitDate\":" + limitDate + ",\"entries\":" + count + "}";
+  }
+
+  /**
+   * Reads the entries one by one, the getters return the current entry.
+   */
+  public static class Cursor {
+    private final ByteBuffer entries;
+
+    private long             remaining;
+
+    private String           identifier;
+
+    private String           path;
+
+    private long             size;
+
+    private long             versionsSize;
+
+    private long             date;
+
+    private byte             flags;
+
+    private Cursor(ByteBuffer entries, long count) {
+      this.entries = entries;
+      this.remaining = count;
+    }
+
+    /**
+     * @return false when there is no more entry
+     */
+    public boolean next() {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      identifier = readString(entries);
+      path = readString(entries);
+      size = entries.getLong();
+      versionsSize = entries.getLong();
+      date = entries.getLong();
+      flags = entries.get();
+      return true;
+    }
+
+    public String getIdentifier() {
+      return identifier;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getVersionsSize() {
+      return versionsSize;
+    }
+
+    /**
+     * @return the trash date of the item or the last activity date of the user,
+     *         -1 if unknown
+     */
+    public long getDate() {
+      return date;
+    }
+
+    public boolean hasFlag(byte flag) {
+      return (flags & flag) != 0;
+    }
+
+    private static String readString(ByteBuffer entries) {
+      byte[] bytes = new byte[entries.getShort() & 0xFFFF];
+      entries.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Writes a snapshot sequentially, entries can be added from several threads.
+   * The snapshot file only appears when the writer is closed.
+   */
+  public static class Writer implements AutoCloseable {
+    private final Path             file;
+
+    private final Path             tempFile;
+
+    private final FileOutputStream fileOutput;
+
+    private final DataOutputStream output;
+
+    private long                   count;
+
+    private long                   skipped;
+
+    private Writer(Path file, Kind kind, long limitDate) throws IOException {
+      this.file = file;
+      this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+      Files.createDirectories(file.getParent());
+      // fails if another writer is writing the same snapshot
+      Files.createFile(tempFile);
+      this.fileOutput = new FileOutputStream(tempFile.toFile());
+      this.output = new DataOutputStream(new BufferedOutputStream(fileOutput, 64 * 1024));
+      output.writeInt(MAGIC);
+      output.writeInt(FORMAT_VERSION);
+      output.writeByte(kind.ordinal());
+      output.writeLong(System.currentTimeMillis());
+      output.writeLong(limitDate);
+      output.writeLong(0);
+    }
+
+    /**
+     * @param date the trash date of the item or the last activity date of the
+     *          user, -1 if unknown
+     * @return false if the entry is not written, as its identifier or path is
+     *         longer than 65535 bytes in UTF-8
+     */
+    public synchronized boolean add(String identifier, String path, long size, long versionsSize, long date, byte flags) throws IOException {
+      byte[] identifierBytes = identifier.getBytes(StandardCharsets.UTF_8);
+      byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+      if (identifierBytes.length > MAX_STRING_LENGTH || pathBytes.length > MAX_STRING_LENGTH) {
+        LOG.warn("Entry {} is not written in snapshot {}, its path or identifier is too long", identifier, file);
+        skipped++;
+        return false;
+      }
+      writeString(identifierBytes);
+      writeString(pathBytes);
+      output.writeLong(size);
+      output.writeLong(versionsSize);
+      output.writeLong(date);
+      output.writeByte(flags);
+      count++;
+      return true;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    public synchronized long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the number of entries not written as too long
+     */
+    public synchronized long getSkipped() {
+      return skipped;
+    }
+
+    /**
+     * Completes the snapshot, the file is then available.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      output.flush();
+      ByteBuffer countBuffer = ByteBuffer.allocate(8).putLong(0, count);
+      fileOutput.getChannel().write(countBuffer, COUNT_OFFSET);
+      output.close();
+      Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the incomplete snapshot.
+     */
+    public synchronized void abort() throws IOException {
+      output.close();
+      Files.deleteIfExists(tempFile);
+    }
+
+    private void writeString(byte[] bytes) throws IOException {
+      output.writeShort(bytes.length);
+      output.write(bytes);
+    }
+  }
+}
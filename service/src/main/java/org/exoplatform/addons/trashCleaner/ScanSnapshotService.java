@@ -0,0 +1,354 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.cms.documents.TrashService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.SessionImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Scan once, delete later : the trash and user folders scans write a
+ * {@link ScanSnapshot}, which the cleaner and the user folders purge then
+ * execute without scanning again. Each entry is checked against the repository
+ * before its deletion, so items restored or users active again since the
+ * snapshot are kept. Snapshots of different days are compared to show the
+ * growth of the trash without walking the repository.
+ */
+public class ScanSnapshotService {
+
+  private static final Log                   LOG                = ExoLogger.getLogger(ScanSnapshotService.class);
+
+  public static final String                 DIRECTORY_PROPERTY = "trashcleaner.snapshot.dir";
+
+  private static final String                EXTENSION          = ".snapshot";
+
+  private static final Pattern               SNAPSHOT_ID        = Pattern.compile("[A-Za-z0-9-]+");
+
+  private static final DateTimeFormatter     ID_FORMATTER       = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+  private final ComputeTrashSizeService      computeTrashSizeService;
+
+  private final ComputeUserFolderSizeService computeUserFolderSizeService;
+
+  private final UserFolderPurgeService       userFolderPurgeService;
+
+  private final Path                         directory;
+
+  public ScanSnapshotService(ComputeTrashSizeService computeTrashSizeService,
+                             ComputeUserFolderSizeService computeUserFolderSizeService,
+                             UserFolderPurgeService userFolderPurgeService) {
+    this.computeTrashSizeService = computeTrashSizeService;
+    this.computeUserFolderSizeService = computeUserFolderSizeService;
+    this.userFolderPurgeService = userFolderPurgeService;
+    String defaultDirectory = System.getProperty("exo.data.dir", System.getProperty("java.io.tmpdir")) + "/trash-cleaner/snapshots";
+    this.directory = Paths.get(System.getProperty(DIRECTORY_PROPERTY, defaultDirectory));
+  }
+
+  /**
+   * Scans the trash into a new snapshot.
+   *
+   * @param lifetime the number of days after which a trash item is deleted when
+   *          the snapshot is executed
+   * @return the result message, with the snapshot id
+   */
+  public String snapshotTrash(long lifetime, JobProgress progress) throws IOException {
+    long expirationTime = System.currentTimeMillis() - lifetime * 24 * 60 * 60 * 1000;
+    TrashService trashService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(TrashService.class);
+    ScanSnapshot.Writer writer = newSnapshot("trash", ScanSnapshot.Kind.TRASH, expirationTime);
+    String id = getId(writer.getFile());
+    TrashSizeScan scan;
+    try {
+      scan = computeTrashSizeService.scan(trashService.getTrashHomeNode(), progress, null, null, writer);
+    } catch (RuntimeException e) {
+      writer.abort();
+      throw e;
+    }
+    if (progress.isCancelled()) {
+      writer.abort();
+      return "Trash snapshot cancelled";
+    }
+    writer.close();
+    String result = "Trash snapshot " + id + " written : " + writer.getCount() + " trash items ("
+        + writer.getSkipped() + " skipped as too long), "
+        + ComputeTrashSizeService.humanReadableByteCountBin(scan.getSize()) + " and "
+        + ComputeTrashSizeService.humanReadableByteCountBin(scan.getVersionHistorySize()) + " of versions";
+    LOG.info(result);
+    return result;
+  }
+
+  /**
+   * Scans the folders of the users not connected since the limit date into a new
+   * snapshot.
+   *
+   * @return the result message, with the snapshot id
+   */
+  public String snapshotUserFolders(Instant limitDate, JobProgress progress) throws Exception {
+    UserFolderPlan plan = new UserFolderPlan();
+    computeUserFolderSizeService.computeUserFolderSize(limitDate, progress, null, plan);
+    if (progress.isCancelled()) {
+      return "User folders snapshot cancelled";
+    }
+    ScanSnapshot.Writer writer = newSnapshot("userFolders", ScanSnapshot.Kind.USER_FOLDERS, limitDate.toEpochMilli());
+    String id = getId(writer.getFile());
+    try {
+      for (int i = 0; i < plan.size(); i++) {
+        long lastActivity = plan.getLastActivity(i);
+        writer.add(plan.getIdentifier(i),
+                   plan.getPath(i),
+                   plan.getSize(i),
+                   0,
+                   lastActivity,
+                   lastActivity < 0 ? ScanSnapshot.FLAG_USER_NOT_FOUND : 0);
+      }
+    } catch (IOException e) {
+      writer.abort();
+      throw e;
+    }
+    writer.close();
+    String result = "User folders snapshot " + id + " written : " + writer.getCount() + " user folders ("
+        + writer.getSkipped() + " skipped as too long), "
+        + ComputeTrashSizeService.humanReadableByteCountBin(plan.getTotalSize());
+    LOG.info(result);
+    return result;
+  }
+
+  /**
+   * Deletes the trash items or the user folders of a snapshot which are still to
+   * be deleted.
+   *
+   * @return the result message
+   */
+  public String execute(String id, JobProgress progress) throws IOException, RepositoryException {
+    ScanSnapshot snapshot = open(id);
+    LOG.info("Execute snapshot {} : {}", id, snapshot);
+    if (snapshot.getKind() == ScanSnapshot.Kind.TRASH) {
+      return executeTrash(snapshot, progress);
+    }
+    return executeUserFolders(snapshot, progress);
+  }
+
+  private String executeTrash(ScanSnapshot snapshot, JobProgress progress) throws RepositoryException {
+    long startTime = System.currentTimeMillis();
+    ExoContainer container = ExoContainerContext.getCurrentContainer();
+    Node trashNode = container.getComponentInstanceOfType(TrashService.class).getTrashHomeNode();
+    String trashPath = trashNode.getPath();
+    String workspace = trashNode.getSession().getWorkspace().getName();
+    int batchSize = Integer.parseInt(System.getProperty(TrashCleanerJob.BATCH_SIZE_PROPERTY, "1"));
+    int pageSize = Integer.parseInt(System.getProperty(TrashCleanerJob.PAGE_SIZE_PROPERTY, "1000"));
+    TrashNodeCleaner cleaner = TrashNodeCleaner.fromContainer(container);
+    TrashCleanerCounters counters = new TrashCleanerCounters();
+    AdaptiveThrottle throttle = AdaptiveThrottle.fromSystemProperties();
+    TrashBatchDeleter batchDeleter = new TrashBatchDeleter(cleaner, workspace, batchSize, counters, throttle);
+    long skipped = 0;
+    progress.setTotalItems(snapshot.getCount());
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, cleaner.getRepositoryService().getCurrentRepository());
+      ScanSnapshot.Cursor cursor = snapshot.cursor();
+      while (cursor.next() && !progress.isCancelled()) {
+        progress.addItems(1);
+        if (cursor.getDate() < 0 || cursor.getDate() >= snapshot.getLimitDate()
+            || !cursor.hasFlag(ScanSnapshot.FLAG_RESTORABLE)) {
+          continue;
+        }
+        counters.incrementChecked();
+        if (!isStillExpired(session, cursor.getIdentifier(), trashPath, snapshot.getLimitDate())) {
+          skipped++;
+          continue;
+        }
+        if (throttle != null) {
+          try {
+            throttle.acquire();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.cancel();
+            break;
+          }
+        }
+        batchDeleter.add(cursor.getIdentifier(), cursor.getSize() + cursor.getVersionsSize());
+        if (counters.getChecked() % pageSize == 0) {
+          session.refresh(false);
+        }
+      }
+      batchDeleter.flush();
+    } finally {
+      sessionProvider.close();
+      // also when the run failed after some deletions
+      if (counters.getDeleted() > 0) {
+        SizeResultCache.invalidate(container);
+      }
+    }
+    // the metrics of this run only, the cleaner also records them into the global ones
+    DeletionMetrics runMetrics = cleaner.getMetrics();
+    LOG.info("Snapshot execution deletion metrics :\n" + runMetrics.toTable());
+    String result = (progress.isCancelled() ? "Cancelled. " : "") + counters.getDeleted() + " trash items deleted, "
+        + counters.getFailed() + " failures, " + skipped + " skipped as restored or trashed again since the snapshot, "
+        + ComputeTrashSizeService.humanReadableByteCountBin(counters.getDeletedBytes()) + " freed, execution time "
+        + (System.currentTimeMillis() - startTime) + " ms";
+    LOG.info(result);
+    return result;
+  }
+
+  /**
+   * @return true if the item is still in the trash and expired
+   */
+  private boolean isStillExpired(Session session, String identifier, String trashPath, long expirationTime) throws RepositoryException {
+    Node item;
+    try {
+      item = ((SessionImpl) session).getNodeByIdentifier(identifier);
+    } catch (ItemNotFoundException e) {
+      return false;
+    }
+    return item.getPath().startsWith(trashPath + "/") && TrashCleanerJob.isExpired(item, expirationTime);
+  }
+
+  /**
+   * The folders are resolved again by identifier and their user looked up again
+   * by the purge, right before each deletion.
+   */
+  private String executeUserFolders(ScanSnapshot snapshot, JobProgress progress) throws RepositoryException {
+    UserFolderPlan plan = new UserFolderPlan();
+    ScanSnapshot.Cursor cursor = snapshot.cursor();
+    while (cursor.next() && !progress.isCancelled()) {
+      plan.add(cursor.getIdentifier(), cursor.getPath(), cursor.getDate(), cursor.getSize());
+    }
+    if (progress.isCancelled()) {
+      return "Cancelled";
+    }
+    return userFolderPurgeService.purge(plan, snapshot.getLimitDate(), progress);
+  }
+
+  /**
+   * Compares two snapshots of the same kind entry by entry.
+   *
+   * @return the items added, removed and resized between both snapshots
+   */
+  public String diff(String fromId, String toId) throws IOException {
+    ScanSnapshot from = open(fromId);
+    ScanSnapshot to = open(toId);
+    if (from.getKind() != to.getKind()) {
+      throw new IllegalArgumentException("Snapshots " + fromId + " and " + toId + " are not of the same kind");
+    }
+    Map<String, Long> fromSizes = new HashMap<>();
+    ScanSnapshot.Cursor cursor = from.cursor();
+    long fromBytes = 0;
+    while (cursor.next()) {
+      long size = cursor.getSize() + cursor.getVersionsSize();
+      fromSizes.put(cursor.getIdentifier(), size);
+      fromBytes += size;
+    }
+    long added = 0;
+    long addedBytes = 0;
+    long resized = 0;
+    long resizedBytes = 0;
+    long toBytes = 0;
+    cursor = to.cursor();
+    while (cursor.next()) {
+      long size = cursor.getSize() + cursor.getVersionsSize();
+      toBytes += size;
+      Long previousSize = fromSizes.remove(cursor.getIdentifier());
+      if (previousSize == null) {
+        added++;
+        addedBytes += size;
+      } else if (previousSize != size) {
+        resized++;
+        resizedBytes += size - previousSize;
+      }
+    }
+    long removedBytes = 0;
+    for (long size : fromSizes.values()) {
+      removedBytes += size;
+    }
+    return "From " + fromId + " (" + from.getCount() + " items, " + ComputeTrashSizeService.humanReadableByteCountBin(fromBytes)
+        + ") to " + toId + " (" + to.getCount() + " items, " + ComputeTrashSizeService.humanReadableByteCountBin(toBytes)
+        + ") : growth of " + ComputeTrashSizeService.humanReadableByteCountBin(toBytes - fromBytes) + ", " + added
+        + " items added (" + ComputeTrashSizeService.humanReadableByteCountBin(addedBytes) + "), " + fromSizes.size()
+        + " items removed (" + ComputeTrashSizeService.humanReadableByteCountBin(removedBytes) + "), " + resized
+        + " items resized (" + ComputeTrashSizeService.humanReadableByteCountBin(resizedBytes) + ")";
+  }
+
+  /**
+   * @return the ids of the available snapshots, oldest first
+   */
+  public List<String> list() throws IOException {
+    List<String> ids = new ArrayList<>();
+    if (!Files.isDirectory(directory)) {
+      return ids;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+      for (Path file : files) {
+        ids.add(getId(file));
+      }
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the id is invalid or the snapshot does not exist
+   */
+  public ScanSnapshot open(String id) throws IOException {
+    Path file = getFile(id);
+    if (!Files.exists(file)) {
+      throw new IllegalArgumentException("Unknown snapshot " + id);
+    }
+    return ScanSnapshot.open(file);
+  }
+
+  private Path getFile(String id) {
+    if (id == null || !SNAPSHOT_ID.matcher(id).matches()) {
+      throw new IllegalArgumentException("Invalid snapshot id " + id);
+    }
+    return directory.resolve(id + EXTENSION);
+  }
+
+  private String getId(Path file) {
+    String name = file.getFileName().toString();
+    return name.substring(0, name.length() - EXTENSION.length());
+  }
+
+  /**
+   * Starts writing a snapshot whose id is the prefix and the current time. The
+   * id of a snapshot already written or being written in the same second gets a
+   * numbered suffix, so no snapshot is overwritten.
+   */
+  private ScanSnapshot.Writer newSnapshot(String prefix, ScanSnapshot.Kind kind, long limitDate) throws IOException {
+    String baseId = prefix + "-" + LocalDateTime.now(ZoneId.systemDefault()).format(ID_FORMATTER);
+    String id = baseId;
+    for (int suffix = 2;; suffix++) {
+      Path file = getFile(id);
+      if (!Files.exists(file)) {
+        try {
+          return ScanSnapshot.create(file, kind, limitDate);
+        } catch (FileAlreadyExistsException e) {
+          LOG.debug("Snapshot {} is being written by another job", id);
+        }
+      }
+      id = baseId + "-" + suffix;
+    }
+  }
+}
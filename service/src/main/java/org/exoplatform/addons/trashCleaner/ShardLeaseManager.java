@@ -0,0 +1,423 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.lang.management.ManagementFactory;
+import java.util.Calendar;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.lock.LockException;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Distributes the {@link TrashShard}s of a cleaning run between the cluster
+ * nodes, with leases stored in the JCR under
+ * <code>/exo:applications/trashCleanerShards</code>, so no other coordinator is
+ * needed.
+ * <p>
+ * A node claims a shard which is neither done nor leased, or whose lease has
+ * expired, and holds it with a {@link Lease}, renewed by a timer every third of
+ * the lease duration whatever the time taken by a page. The holder checks that
+ * its lease is still valid before each save. When a node crashes, its shard
+ * is claimed by another node once the lease expires, and resumes from the offset
+ * saved with the last renewal. Claims and renewals are made while holding a
+ * session scoped JCR lock on the shards node, so two owners never get the same
+ * shard. This lock is only held for a few reads and one save, but a node which
+ * dies while holding it keeps it until the JCR releases the locks of its session
+ * (at the session timeout, or the lock timeout of the workspace lock manager).
+ * Meanwhile the claims and renewals of the other nodes fail after 5 seconds of
+ * retries : their runs stop and their leases expire, and the next runs resume
+ * the shards from their saved offsets.
+ * <p>
+ * Owners are identified by a name, so several managers of the same JVM, each
+ * with its own owner name, compete like cluster nodes.
+ */
+public class ShardLeaseManager {
+
+  private static final Log    LOG               = ExoLogger.getLogger(ShardLeaseManager.class);
+
+  private static final String APPLICATIONS_NODE = "exo:applications";
+
+  private static final String SHARDS_NODE       = "trashCleanerShards";
+
+  private static final int    LOCK_ATTEMPTS     = 50;
+
+  private static final long   LOCK_RETRY_DELAY  = 100;
+
+  private interface LockedOperation<T> {
+    T run(Node shardsNode) throws RepositoryException;
+  }
+
+  private final RepositoryService repositoryService;
+
+  private final String            workspace;
+
+  private final String            owner;
+
+  private final long              leaseDuration;
+
+  private final LongSupplier      clock;
+
+  /**
+   * @param owner name of the cluster node
+   * @param leaseDuration duration of a lease in ms
+   */
+  public ShardLeaseManager(RepositoryService repositoryService, String workspace, String owner, long leaseDuration) {
+    this(repositoryService, workspace, owner, leaseDuration, System::currentTimeMillis);
+  }
+
+  /**
+   * @param clock the current time in ms, shared by all the owners, as the lease
+   *          expiries are compared with it
+   */
+  public ShardLeaseManager(RepositoryService repositoryService,
+                           String workspace,
+                           String owner,
+                           long leaseDuration,
+                           LongSupplier clock) {
+    this.repositoryService = repositoryService;
+    this.workspace = workspace;
+    this.owner = owner;
+    this.leaseDuration = leaseDuration;
+    this.clock = clock;
+  }
+
+  /**
+   * @return the name of this JVM, unique in the cluster
+   */
+  public static String getDefaultOwner() {
+    return ManagementFactory.getRuntimeMXBean().getName();
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * Joins the current run, or starts a new one by splitting the expired items in
+   * shards. A run completed less than a lease duration ago is not started again,
+   * as it was started by the same cron on another node.
+   *
+   * @return false if there is nothing to do
+   */
+  public boolean preparePlan(String trashPath, long expirationTime, int shards) throws RepositoryException {
+    return withLock(shardsNode -> {
+      if (shardsNode.hasProperty("created")) {
+        boolean completed = isCompleted(shardsNode);
+        if (!completed) {
+          LOG.info("Join trash cleaning run of {}", shardsNode.getProperty("created").getDate().toInstant());
+          return true;
+        }
+        if (shardsNode.getProperty("created").getDate().getTimeInMillis() > clock.getAsLong() - leaseDuration) {
+          LOG.info("Trash cleaning run of {} already completed by the cluster",
+                   shardsNode.getProperty("created").getDate().toInstant());
+          return false;
+        }
+      }
+      NodeIterator previousShards = shardsNode.getNodes();
+      while (previousShards.hasNext()) {
+        previousShards.nextNode().remove();
+      }
+      long oldest = ExpiredTrashItemQuery.getOldestDate(shardsNode.getSession(), trashPath);
+      if (oldest >= 0 && oldest < expirationTime) {
+        long span = Math.max(1, (expirationTime - oldest + shards - 1) / shards);
+        for (int i = 0; i < shards; i++) {
+          long from = oldest + i * span;
+          if (from >= expirationTime) {
+            break;
+          }
+          addShard(shardsNode, "shard" + i, from, Math.min(expirationTime, from + span));
+        }
+      }
+      addShard(shardsNode, "undated", TrashShard.UNDATED, TrashShard.UNDATED);
+      Calendar created = Calendar.getInstance();
+      created.setTimeInMillis(clock.getAsLong());
+      shardsNode.setProperty("created", created);
+      shardsNode.setProperty("expirationTime", expirationTime);
+      shardsNode.getSession().save();
+      LOG.info("New trash cleaning run split in {} shards", shardsNode.getNodes().getSize());
+      return true;
+    });
+  }
+
+  /**
+   * @return a shard leased to this owner, or null if all the shards are done or
+   *         leased to other owners
+   */
+  public TrashShard claim() throws RepositoryException {
+    return withLock(shardsNode -> {
+      long now = clock.getAsLong();
+      NodeIterator shards = shardsNode.getNodes();
+      while (shards.hasNext()) {
+        Node shard = shards.nextNode();
+        if (shard.getProperty("done").getBoolean()) {
+          continue;
+        }
+        boolean leased = shard.hasProperty("owner") && !owner.equals(shard.getProperty("owner").getString())
+            && shard.getProperty("leaseExpiry").getLong() > now;
+        if (leased) {
+          continue;
+        }
+        if (shard.hasProperty("owner") && !owner.equals(shard.getProperty("owner").getString())) {
+          LOG.info("Lease of {} on trash shard {} expired, take it over", shard.getProperty("owner").getString(), shard.getName());
+        }
+        shard.setProperty("owner", owner);
+        shard.setProperty("leaseExpiry", now + leaseDuration);
+        shardsNode.getSession().save();
+        return new TrashShard(shard.getName(),
+                              shard.getProperty("from").getLong(),
+                              shard.getProperty("to").getLong(),
+                              shard.getProperty("offset").getLong());
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Extends the lease and saves the offset reached.
+   *
+   * @return false if the lease has been lost, the shard must then be left
+   */
+  public boolean renew(TrashShard shard, long offset) throws RepositoryException {
+    return withLock(shardsNode -> {
+      Node node = getOwnedShard(shardsNode, shard);
+      if (node == null) {
+        return false;
+      }
+      node.setProperty("offset", offset);
+      node.setProperty("leaseExpiry", clock.getAsLong() + leaseDuration);
+      shardsNode.getSession().save();
+      return true;
+    });
+  }
+
+  /**
+   * Holds the lease of a claimed shard, renewed by a timer until the returned
+   * lease is closed. The lease is renewed once before returning.
+   */
+  public Lease hold(TrashShard shard, long offset) throws RepositoryException {
+    Lease lease = new Lease(shard, offset);
+    lease.renew();
+    lease.start();
+    return lease;
+  }
+
+  /**
+   * Releases the lease of a shard which is not finished, so another owner can
+   * resume it from the given offset.
+   */
+  public void release(TrashShard shard, long offset) throws RepositoryException {
+    finish(shard, offset, false);
+  }
+
+  public void complete(TrashShard shard, long offset) throws RepositoryException {
+    finish(shard, offset, true);
+  }
+
+  /**
+   * Lease held on a claimed shard, renewed with the last offset reached by a
+   * timer thread. It is valid until a renewal fails or until the lease duration
+   * elapsed since the start of the last successful renewal, which is never later
+   * than the expiry seen by the other owners.
+   */
+  public class Lease implements AutoCloseable {
+    private final TrashShard               shard;
+
+    private final ScheduledExecutorService timer;
+
+    private volatile long                  offset;
+
+    private volatile long                  renewedAt;
+
+    private volatile long                  validUntil;
+
+    private volatile boolean               lost;
+
+    private Lease(TrashShard shard, long offset) {
+      this.shard = shard;
+      this.offset = offset;
+      this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable,
+                                                                                     "TrashShardLease-" + shard.getName()));
+    }
+
+    private void start() {
+      long period = Math.max(1, leaseDuration / 3);
+      timer.scheduleWithFixedDelay(() -> {
+        try {
+          renew();
+        } catch (Exception e) {
+          LOG.warn("Unable to renew the lease on trash shard {}, it will expire", shard.getName(), e);
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Extends the lease and saves the offset reached.
+     *
+     * @return false if the lease has been lost
+     */
+    public synchronized boolean renew() throws RepositoryException {
+      if (lost) {
+        return false;
+      }
+      long startTime = clock.getAsLong();
+      if (ShardLeaseManager.this.renew(shard, offset)) {
+        renewedAt = startTime;
+        validUntil = startTime + leaseDuration;
+        return true;
+      }
+      lost = true;
+      return false;
+    }
+
+    /**
+     * @param offset the offset reached, saved with the next renewal
+     */
+    public void setOffset(long offset) {
+      this.offset = offset;
+    }
+
+    /**
+     * @return true while no other owner can take the shard over, to check before
+     *         each save
+     */
+    public boolean isValid() {
+      return !lost && clock.getAsLong() < validUntil;
+    }
+
+    public TrashShard getShard() {
+      return shard;
+    }
+
+    /**
+     * @return the time the last successful renewal started at
+     */
+    public long getRenewedAt() {
+      return renewedAt;
+    }
+
+    /**
+     * Stops the renewals, the lease itself is left as is until released,
+     * completed or expired.
+     */
+    @Override
+    public void close() {
+      timer.shutdownNow();
+      try {
+        timer.awaitTermination(leaseDuration, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void finish(TrashShard shard, long offset, boolean done) throws RepositoryException {
+    withLock(shardsNode -> {
+      Node node = getOwnedShard(shardsNode, shard);
+      if (node != null) {
+        node.setProperty("offset", offset);
+        node.setProperty("done", done);
+        node.setProperty("owner", (String) null);
+        node.setProperty("leaseExpiry", 0L);
+        shardsNode.getSession().save();
+      }
+      return null;
+    });
+  }
+
+  private Node getOwnedShard(Node shardsNode, TrashShard shard) throws RepositoryException {
+    if (!shardsNode.hasNode(shard.getName())) {
+      return null;
+    }
+    Node node = shardsNode.getNode(shard.getName());
+    if (!node.hasProperty("owner") || !owner.equals(node.getProperty("owner").getString())) {
+      LOG.warn("Lease on trash shard {} lost", shard.getName());
+      return null;
+    }
+    return node;
+  }
+
+  private boolean isCompleted(Node shardsNode) throws RepositoryException {
+    NodeIterator shards = shardsNode.getNodes();
+    while (shards.hasNext()) {
+      if (!shards.nextNode().getProperty("done").getBoolean()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void addShard(Node shardsNode, String name, long from, long to) throws RepositoryException {
+    Node shard = shardsNode.addNode(name, "nt:unstructured");
+    shard.setProperty("from", from);
+    shard.setProperty("to", to);
+    shard.setProperty("offset", 0L);
+    shard.setProperty("done", false);
+  }
+
+  /**
+   * Runs the operation while holding the lock of the shards node, with a new
+   * system session.
+   */
+  private <T> T withLock(LockedOperation<T> operation) throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Node shardsNode = getShardsNode(session);
+      for (int attempt = 1;; attempt++) {
+        try {
+          shardsNode.lock(false, true);
+          break;
+        } catch (LockException e) {
+          if (attempt >= LOCK_ATTEMPTS) {
+            throw e;
+          }
+          try {
+            Thread.sleep(LOCK_RETRY_DELAY);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for trash shards lock", ie);
+          }
+        }
+      }
+      try {
+        session.refresh(false);
+        return operation.run(shardsNode);
+      } finally {
+        session.refresh(false);
+        shardsNode.unlock();
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private Node getShardsNode(Session session) throws RepositoryException {
+    Node root = session.getRootNode();
+    Node applications = root.hasNode(APPLICATIONS_NODE) ? root.getNode(APPLICATIONS_NODE)
+                                                        : root.addNode(APPLICATIONS_NODE, "nt:unstructured");
+    if (applications.hasNode(SHARDS_NODE)) {
+      return applications.getNode(SHARDS_NODE);
+    }
+    try {
+      Node shardsNode = applications.addNode(SHARDS_NODE, "nt:unstructured");
+      shardsNode.addMixin("mix:lockable");
+      session.save();
+      return shardsNode;
+    } catch (ItemExistsException e) {
+      // created at the same time by another node
+      session.refresh(false);
+      return session.getRootNode().getNode(APPLICATIONS_NODE).getNode(SHARDS_NODE);
+    }
+  }
+}
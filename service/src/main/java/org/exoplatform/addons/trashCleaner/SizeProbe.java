@@ -0,0 +1,23 @@
+package org.exoplatform.addons.trashCleaner;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * Strategy used to find the size of a binary <code>jcr:data</code> property.
+ * Probes are chained by {@link ContentSizeResolver}, the first one returning a
+ * positive or zero size wins.
+ */
+public interface SizeProbe {
+
+  /**
+   * @return the name of the strategy, used in logs and statistics
+   */
+  String getName();
+
+  /**
+   * @param data the <code>jcr:data</code> property of a <code>jcr:content</code> node
+   * @return the size in bytes, or -1 if this probe is not able to resolve it
+   */
+  long probe(Property data) throws RepositoryException;
+}
@@ -0,0 +1,48 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts, for one computation, how many nodes were resolved by each probe.
+ */
+public class SizeProbeStatistics {
+
+  private final List<String>    probeNames;
+
+  private final AtomicLongArray resolved;
+
+  private final AtomicLong      unresolved = new AtomicLong();
+
+  public SizeProbeStatistics(List<String> probeNames) {
+    this.probeNames = probeNames;
+    this.resolved = new AtomicLongArray(probeNames.size());
+  }
+
+  public void resolved(int probeIndex) {
+    resolved.incrementAndGet(probeIndex);
+  }
+
+  public void unresolved() {
+    unresolved.incrementAndGet();
+  }
+
+  public long getResolved(String probeName) {
+    int index = probeNames.indexOf(probeName);
+    return index < 0 ? 0 : resolved.get(index);
+  }
+
+  public long getUnresolved() {
+    return unresolved.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < probeNames.size(); i++) {
+      builder.append(probeNames.get(i)).append('=').append(resolved.get(i)).append(", ");
+    }
+    return builder.append("unresolved=").append(unresolved.get()).toString();
+  }
+}
@@ -0,0 +1,99 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Keeps the results of the trash and user folders size computations in an eXo
+ * cache, keyed by operation and parameters. The time to live is set by the cache
+ * configuration. Concurrent identical requests wait for the same computation
+ * instead of starting their own. The whole cache is invalidated when trash items
+ * or user folders are deleted.
+ */
+public class SizeResultCache {
+
+  private static final Log                                      LOG        = ExoLogger.getLogger(SizeResultCache.class);
+
+  public static final String                                    CACHE_NAME = "trashcleaner.SizeResultCache";
+
+  private final ExoCache<String, CachedSizeResult>              cache;
+
+  private final Map<String, CompletableFuture<CachedSizeResult>> inFlight   = new ConcurrentHashMap<>();
+
+  private final AtomicLong                                      generation = new AtomicLong();
+
+  public SizeResultCache(CacheService cacheService) {
+    this.cache = cacheService.getCacheInstance(CACHE_NAME);
+  }
+
+  /**
+   * Invalidates the cache of the container, if any.
+   */
+  public static void invalidate(ExoContainer container) {
+    SizeResultCache sizeResultCache = container.getComponentInstanceOfType(SizeResultCache.class);
+    if (sizeResultCache != null) {
+      sizeResultCache.invalidate();
+    }
+  }
+
+  /**
+   * @param key the operation and its parameters
+   * @param refresh ignores the cached result, the new one replaces it
+   * @param computation computes the result when it is not cached and no identical
+   *          computation is running
+   */
+  public CachedSizeResult get(String key, boolean refresh, Callable<String> computation) throws Exception {
+    if (!refresh) {
+      CachedSizeResult cached = cache.get(key);
+      if (cached != null) {
+        return cached.withSource(CachedSizeResult.Source.CACHE);
+      }
+    }
+    CompletableFuture<CachedSizeResult> future = new CompletableFuture<>();
+    CompletableFuture<CachedSizeResult> running = inFlight.putIfAbsent(key, future);
+    if (running != null) {
+      LOG.info("Wait for the running computation of {}", key);
+      try {
+        return running.get().withSource(CachedSizeResult.Source.COALESCED);
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+    long startGeneration = generation.get();
+    try {
+      CachedSizeResult result = new CachedSizeResult(computation.call(),
+                                                     System.currentTimeMillis(),
+                                                     CachedSizeResult.Source.COMPUTED);
+      if (generation.get() == startGeneration) {
+        cache.put(key, result);
+      }
+      future.complete(result);
+      return result;
+    } catch (Throwable e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * Removes all the cached results. Results of the computations running meanwhile
+   * are not cached, as they may have read deleted nodes.
+   */
+  public void invalidate() {
+    generation.incrementAndGet();
+    cache.clearCache();
+    LOG.debug("Size results cache invalidated");
+  }
+}
@@ -0,0 +1,351 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.services.cms.documents.TrashService;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.SessionImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Frees a target amount of space as fast as possible : the expired trash items
+ * are ranked by reclaimable size, version history included, and deleted largest
+ * first until the target is reached or the time budget is exhausted.
+ * <p>
+ * The trash is ranked once. Only the largest items needed to cover the target are
+ * kept while ranking, in a min-heap bounded by <code>trashcleaner.space.candidates</code>,
+ * so memory does not depend on the trash size. When the target is not reached
+ * with them, the remaining items, all smaller, are deleted in the order of the
+ * trash, items of size 0 included. Their sizes are not kept from the ranking, so
+ * that memory stays bounded : the size of each of them is computed again before
+ * its deletion, or read again from the trash size index when it is enabled.
+ */
+public class SpaceTargetCleaner {
+
+  private static final Log              LOG                  = ExoLogger.getLogger(SpaceTargetCleaner.class);
+
+  public static final String            CANDIDATES_PROPERTY  = "trashcleaner.space.candidates";
+
+  private static final int              PAGE_SIZE            = 1000;
+
+  private final ComputeTrashSizeService computeTrashSizeService;
+
+  private final TrashSizeIndex          trashSizeIndex;
+
+  private final ExoContainer            container;
+
+  private final RepositoryService       repositoryService;
+
+  private final int                     maxCandidates;
+
+  private final int                     batchSize;
+
+  /**
+   * @param trashSizeIndex the index read for the item sizes, or null to compute them
+   */
+  public SpaceTargetCleaner(ComputeTrashSizeService computeTrashSizeService,
+                            TrashSizeIndex trashSizeIndex,
+                            ExoContainer container) {
+    this.computeTrashSizeService = computeTrashSizeService;
+    this.trashSizeIndex = trashSizeIndex;
+    this.container = container;
+    this.repositoryService = container.getComponentInstanceOfType(RepositoryService.class);
+    this.maxCandidates = Integer.parseInt(System.getProperty(CANDIDATES_PROPERTY, "1000"));
+    this.batchSize = Integer.parseInt(System.getProperty(TrashCleanerJob.BATCH_SIZE_PROPERTY, "1"));
+  }
+
+  /**
+   * @param targetBytes the bytes to reclaim, 0 for no target
+   * @param expirationTime only the items moved to the trash before this time are deleted
+   * @param deadline the time when the run stops, 0 for no time budget
+   * @return the bytes reclaimed against the target
+   */
+  public String reclaim(long targetBytes, long expirationTime, long deadline, JobProgress progress) throws RepositoryException {
+    long target = targetBytes > 0 ? targetBytes : Long.MAX_VALUE;
+    long startTime = System.currentTimeMillis();
+    TrashNodeCleaner cleaner = TrashNodeCleaner.fromContainer(container);
+    TrashCleanerCounters counters = new TrashCleanerCounters();
+    AdaptiveThrottle throttle = AdaptiveThrottle.fromSystemProperties();
+    Node trashNode = container.getComponentInstanceOfType(TrashService.class).getTrashHomeNode();
+    String workspace = trashNode.getSession().getWorkspace().getName();
+    Reclaim reclaim = new Reclaim(new TrashBatchDeleter(cleaner, workspace, batchSize, counters, throttle),
+                                  counters,
+                                  throttle,
+                                  target,
+                                  deadline,
+                                  progress);
+    LOG.info("Reclaim {} from the trash, largest items first",
+             targetBytes > 0 ? ComputeTrashSizeService.humanReadableByteCountBin(targetBytes) : "all the space");
+
+    List<Candidate> candidates = rank(trashNode.getPath(), workspace, expirationTime, target, deadline, progress);
+    for (Candidate candidate : candidates) {
+      if (!reclaim.add(candidate.identifier, candidate.size)) {
+        break;
+      }
+    }
+    reclaim.flush();
+    if (!reclaim.isDone()) {
+      Set<String> ranked = new HashSet<>();
+      candidates.forEach(candidate -> ranked.add(candidate.identifier));
+      deleteRemaining(trashNode.getPath(), workspace, expirationTime, ranked, reclaim, progress);
+    }
+
+    if (counters.getDeleted() > 0) {
+      SizeResultCache.invalidate(container);
+    }
+    long reclaimed = reclaim.getReclaimed();
+    String stopReason = reclaimed >= target ? "target reached"
+                                            : progress.isCancelled() ? "cancelled"
+                                                                     : isStopped(deadline, progress) ? "time budget exhausted"
+                                                                                                     : "no more expired items";
+    LOG.info("Space target cleaner deletion metrics :\n" + cleaner.getMetrics().toTable());
+    String result = "Reclaimed " + ComputeTrashSizeService.humanReadableByteCountBin(reclaimed)
+        + (targetBytes > 0 ? " of a target of " + ComputeTrashSizeService.humanReadableByteCountBin(targetBytes) + " ("
+            + (reclaimed * 100 / targetBytes) + "%)" : "")
+        + ", " + stopReason + ". " + counters.getDeleted() + " trash items deleted, " + counters.getFailed() + " failures, "
+        + candidates.size() + " largest items ranked, execution time " + (System.currentTimeMillis() - startTime) + " ms";
+    LOG.info(result);
+    return result;
+  }
+
+  /**
+   * @return the largest expired items needed to cover the target, at most
+   *         maxCandidates, largest first
+   */
+  private List<Candidate> rank(String trashPath,
+                               String workspace,
+                               long expirationTime,
+                               long target,
+                               long deadline,
+                               JobProgress progress) throws RepositoryException {
+    PriorityQueue<Candidate> heap = new PriorityQueue<>(Comparator.comparingLong(candidate -> candidate.size));
+    long heapSize = 0;
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      ExpiredTrashItemQuery query = new ExpiredTrashItemQuery(session, trashPath, expirationTime, PAGE_SIZE);
+      long offset = 0;
+      List<String> page = query.getPage(offset);
+      while (!page.isEmpty() && !isStopped(deadline, progress)) {
+        for (String identifier : page) {
+          long size = getReclaimableSize(session, identifier, expirationTime, progress);
+          if (size <= 0 || (heap.size() >= maxCandidates && heap.peek().size >= size)) {
+            continue;
+          }
+          heap.add(new Candidate(identifier, size));
+          heapSize += size;
+          // the smallest item is dropped when there are too many, or when the
+          // others already cover the target
+          while (heap.size() > maxCandidates || (heap.size() > 1 && heapSize - heap.peek().size >= target)) {
+            heapSize -= heap.poll().size;
+          }
+        }
+        offset += page.size();
+        session.refresh(false);
+        page = query.getPage(offset);
+      }
+    } finally {
+      sessionProvider.close();
+    }
+    List<Candidate> candidates = new ArrayList<>(heap);
+    candidates.sort(Comparator.comparingLong((Candidate candidate) -> candidate.size).reversed());
+    LOG.info("{} largest expired trash items ranked", candidates.size());
+    return candidates;
+  }
+
+  /**
+   * Deletes the expired items left after the ranked ones in the order of the
+   * trash, as they are all smaller, until the target is reached. The items of
+   * size 0, never ranked, are deleted too.
+   */
+  private void deleteRemaining(String trashPath,
+                               String workspace,
+                               long expirationTime,
+                               Set<String> ranked,
+                               Reclaim reclaim,
+                               JobProgress progress) throws RepositoryException {
+    LOG.info("Target not reached with the largest items, delete the remaining expired items in trash order");
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      ExpiredTrashItemQuery query = new ExpiredTrashItemQuery(session, trashPath, expirationTime, PAGE_SIZE);
+      long offset = 0;
+      List<String> page = query.getPage(offset);
+      while (!page.isEmpty() && !reclaim.isDone()) {
+        long deletedBefore = reclaim.getDeleted();
+        for (String identifier : page) {
+          if (ranked.contains(identifier)) {
+            continue;
+          }
+          long size = getReclaimableSize(session, identifier, expirationTime, progress);
+          if (size >= 0 && !reclaim.add(identifier, size)) {
+            break;
+          }
+        }
+        reclaim.flush();
+        // deleted items are no longer selected, the next page starts after the kept ones
+        offset += page.size() - (reclaim.getDeleted() - deletedBefore);
+        session.refresh(false);
+        page = query.getPage(offset);
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * @return the reclaimable size of the item, read from the trash size index when
+   *         available, -1 if the item must not be deleted
+   */
+  private long getReclaimableSize(Session session, String identifier, long expirationTime, JobProgress progress) {
+    try {
+      Node item = ((SessionImpl) session).getNodeByIdentifier(identifier);
+      progress.addItems(1);
+      if (!TrashCleanerJob.isExpired(item, expirationTime)) {
+        return -1;
+      }
+      long size = trashSizeIndex == null ? -1 : trashSizeIndex.getReclaimableSize(session, identifier);
+      if (size < 0) {
+        size = computeTrashSizeService.scanItem(item, new JobProgress()).getReclaimableSize();
+      }
+      return size;
+    } catch (ItemNotFoundException e) {
+      return -1;
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to compute the size of trash item {}", identifier, e);
+      return -1;
+    }
+  }
+
+  /**
+   * @param size a number of bytes, with an optional K, M, G or T binary suffix
+   * @throws NumberFormatException if the size is not a positive number of bytes
+   *           or does not fit in a long
+   */
+  public static long parseSize(String size) {
+    String value = size.trim().toUpperCase();
+    int unit = "KMGT".indexOf(value.charAt(value.length() - 1));
+    long number = Long.parseLong(unit < 0 ? value : value.substring(0, value.length() - 1).trim());
+    if (number < 0) {
+      throw new NumberFormatException("Negative size " + size);
+    }
+    try {
+      return unit < 0 ? number : Math.multiplyExact(number, 1L << (10 * (unit + 1)));
+    } catch (ArithmeticException e) {
+      throw new NumberFormatException("Size " + size + " is too large");
+    }
+  }
+
+  private boolean isStopped(long deadline, JobProgress progress) {
+    return progress.isCancelled() || (deadline > 0 && System.currentTimeMillis() > deadline);
+  }
+
+  /**
+   * Deletions against the target, the reclaimed bytes being those of the
+   * committed batches.
+   */
+  private class Reclaim {
+    private final TrashBatchDeleter    deleter;
+
+    private final TrashCleanerCounters counters;
+
+    private final AdaptiveThrottle     throttle;
+
+    private final long                 target;
+
+    private final long                 deadline;
+
+    private final JobProgress          progress;
+
+    private long                       queuedBytes;
+
+    private Reclaim(TrashBatchDeleter deleter,
+                    TrashCleanerCounters counters,
+                    AdaptiveThrottle throttle,
+                    long target,
+                    long deadline,
+                    JobProgress progress) {
+      this.deleter = deleter;
+      this.counters = counters;
+      this.throttle = throttle;
+      this.target = target;
+      this.deadline = deadline;
+      this.progress = progress;
+    }
+
+    /**
+     * Queues an item for deletion, the pending batch is committed as soon as the
+     * queued items would cover the target.
+     *
+     * @return false when no more item must be deleted
+     */
+    private boolean add(String identifier, long size) {
+      if (getReclaimed() + queuedBytes >= target) {
+        flush();
+      }
+      if (isDone()) {
+        return false;
+      }
+      if (throttle != null) {
+        try {
+          throttle.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          progress.cancel();
+          return false;
+        }
+      }
+      long deletedBytes = counters.getDeletedBytes();
+      deleter.add(identifier, size);
+      queuedBytes += size;
+      if (deleter.getPendingCount() == 0) {
+        queuedBytes = 0;
+        progress.addBytes(counters.getDeletedBytes() - deletedBytes);
+      }
+      return true;
+    }
+
+    private void flush() {
+      long deletedBytes = counters.getDeletedBytes();
+      deleter.flush();
+      queuedBytes = 0;
+      progress.addBytes(counters.getDeletedBytes() - deletedBytes);
+    }
+
+    private boolean isDone() {
+      return getReclaimed() >= target || isStopped(deadline, progress);
+    }
+
+    private long getReclaimed() {
+      return counters.getDeletedBytes();
+    }
+
+    private long getDeleted() {
+      return counters.getDeleted();
+    }
+  }
+
+  private static class Candidate {
+    private final String identifier;
+
+    private final long   size;
+
+    private Candidate(String identifier, long size) {
+      this.identifier = identifier;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Byte distribution of a scan by MIME type, by age bucket and by owner, filled
+ * during the scan traversal itself. Each histogram is a set of primitive counter
+ * arrays indexed by key, so the memory used depends on the number of distinct
+ * keys, not on the number of files.
+ * <p>
+ * Files can be added from several threads.
+ */
+public class StorageAnalytics {
+
+  /** Upper bounds in days of the age buckets, the last bucket has no bound */
+  private static final int[]      AGE_BUCKETS = { 7, 30, 90, 180, 365, 730 };
+
+  public static final String      UNKNOWN     = "unknown";
+
+  private final String            scope;
+
+  private final String            ageReference;
+
+  private final Histogram         byMimeType  = new Histogram();
+
+  private final Histogram         byAge       = new Histogram();
+
+  private final Histogram         byOwner     = new Histogram();
+
+  private long                    files;
+
+  private long                    bytes;
+
+  private long                    versionsBytes;
+
+  /**
+   * @param scope the scanned tree, trash or userFolders
+   * @param ageReference the event the age of a file is computed from
+   */
+  public StorageAnalytics(String scope, String ageReference) {
+    this.scope = scope;
+    this.ageReference = ageReference;
+    for (int i = 0; i <= AGE_BUCKETS.length; i++) {
+      byAge.indexOf(getAgeBucket(i));
+    }
+    byAge.indexOf(UNKNOWN);
+  }
+
+  /**
+   * @param mimeType the MIME type of the file, or null
+   * @param ageInDays the age of the file, or null if unknown
+   * @param owner the owner of the file, see {@link #getOwner(String)}
+   */
+  public synchronized void addFile(String mimeType, Long ageInDays, String owner, long size, long versionsSize) {
+    files++;
+    bytes += size;
+    versionsBytes += versionsSize;
+    byMimeType.add(mimeType == null ? UNKNOWN : mimeType, size, versionsSize);
+    byAge.add(ageInDays == null ? UNKNOWN : getAgeBucket(getAgeBucketIndex(ageInDays)), size, versionsSize);
+    byOwner.add(owner == null ? UNKNOWN : owner, size, versionsSize);
+  }
+
+  /**
+   * @return the MIME type of the content of a file, null if it has none
+   */
+  public static String getMimeType(Node content) throws RepositoryException {
+    return content.hasProperty("jcr:mimeType") ? content.getProperty("jcr:mimeType").getString() : null;
+  }
+
+  /**
+   * @param restorePath the path a trash item was moved from, or null
+   * @return space:name for the files of a space, user:name for the files of a
+   *         personal folder, other for the other paths
+   */
+  public static String getOwner(String restorePath) {
+    if (restorePath == null) {
+      return UNKNOWN;
+    }
+    String[] segments = restorePath.split("/");
+    if (segments.length > 3 && "Groups".equals(segments[1]) && "spaces".equals(segments[2])) {
+      return "space:" + segments[3];
+    }
+    if (segments.length > 2 && "Users".equals(segments[1])) {
+      for (int i = 2; i < segments.length; i++) {
+        if (!segments[i].endsWith("___")) {
+          return "user:" + segments[i];
+        }
+      }
+    }
+    return "other";
+  }
+
+  private static int getAgeBucketIndex(long ageInDays) {
+    int index = 0;
+    while (index < AGE_BUCKETS.length && ageInDays >= AGE_BUCKETS[index]) {
+      index++;
+    }
+    return index;
+  }
+
+  private static String getAgeBucket(int index) {
+    if (index == 0) {
+      return "<" + AGE_BUCKETS[0] + "d";
+    }
+    if (index == AGE_BUCKETS.length) {
+      return ">=" + AGE_BUCKETS[index - 1] + "d";
+    }
+    return AGE_BUCKETS[index - 1] + "-" + AGE_BUCKETS[index] + "d";
+  }
+
+  public synchronized long getFiles() {
+    return files;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the histograms as a JSON object
+   */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder("{\"scope\":");
+    ScanReport.appendJson(json, scope);
+    json.append(",\"computedAt\":");
+    ScanReport.appendJson(json, Instant.now().toString());
+    json.append(",\"ageReference\":");
+    ScanReport.appendJson(json, ageReference);
+    json.append(",\"files\":").append(files);
+    json.append(",\"bytes\":").append(bytes);
+    json.append(",\"versionsBytes\":").append(versionsBytes);
+    json.append(",\"byMimeType\":");
+    byMimeType.appendJson(json);
+    json.append(",\"byAge\":");
+    byAge.appendJson(json);
+    json.append(",\"byOwner\":");
+    byOwner.appendJson(json);
+    return json.append('}').toString();
+  }
+
+  /**
+   * Files, bytes and version bytes counters of each key, in parallel arrays.
+   */
+  private static class Histogram {
+    private final Map<String, Integer> keys          = new HashMap<>();
+
+    private String[]                   names         = new String[16];
+
+    private long[]                     files         = new long[16];
+
+    private long[]                     bytes         = new long[16];
+
+    private long[]                     versionsBytes = new long[16];
+
+    private int indexOf(String key) {
+      Integer index = keys.get(key);
+      if (index == null) {
+        index = keys.size();
+        if (index == names.length) {
+          names = Arrays.copyOf(names, index * 2);
+          files = Arrays.copyOf(files, index * 2);
+          bytes = Arrays.copyOf(bytes, index * 2);
+          versionsBytes = Arrays.copyOf(versionsBytes, index * 2);
+        }
+        names[index] = key;
+        keys.put(key, index);
+      }
+      return index;
+    }
+
+    private void add(String key, long size, long versionsSize) {
+      int index = indexOf(key);
+      files[index]++;
+      bytes[index] += size;
+      versionsBytes[index] += versionsSize;
+    }
+
+    private void appendJson(StringBuilder json) {
+      json.append('{');
+      for (int i = 0; i < keys.size(); i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        ScanReport.appendJson(json, names[i]);
+        json.append(":{\"files\":")
+            .append(files[i])
+            .append(",\"bytes\":")
+            .append(bytes[i])
+            .append(",\"versionsBytes\":")
+            .append(versionsBytes[i])
+            .append('}');
+      }
+      json.append('}');
+    }
+  }
+}
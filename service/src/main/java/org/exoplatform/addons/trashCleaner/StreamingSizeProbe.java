@@ -0,0 +1,36 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * Last resort probe : counts the bytes of the binary stream with a fixed buffer,
+ * so the content is never fully loaded in memory.
+ */
+public class StreamingSizeProbe implements SizeProbe {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  @Override
+  public String getName() {
+    return "stream";
+  }
+
+  @Override
+  public long probe(Property data) throws RepositoryException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long size = 0;
+    try (InputStream stream = data.getValue().getStream()) {
+      int read;
+      while ((read = stream.read(buffer)) != -1) {
+        size += read;
+      }
+    } catch (IOException e) {
+      throw new RepositoryException("Unable to read stream of " + data.getPath(), e);
+    }
+    return size;
+  }
+}
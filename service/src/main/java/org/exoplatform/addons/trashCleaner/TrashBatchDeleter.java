@@ -0,0 +1,175 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.SessionImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Deletes trash nodes by batches : one session is used for a whole batch and all
+ * its removals are committed by a single save. When the save fails, the batch is
+ * split in two halves which are retried, down to single nodes, so one bad node
+ * does not prevent the others from being removed.
+ * <p>
+ * A batch deleter is not thread safe, each worker uses its own.
+ */
+public class TrashBatchDeleter {
+
+  private static final Log           LOG         = ExoLogger.getLogger(TrashBatchDeleter.class);
+
+  private final TrashNodeCleaner     cleaner;
+
+  private final String               workspace;
+
+  private final int                  batchSize;
+
+  private final TrashCleanerCounters counters;
+
+  private final AdaptiveThrottle     throttle;
+
+  private final BooleanSupplier      canCommit;
+
+  private final List<String>         identifiers = new ArrayList<>();
+
+  private final Map<String, Long>    sizes       = new HashMap<>();
+
+  public TrashBatchDeleter(TrashNodeCleaner cleaner, String workspace, int batchSize, TrashCleanerCounters counters) {
+    this(cleaner, workspace, batchSize, counters, null);
+  }
+
+  /**
+   * @param throttle the throttle notified of the latency of each batch save, or null
+   */
+  public TrashBatchDeleter(TrashNodeCleaner cleaner,
+                           String workspace,
+                           int batchSize,
+                           TrashCleanerCounters counters,
+                           AdaptiveThrottle throttle) {
+    this(cleaner, workspace, batchSize, counters, throttle, null);
+  }
+
+  /**
+   * @param canCommit checked right before each batch save, the batch is dropped
+   *          when it returns false, for instance when the lease on the processed
+   *          shard is lost, or null
+   */
+  public TrashBatchDeleter(TrashNodeCleaner cleaner,
+                           String workspace,
+                           int batchSize,
+                           TrashCleanerCounters counters,
+                           AdaptiveThrottle throttle,
+                           BooleanSupplier canCommit) {
+    this.cleaner = cleaner;
+    this.workspace = workspace;
+    this.batchSize = batchSize;
+    this.counters = counters;
+    this.throttle = throttle;
+    this.canCommit = canCommit;
+  }
+
+  /**
+   * Adds a node to the current batch, the batch is committed when full.
+   */
+  public void add(String identifier) {
+    add(identifier, 0);
+  }
+
+  /**
+   * Adds a node with its size, counted in the deleted bytes once removed.
+   */
+  public void add(String identifier, long size) {
+    sizes.put(identifier, size);
+    identifiers.add(identifier);
+    if (identifiers.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  /**
+   * @return the number of nodes added and not committed yet
+   */
+  public int getPendingCount() {
+    return identifiers.size();
+  }
+
+  /**
+   * Commits the current batch, even if not full.
+   */
+  public void flush() {
+    if (identifiers.isEmpty()) {
+      return;
+    }
+    List<String> batch = new ArrayList<>(identifiers);
+    identifiers.clear();
+    deleteBatch(batch);
+    sizes.keySet().removeAll(batch);
+  }
+
+  private void deleteBatch(List<String> batch) {
+    if (!commitBatch(batch)) {
+      int middle = batch.size() / 2;
+      deleteBatch(batch.subList(0, middle));
+      deleteBatch(batch.subList(middle, batch.size()));
+    }
+  }
+
+  /**
+   * @return false if the batch could not be committed and must be split
+   */
+  private boolean commitBatch(List<String> batch) {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    int removed = 0;
+    long removedBytes = 0;
+    try {
+      Session session = sessionProvider.getSession(workspace, cleaner.getRepositoryService().getDefaultRepository());
+      for (String identifier : batch) {
+        Node nodeToDelete;
+        try {
+          nodeToDelete = ((SessionImpl) session).getNodeByIdentifier(identifier);
+        } catch (ItemNotFoundException ex) {
+          LOG.debug("Trash node {} no longer exists", identifier);
+          continue;
+        }
+        cleaner.cleanSubtree(nodeToDelete);
+        cleaner.getMetrics().time(DeletionPhase.REMOVE, nodeToDelete::remove);
+        removed++;
+        removedBytes += sizes.getOrDefault(identifier, 0L);
+      }
+      if (canCommit != null && !canCommit.getAsBoolean()) {
+        LOG.warn("Batch of {} trash nodes dropped, it can no longer be committed", removed);
+        return true;
+      }
+      long startTime = System.currentTimeMillis();
+      cleaner.getMetrics().time(DeletionPhase.SAVE, session::save);
+      long saveTime = System.currentTimeMillis() - startTime;
+      if (throttle != null) {
+        throttle.recordSave(saveTime);
+      }
+      LOG.info("Batch of {} trash nodes committed in {} ms", removed, saveTime);
+      counters.addDeleted(removed);
+      counters.addDeletedBytes(removedBytes);
+      return true;
+    } catch (Exception ex) {
+      if (batch.size() > 1) {
+        LOG.warn("Unable to commit batch of {} trash nodes, retry it in two halves", batch.size(), ex);
+        return false;
+      }
+      counters.incrementFailed();
+      LOG.error("Error while removing node " + batch.get(0) + " from Trash", ex);
+      return true;
+    } finally {
+      sessionProvider.close();
+    }
+  }
+}
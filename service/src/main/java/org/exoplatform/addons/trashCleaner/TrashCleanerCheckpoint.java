@@ -0,0 +1,141 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+
+/**
+ * Progress of an interrupted {@link TrashCleanerJob} run, persisted in the JCR
+ * so the next run, on any cluster node, resumes where the previous one stopped.
+ * <p>
+ * The offset is the number of already processed trash items which are still in
+ * the trash (skipped or failed) : deleted items are not part of the next selection.
+ */
+public class TrashCleanerCheckpoint {
+
+  private static final String APPLICATIONS_NODE = "exo:applications";
+
+  private static final String CHECKPOINT_NODE   = "trashCleanerCheckpoint";
+
+  private final String        selection;
+
+  private final long          offset;
+
+  private final String        lastIdentifier;
+
+  private final long          checked;
+
+  private final long          deleted;
+
+  private final long          failed;
+
+  public TrashCleanerCheckpoint(String selection,
+                                long offset,
+                                String lastIdentifier,
+                                TrashCleanerCounters counters) {
+    this(selection, offset, lastIdentifier, counters.getChecked(), counters.getDeleted(), counters.getFailed());
+  }
+
+  private TrashCleanerCheckpoint(String selection,
+                                 long offset,
+                                 String lastIdentifier,
+                                 long checked,
+                                 long deleted,
+                                 long failed) {
+    this.selection = selection;
+    this.offset = offset;
+    this.lastIdentifier = lastIdentifier;
+    this.checked = checked;
+    this.deleted = deleted;
+    this.failed = failed;
+  }
+
+  public String getSelection() {
+    return selection;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public String getLastIdentifier() {
+    return lastIdentifier;
+  }
+
+  /**
+   * @return counters initialized with the values of the interrupted runs
+   */
+  public TrashCleanerCounters toCounters() {
+    return new TrashCleanerCounters(checked, deleted, failed);
+  }
+
+  /**
+   * @return the persisted checkpoint, or null if the previous run completed
+   */
+  public static TrashCleanerCheckpoint load(RepositoryService repositoryService, String workspace) throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Node root = session.getRootNode();
+      if (!root.hasNode(APPLICATIONS_NODE) || !root.getNode(APPLICATIONS_NODE).hasNode(CHECKPOINT_NODE)) {
+        return null;
+      }
+      Node node = root.getNode(APPLICATIONS_NODE).getNode(CHECKPOINT_NODE);
+      return new TrashCleanerCheckpoint(node.getProperty("selection").getString(),
+                                        node.getProperty("offset").getLong(),
+                                        node.hasProperty("lastIdentifier") ? node.getProperty("lastIdentifier").getString() : null,
+                                        node.getProperty("checked").getLong(),
+                                        node.getProperty("deleted").getLong(),
+                                        node.getProperty("failed").getLong());
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  public void save(RepositoryService repositoryService, String workspace) throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Node root = session.getRootNode();
+      Node applications = root.hasNode(APPLICATIONS_NODE) ? root.getNode(APPLICATIONS_NODE)
+                                                          : root.addNode(APPLICATIONS_NODE, "nt:unstructured");
+      Node node = applications.hasNode(CHECKPOINT_NODE) ? applications.getNode(CHECKPOINT_NODE)
+                                                        : applications.addNode(CHECKPOINT_NODE, "nt:unstructured");
+      node.setProperty("selection", selection);
+      node.setProperty("offset", offset);
+      node.setProperty("lastIdentifier", lastIdentifier);
+      node.setProperty("checked", checked);
+      node.setProperty("deleted", deleted);
+      node.setProperty("failed", failed);
+      node.setProperty("updated", Calendar.getInstance());
+      session.save();
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  public static void clear(RepositoryService repositoryService, String workspace) throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Node root = session.getRootNode();
+      if (root.hasNode(APPLICATIONS_NODE) && root.getNode(APPLICATIONS_NODE).hasNode(CHECKPOINT_NODE)) {
+        root.getNode(APPLICATIONS_NODE).getNode(CHECKPOINT_NODE).remove();
+        session.save();
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "offset=" + offset + ", lastIdentifier=" + lastIdentifier + ", checked=" + checked + ", deleted=" + deleted
+        + ", failed=" + failed;
+  }
+}
@@ -0,0 +1,108 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link TrashCleanerJob} run, shared by all the workers of the run.
+ * Counters may have a parent, the counters of the whole run, which also records
+ * what is counted in them.
+ */
+public class TrashCleanerCounters {
+
+  private final TrashCleanerCounters parent;
+
+  private final AtomicLong checked;
+
+  private final AtomicLong deleted;
+
+  private final AtomicLong failed;
+
+  private final AtomicLong deletedBytes = new AtomicLong();
+
+  public TrashCleanerCounters() {
+    this(0, 0, 0);
+  }
+
+  public TrashCleanerCounters(long checked, long deleted, long failed) {
+    this(null, checked, deleted, failed);
+  }
+
+  /**
+   * @param parent the counters also incremented by these ones
+   */
+  public TrashCleanerCounters(TrashCleanerCounters parent) {
+    this(parent, 0, 0, 0);
+  }
+
+  private TrashCleanerCounters(TrashCleanerCounters parent, long checked, long deleted, long failed) {
+    this.parent = parent;
+    this.checked = new AtomicLong(checked);
+    this.deleted = new AtomicLong(deleted);
+    this.failed = new AtomicLong(failed);
+  }
+
+  public long incrementChecked() {
+    if (parent != null) {
+      parent.incrementChecked();
+    }
+    return checked.incrementAndGet();
+  }
+
+  public void incrementDeleted() {
+    addDeleted(1);
+  }
+
+  public void addDeleted(long count) {
+    if (parent != null) {
+      parent.addDeleted(count);
+    }
+    deleted.addAndGet(count);
+  }
+
+  public void addDeletedBytes(long bytes) {
+    if (parent != null) {
+      parent.addDeletedBytes(bytes);
+    }
+    deletedBytes.addAndGet(bytes);
+  }
+
+  public void incrementFailed() {
+    if (parent != null) {
+      parent.incrementFailed();
+    }
+    failed.incrementAndGet();
+  }
+
+  public long getChecked() {
+    return checked.get();
+  }
+
+  public long getDeleted() {
+    return deleted.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * @return the bytes of the deleted nodes, when their size was given
+   */
+  public long getDeletedBytes() {
+    return deletedBytes.get();
+  }
+
+  /**
+   * @return new counters holding the sums of these counters and the given ones
+   */
+  public TrashCleanerCounters plus(TrashCleanerCounters other) {
+    return new TrashCleanerCounters(getChecked() + other.getChecked(),
+                                    getDeleted() + other.getDeleted(),
+                                    getFailed() + other.getFailed());
+  }
+
+  @Override
+  public String toString() {
+    return "checked=" + getChecked() + ", deleted=" + getDeleted() + ", failed=" + getFailed();
+  }
+}
@@ -1,15 +1,10 @@
 package org.exoplatform.addons.trashCleaner;
 
+import org.exoplatform.container.ExoContainer;
 import org.exoplatform.container.ExoContainerContext;
-import org.exoplatform.services.cms.actions.ActionServiceContainer;
 import org.exoplatform.services.cms.documents.TrashService;
-import org.exoplatform.services.cms.relations.RelationsService;
-import org.exoplatform.services.cms.thumbnail.ThumbnailService;
 import org.exoplatform.services.jcr.RepositoryService;
 
-import org.exoplatform.ecm.webui.utils.Utils;
-import org.exoplatform.ecm.webui.utils.PermissionUtil;
-import org.exoplatform.services.jcr.core.ManageableRepository;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.jcr.impl.core.NodeImpl;
 import org.exoplatform.services.jcr.impl.core.SessionImpl;
@@ -23,8 +18,14 @@ import org.quartz.DisallowConcurrentExecution;
 import javax.jcr.*;
 import javax.jcr.nodetype.ConstraintViolationException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Romain Dénarié (romain.denarie@exoplatform.com) on 22/01/16.
@@ -34,112 +35,530 @@ public class TrashCleanerJob implements Job {
 
   private static final Log LOG = ExoLogger.getLogger(TrashCleanerJob.class);
 
+  public static final String WORKERS_PROPERTY = "trashcleaner.workers";
+
+  public static final String BATCH_SIZE_PROPERTY = "trashcleaner.batch.size";
+
+  public static final String SELECTION_PROPERTY = "trashcleaner.selection";
+
+  public static final String SELECTION_QUERY = "query";
+
+  public static final String SELECTION_CHILDREN = "children";
+
+  public static final String PAGE_SIZE_PROPERTY = "trashcleaner.page.size";
+
+  public static final String MAX_DURATION_PROPERTY = "trashcleaner.max.duration";
+
+  public static final String CLUSTER_SHARDS_PROPERTY = "trashcleaner.cluster.shards";
+
+  public static final String CLUSTER_LEASE_PROPERTY = "trashcleaner.cluster.lease";
+
+  private TrashNodeCleaner cleaner;
+
+  private long expirationTime;
+
+  private int workers;
+
+  private int batchSize;
+
+  private int pageSize;
+
+  private long deadline;
+
+  private String selection;
+
+  private String workspace;
+
+  private TrashCleanerCounters counters;
+
+  private TrashCleanerCounters restoredCounters;
+
+  private AdaptiveThrottle throttle;
+
+  private ExecutorService executor;
+
+  private volatile ShardLeaseManager.Lease lease;
+
+  private volatile boolean stalled;
+
+  private final JobProgress progress;
+
   public TrashCleanerJob() {
+    this(new JobProgress());
   }
 
+  /**
+   * @param progress progress to report to, the run stops when it is cancelled
+   */
+  public TrashCleanerJob(JobProgress progress) {
+    this.progress = progress;
+  }
+
+  public TrashCleanerCounters getCounters() {
+    return counters;
+  }
+
+  /**
+   * Scheduled run, through the {@link TrashCleanerJobManager} when available, so
+   * it never overlaps a cleaner job launched from REST on the same checkpoint and
+   * counters, and can be followed and cancelled like it.
+   */
   public void execute(JobExecutionContext context) throws JobExecutionException {
+    TrashCleanerJobManager jobManager = ExoContainerContext.getCurrentContainer()
+                                                           .getComponentInstanceOfType(TrashCleanerJobManager.class);
+    if (jobManager == null) {
+      run();
+      return;
+    }
+    AsyncJob job = jobManager.runInCurrentThread(TrashCleanerJobManager.TRASH_CLEANER, jobProgress -> {
+      TrashCleanerJob trashCleanerJob = new TrashCleanerJob(jobProgress);
+      trashCleanerJob.run();
+      return "TrashCleanerJob " + (jobProgress.isCancelled() ? "cancelled" : "done") + " : " + trashCleanerJob.getCounters();
+    });
+    if (job == null) {
+      LOG.warn("TrashCleanerJob not started, a trash cleaner job is already running");
+    }
+  }
+
+  /**
+   * Cleans the trash, reporting to the progress of this job.
+   */
+  public void run() {
     String timeLimit = System.getProperty("trashcleaner.lifetime");
     if (timeLimit == null)
       timeLimit = "30";
+    workers = Integer.parseInt(System.getProperty(WORKERS_PROPERTY, "1"));
+    batchSize = Integer.parseInt(System.getProperty(BATCH_SIZE_PROPERTY, "1"));
+    pageSize = Integer.parseInt(System.getProperty(PAGE_SIZE_PROPERTY, "1000"));
+    selection = System.getProperty(SELECTION_PROPERTY, SELECTION_QUERY);
+    long maxDuration = Long.parseLong(System.getProperty(MAX_DURATION_PROPERTY, "0"));
+    deadline = maxDuration > 0 ? System.currentTimeMillis() + maxDuration * 60 * 1000 : 0;
     LOG.info("Start TrashCleanerJob, delete nodes in trash older than " + timeLimit + " days.");
     TrashService trashService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(TrashService.class);
-    int deletedNode = 0;
     Node trashNode = trashService.getTrashHomeNode();
+    expirationTime = System.currentTimeMillis() - Long.parseLong(timeLimit) * 24 * 60 * 60 * 1000;
+    counters = new TrashCleanerCounters();
+    restoredCounters = new TrashCleanerCounters();
+    throttle = AdaptiveThrottle.fromSystemProperties();
+    TrashCleanerMetrics globalMetrics = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(TrashCleanerMetrics.class);
+    if (throttle != null) {
+      LOG.info("TrashCleanerJob is throttled, starting at " + throttle);
+      if (globalMetrics != null) {
+        globalMetrics.setThrottle(throttle);
+      }
+    }
+
+    if (workers > 1) {
+      AtomicInteger threadIndex = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(workers,
+                                              runnable -> new Thread(runnable,
+                                                                     "TrashCleanerWorker-" + threadIndex.incrementAndGet()));
+    }
 
     try {
+      workspace = trashNode.getSession().getWorkspace().getName();
+      int shards = Integer.parseInt(System.getProperty(CLUSTER_SHARDS_PROPERTY, "0"));
+      if (shards > 0) {
+        executeSharded(trashNode, shards);
+        LOG.info("TrashCleanerJob deletion metrics :\n" + getCleaner().getMetrics().toTable());
+        LOG.info("TrashCleanerJob " + (shouldStop() ? "stopped" : "done") + " on this node : " + counters);
+        return;
+      }
+      long offset = 0;
+      TrashCleanerCheckpoint checkpoint = TrashCleanerCheckpoint.load(getCleaner().getRepositoryService(), workspace);
+      if (checkpoint != null && selection.equals(checkpoint.getSelection())) {
+        LOG.info("Resume TrashCleanerJob from checkpoint : {}", checkpoint);
+        offset = checkpoint.getOffset();
+        restoredCounters = checkpoint.toCounters();
+      }
 
       if (trashNode.hasNodes()) {
-        NodeIterator childNodes = trashNode.getNodes();
-        long size = childNodes.getSize();
-        int current = 0;
-
-        while (childNodes.hasNext()) {
-          Node currentNode = (Node) childNodes.next();
-          if (!currentNode.getSession().isLive()) {
-            currentNode.getSession().refresh(false);
-          }
-          try {
-            current++;
-            if (current % 50 == 0) {
-              LOG.info("Checking node " + currentNode.getName() + " node from Trash (" + current + "/" + size + ")");
-            } else {
-              LOG.debug("Checking node " + currentNode.getName() + " node from Trash (" + current + "/" + size + ")");
-            }
-            if (currentNode.getName().equals("exo:actions") && currentNode.hasNode("trashFolder")) {
-              continue;
-            }
-            if (currentNode.hasProperty("exo:lastModifiedDate")) {
-              long dateCreated = currentNode.getProperty("exo:lastModifiedDate").getDate().getTimeInMillis();
-              if ((Calendar.getInstance().getTimeInMillis() - dateCreated > Long.parseLong(timeLimit) * 24 * 60 * 60 * 1000)
-                  && (currentNode.isNodeType("exo:restoreLocation"))) {
-                recursiveDelete(currentNode);
-//                deleteNode(currentNode);
-                deletedNode++;
-              }
-            } else {
-              recursiveDelete(currentNode);
-//              deleteNode(currentNode);
-              deletedNode++;
-            }
-          } catch (Exception ex) {
-            LOG.error("Error while removing " + currentNode.getName() + " node from Trash", ex);
-          }
+        if (SELECTION_QUERY.equals(selection)) {
+          offset = executeWithQuery(trashNode, offset);
+        } else {
+          offset = executeOnChildren(trashNode, offset);
         }
       }
+      LOG.info("TrashCleanerJob deletion metrics :\n" + getCleaner().getMetrics().toTable());
+      if (throttle != null) {
+        LOG.info("TrashCleanerJob throttle : " + throttle);
+      }
+      if (progress.isCancelled()) {
+        LOG.info("TrashCleanerJob cancelled, next run will resume from the checkpoint (" + counters + ")");
+        return;
+      }
+      if (stalled) {
+        LOG.warn("TrashCleanerJob stopped as a page of trash items could not be processed, next run will resume from the checkpoint ("
+            + counters + ")");
+        return;
+      }
+      if (shouldStop()) {
+        LOG.info("TrashCleanerJob reached its maximum duration of " + maxDuration
+            + " minutes, next run will resume from the checkpoint (" + counters + ")");
+        return;
+      }
+      TrashCleanerCheckpoint.clear(getCleaner().getRepositoryService(), workspace);
     } catch (RepositoryException ex) {
       LOG.error("Failed to get child nodes", ex);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+      if (throttle != null && globalMetrics != null) {
+        globalMetrics.setThrottle(null);
+      }
+      if (counters.getDeleted() > 0) {
+        SizeResultCache.invalidate(ExoContainerContext.getCurrentContainer());
+      }
+    }
+    LOG.info("Empty Trash folder successfully! " + counters.getDeleted() + " nodes deleted, " + counters.getFailed() + " failures"
+        + (restoredCounters.getChecked() > 0 ? ", " + restoredCounters.plus(counters) + " since the first interrupted run" : ""));
+  }
+
+  /**
+   * Reads the expired items page by page with {@link ExpiredTrashItemQuery}, so
+   * only the items to delete are loaded. Selected items which are still in the
+   * trash after a page is processed are skipped by the next query.
+   *
+   * @return the offset reached
+   */
+  private long executeWithQuery(Node trashNode, long offset) throws RepositoryException {
+    Session session = trashNode.getSession();
+    ExpiredTrashItemQuery query = new ExpiredTrashItemQuery(session, trashNode.getPath(), expirationTime, pageSize);
+    List<String> page = query.getPage(offset);
+    while (!page.isEmpty() && !shouldStop()) {
+      long deletedBefore = counters.getDeleted();
+      long nextOffset = processPage(page, offset, -1);
+      checkProgress(offset, nextOffset, deletedBefore);
+      offset = nextOffset;
+      saveCheckpoint(page, offset);
+      session.refresh(false);
+      page = query.getPage(offset);
     }
-    LOG.info("Empty Trash folder successfully! " + deletedNode + " nodes deleted");
+    return offset;
   }
 
-  public void recursiveDelete(Node node) throws Exception {
-    if (node.isNodeType("nt:folder") || node.isNodeType("nt:unstructured")) {
-      NodeIterator children = node.getNodes();
-      while (children.hasNext()) {
-        Node child = children.nextNode();
-        recursiveDelete(child);
+  /**
+   * Processes the shards claimed by this cluster node, until all the shards are
+   * done or leased by other nodes. The offset of a shard is saved with its lease,
+   * so a shard left by a crashed node is resumed by the node taking it over.
+   */
+  private void executeSharded(Node trashNode, int shards) throws RepositoryException {
+    long leaseDuration = Long.parseLong(System.getProperty(CLUSTER_LEASE_PROPERTY, "10")) * 60 * 1000;
+    ShardLeaseManager leaseManager = new ShardLeaseManager(getCleaner().getRepositoryService(),
+                                                           workspace,
+                                                           ShardLeaseManager.getDefaultOwner(),
+                                                           leaseDuration);
+    if (!leaseManager.preparePlan(trashNode.getPath(), expirationTime, shards)) {
+      return;
+    }
+    Session session = trashNode.getSession();
+    TrashShard shard;
+    while (!shouldStop() && (shard = leaseManager.claim()) != null) {
+      LOG.info("Process trash shard " + shard + " on " + leaseManager.getOwner());
+      ExpiredTrashItemQuery query = shard.createQuery(session, trashNode.getPath(), pageSize);
+      long offset = shard.getOffset();
+      boolean leased;
+      List<String> page;
+      try (ShardLeaseManager.Lease shardLease = leaseManager.hold(shard, offset)) {
+        lease = shardLease;
+        page = query.getPage(offset);
+        while (!page.isEmpty() && !shouldStop()) {
+          long deletedBefore = counters.getDeleted();
+          long nextOffset = processPage(page, offset, -1);
+          checkProgress(offset, nextOffset, deletedBefore);
+          offset = nextOffset;
+          shardLease.setOffset(offset);
+          session.refresh(false);
+          page = query.getPage(offset);
+        }
+        leased = shardLease.isValid();
+      } finally {
+        lease = null;
+      }
+      if (!leased) {
+        LOG.warn("Lease on trash shard " + shard.getName() + " expired, it is processed by another node");
+      } else if (page.isEmpty()) {
+        leaseManager.complete(shard, offset);
+      } else {
+        leaseManager.release(shard, offset);
       }
     }
-    deleteNode(node);
   }
 
-  public void deleteNode(Node node) throws Exception {
-    ActionServiceContainer actionService = ExoContainerContext.getCurrentContainer()
-                                                              .getComponentInstanceOfType(ActionServiceContainer.class);
-    ThumbnailService thumbnailService = ExoContainerContext.getCurrentContainer()
-                                                           .getComponentInstanceOfType(ThumbnailService.class);
-    RepositoryService repoService = ExoContainerContext.getCurrentContainer().getComponentInstanceOfType(RepositoryService.class);
-    SessionProvider sessionProviderForDeleteNode = SessionProvider.createSystemProvider();
-    Session sessionForDeleteNode =sessionProviderForDeleteNode.getSession("collaboration",repoService.getDefaultRepository());
-    LOG.debug("Try to delete node {}",node.getPath());
+  /**
+   * Walks all the trash children, which are checked page by page.
+   *
+   * @return the offset reached
+   */
+  private long executeOnChildren(Node trashNode, long offset) throws RepositoryException {
+    NodeIterator childNodes = trashNode.getNodes();
+    long size = childNodes.getSize();
+    progress.setTotalItems(size);
     try {
-      Node nodeToDelete = readNodeWithNewSession(node,sessionForDeleteNode);
-      try {
-        removeReferences(nodeToDelete);
-      } catch (Exception ex) {
-        LOG.error("An error occurs while removing relations for node {}", nodeToDelete.getPath(), ex);
+      childNodes.skip(offset);
+    } catch (NoSuchElementException ex) {
+      return offset;
+    }
+    List<String> page = new ArrayList<>(pageSize);
+    while (childNodes.hasNext() && !shouldStop()) {
+      page.add(((NodeImpl) childNodes.nextNode()).getIdentifier());
+      if (page.size() >= pageSize) {
+        offset = processPage(page, offset, size);
+        saveCheckpoint(page, offset);
+        page = new ArrayList<>(pageSize);
       }
+    }
+    if (!page.isEmpty() && !shouldStop()) {
+      offset = processPage(page, offset, size);
+      saveCheckpoint(page, offset);
+    }
+    return offset;
+  }
 
-      try {
-        actionService.removeAction(nodeToDelete, repoService.getCurrentRepository().getConfiguration().getName());
-      } catch (Exception ex) {
-        LOG.error("An error occurs while removing actions related to node {} ", nodeToDelete.getPath(), ex);
+  /**
+   * Processes a page of trash items.
+   *
+   * @return the offset after this page
+   */
+  private long processPage(List<String> page, long offset, long size) {
+    List<PartitionResult> results;
+    if (workers > 1) {
+      results = processInPartitions(page, size);
+    } else {
+      results = Collections.singletonList(processPartition(ExoContainerContext.getCurrentContainer(), page, size));
+    }
+    // the items kept are skipped by the next query, up to the first partition
+    // stopped before its end, as the next items have not all been processed
+    for (PartitionResult result : results) {
+      offset += result.kept;
+      if (!result.complete) {
+        break;
       }
-      try {
-        thumbnailService.processRemoveThumbnail(nodeToDelete);
-      } catch (Exception ex) {
-        LOG.error("An error occurs while removing thumbnail for node {} ", nodeToDelete.getPath(), ex);
+    }
+    return offset;
+  }
+
+  /**
+   * Stops the run when a page neither moved the offset nor deleted an item, as the
+   * next query would select the same page again.
+   */
+  private void checkProgress(long offset, long nextOffset, long deletedBefore) {
+    if (nextOffset == offset && counters.getDeleted() == deletedBefore && !shouldStop()) {
+      LOG.warn("No trash item of the page at offset " + offset + " could be processed, stop TrashCleanerJob");
+      stalled = true;
+    }
+  }
+
+  private void saveCheckpoint(List<String> page, long offset) {
+    try {
+      new TrashCleanerCheckpoint(selection, offset, page.get(page.size() - 1), restoredCounters.plus(counters)).save(getCleaner().getRepositoryService(),
+                                                                                               workspace);
+    } catch (RepositoryException ex) {
+      LOG.warn("Unable to save TrashCleanerJob checkpoint", ex);
+    }
+  }
+
+  /**
+   * @return true when the maximum duration is reached, the run is cancelled or
+   *         stalled, or the lease on the current shard is lost
+   */
+  private boolean shouldStop() {
+    return progress.isCancelled() || stalled || (deadline > 0 && System.currentTimeMillis() > deadline) || !isLeaseValid();
+  }
+
+  /**
+   * @return false if a shard is processed and its lease is no longer valid,
+   *         nothing must then be saved
+   */
+  private boolean isLeaseValid() {
+    ShardLeaseManager.Lease currentLease = lease;
+    return currentLease == null || currentLease.isValid();
+  }
+
+  /**
+   * Splits the trash items in one partition per worker. Each worker uses its
+   * own system session, the method returns when all the partitions are processed,
+   * so the job still never runs concurrently with itself. The workers are the
+   * threads of the pool created once per run, shared by all the pages.
+   *
+   * @return the results of the partitions, in order, up to the first one whose
+   *         worker failed
+   */
+  private List<PartitionResult> processInPartitions(List<String> identifiers, long size) {
+    int partitionSize = (identifiers.size() + workers - 1) / workers;
+    ExoContainer container = ExoContainerContext.getCurrentContainer();
+    LOG.info("Process " + identifiers.size() + " trash nodes with " + workers + " workers");
+
+    List<Future<PartitionResult>> futures = new ArrayList<>();
+    List<PartitionResult> results = new ArrayList<>();
+    try {
+      for (int from = 0; from < identifiers.size(); from += partitionSize) {
+        List<String> partition = identifiers.subList(from, Math.min(from + partitionSize, identifiers.size()));
+        futures.add(executor.submit(() -> processPartition(container, partition, size)));
       }
-      try {
-        if (PermissionUtil.canRemoveNode(nodeToDelete) && nodeToDelete.isNodeType(Utils.EXO_AUDITABLE)) {
-          removeAuditForNode(nodeToDelete, repoService.getCurrentRepository());
+      for (Future<PartitionResult> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException ex) {
+          LOG.error("Trash cleaner worker failed", ex.getCause());
+          results.add(new PartitionResult(0, false));
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      progress.cancel();
+      futures.forEach(future -> future.cancel(true));
+      LOG.warn("TrashCleanerJob interrupted while waiting for workers");
+      results.add(new PartitionResult(0, false));
+    }
+    return results;
+  }
+
+  /**
+   * @return the number of processed items still in the trash, and whether all the
+   *         items of the partition have been processed
+   */
+  private PartitionResult processPartition(ExoContainer container, List<String> partition, long size) {
+    ExoContainerContext.setCurrentContainer(container);
+    TrashCleanerCounters partitionCounters = new TrashCleanerCounters(counters);
+    TrashBatchDeleter batchDeleter = createBatchDeleter(partitionCounters);
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    int processed = 0;
+    try {
+      Session session = sessionProvider.getSession(workspace, getCleaner().getRepositoryService().getDefaultRepository());
+      for (String identifier : partition) {
+        if (shouldStop()) {
+          break;
+        }
+        processed++;
+        Node currentNode;
+        try {
+          currentNode = ((SessionImpl) session).getNodeByIdentifier(identifier);
+        } catch (ItemNotFoundException ex) {
+          LOG.debug("Trash node {} no longer exists", identifier);
+          continue;
+        } catch (RepositoryException ex) {
+          partitionCounters.incrementChecked();
+          partitionCounters.incrementFailed();
+          LOG.error("Error while reading node " + identifier + " from Trash", ex);
+          continue;
         }
-      } catch (Exception ex) {
-        LOG.error("An error occurs while removing audit for node {}", nodeToDelete.getPath(), ex);
+        processTrashItem(currentNode, size, batchDeleter, partitionCounters);
+      }
+      if (batchDeleter != null) {
+        batchDeleter.flush();
+      }
+    } catch (RepositoryException | RuntimeException ex) {
+      // the items left are counted as failed, so the offset moves past them
+      int left = partition.size() - processed;
+      for (int i = 0; i < left; i++) {
+        partitionCounters.incrementChecked();
+        partitionCounters.incrementFailed();
+      }
+      processed = partition.size();
+      LOG.error("Trash cleaner worker failed, " + left + " trash items left", ex);
+    } finally {
+      sessionProvider.close();
+    }
+    return new PartitionResult(partitionCounters.getChecked() - partitionCounters.getDeleted(), processed == partition.size());
+  }
+
+  private TrashBatchDeleter createBatchDeleter(TrashCleanerCounters partitionCounters) {
+    if (batchSize <= 1) {
+      return null;
+    }
+    return new TrashBatchDeleter(getCleaner(), workspace, batchSize, partitionCounters, throttle, this::isLeaseValid);
+  }
+
+  private void processTrashItem(Node currentNode,
+                                long size,
+                                TrashBatchDeleter batchDeleter,
+                                TrashCleanerCounters partitionCounters) {
+    try {
+      partitionCounters.incrementChecked();
+      long current = counters.getChecked();
+      progress.addItems(1);
+      String progression = size < 0 ? String.valueOf(current) : current + "/" + size;
+      if (current % 50 == 0) {
+        LOG.info("Checking node " + currentNode.getName() + " node from Trash (" + progression + ")"
+            + (throttle == null ? "" : ", " + throttle));
+      } else {
+        LOG.debug("Checking node " + currentNode.getName() + " node from Trash (" + progression + ")");
+      }
+      if (isExpired(currentNode, expirationTime)) {
+        delete(currentNode, batchDeleter, partitionCounters);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      progress.cancel();
+      LOG.warn("TrashCleanerJob interrupted while throttled, stop it");
+    } catch (Exception ex) {
+      partitionCounters.incrementFailed();
+      try {
+        LOG.error("Error while removing " + currentNode.getName() + " node from Trash", ex);
+      } catch (RepositoryException e) {
+        LOG.error("Error while removing node from Trash", ex);
+      }
+    }
+  }
+
+  /**
+   * @return true if the trash item must be deleted : moved to the trash before the
+   *         expiration time, or without date
+   */
+  static boolean isExpired(Node currentNode, long expirationTime) throws RepositoryException {
+    if (currentNode.getName().equals("exo:actions") && currentNode.hasNode("trashFolder")) {
+      return false;
+    }
+    if (currentNode.hasProperty("exo:lastModifiedDate")) {
+      long dateCreated = currentNode.getProperty("exo:lastModifiedDate").getDate().getTimeInMillis();
+      return dateCreated < expirationTime && currentNode.isNodeType("exo:restoreLocation");
+    }
+    return true;
+  }
+
+  private void delete(Node node, TrashBatchDeleter batchDeleter, TrashCleanerCounters partitionCounters) throws Exception {
+    if (throttle != null) {
+      throttle.acquire();
+    }
+    if (batchDeleter != null) {
+      batchDeleter.add(((NodeImpl) node).getIdentifier());
+    } else if (deleteNode(node)) {
+      partitionCounters.incrementDeleted();
+    } else {
+      partitionCounters.incrementFailed();
+    }
+  }
+
+  /**
+   * Removes the node and its whole subtree with a single save, after cleaning the
+   * subtree in one pass with {@link TrashNodeCleaner#cleanSubtree(Node)}. The node
+   * is read again with a new session on its own workspace, the trash workspace.
+   *
+   * @return true if the node has been removed
+   */
+  public boolean deleteNode(Node node) throws Exception {
+    RepositoryService repoService = getCleaner().getRepositoryService();
+    SessionProvider sessionProviderForDeleteNode = SessionProvider.createSystemProvider();
+    Session sessionForDeleteNode =sessionProviderForDeleteNode.getSession(node.getSession().getWorkspace().getName(),repoService.getDefaultRepository());
+    LOG.debug("Try to delete node {}",node.getPath());
+    try {
+      Node nodeToDelete = readNodeWithNewSession(node,sessionForDeleteNode);
+      getCleaner().cleanSubtree(nodeToDelete);
+      getCleaner().getMetrics().time(DeletionPhase.REMOVE, nodeToDelete::remove);
+      if (!isLeaseValid()) {
+        LOG.warn("Lease on the trash shard lost, node {} is left to its new owner", nodeToDelete.getPath());
+        return false;
+      }
+      long startTime = System.currentTimeMillis();
+      getCleaner().getMetrics().time(DeletionPhase.SAVE, sessionForDeleteNode::save);
+      if (throttle != null) {
+        throttle.recordSave(System.currentTimeMillis() - startTime);
       }
-      nodeToDelete.remove();
-      nodeToDelete.getSession().save();
       LOG.debug("Node " + nodeToDelete.getPath() + " deleted");
+      return true;
     } catch (ReferentialIntegrityException ref) {
       LOG.error("ReferentialIntegrityException when removing " + node.getName() + " node from Trash", ref);
     } catch (ConstraintViolationException cons) {
@@ -150,6 +569,7 @@ public class TrashCleanerJob implements Job {
       sessionForDeleteNode.logout();
       sessionProviderForDeleteNode.close();
     }
+    return false;
   }
 
   private Node readNodeWithNewSession(Node node, Session sessionForDeleteNode) throws RepositoryException {
@@ -157,37 +577,21 @@ public class TrashCleanerJob implements Job {
     return ((SessionImpl)sessionForDeleteNode).getNodeByIdentifier(idf);
   }
 
-  private void removeReferences(Node node) throws Exception {
-    RelationsService relationService =ExoContainerContext.getCurrentContainer()
-                                                         .getComponentInstanceOfType(RelationsService.class);
-
-
-    PropertyIterator iter = node.getReferences();
-    if (iter.hasNext()) {
-      // if there is a reference, move it
-      String relationPath = iter.nextProperty().getPath();
-      LOG.debug("Node " + node.getPath() + " is referenced by " + relationPath + ", remove the referenec");
-
-      Item relation = node.getSession().getItem(relationPath);
-      Node sourceRelationNode = relation.getParent();
-
-      relationService.removeRelation(sourceRelationNode,node.getPath());
+  private synchronized TrashNodeCleaner getCleaner() {
+    if (cleaner == null) {
+      cleaner = TrashNodeCleaner.fromContainer(ExoContainerContext.getCurrentContainer());
     }
+    return cleaner;
+  }
 
-    NodeIterator children = node.getNodes();
-    while (children.hasNext()) {
-      Node child = children.nextNode();
-      removeReferences(child);
-    }
+  private static class PartitionResult {
+    private final long    kept;
 
-  }
+    private final boolean complete;
 
-  private void removeAuditForNode(Node node, ManageableRepository repository) throws Exception {
-    Session session = SessionProvider.createSystemProvider().getSession(node.getSession().getWorkspace().getName(), repository);
-    if (session.getRootNode().hasNode("exo:audit") && session.getRootNode().getNode("exo:audit").hasNode(node.getUUID())) {
-      session.getRootNode().getNode("exo:audit").getNode(node.getUUID()).remove();
-      session.save();
+    private PartitionResult(long kept, boolean complete) {
+      this.kept = kept;
+      this.complete = complete;
     }
   }
-
 }
@@ -0,0 +1,200 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.picocontainer.Startable;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Runs the trash cleaner operations asynchronously on a pool of named threads,
+ * with one thread per job type. Only one job of each type can be pending or
+ * running at a time, including the scheduled runs of the cleaner, which go
+ * through the same guard. The last finished jobs are kept so their result can
+ * still be read.
+ */
+public class TrashCleanerJobManager implements Startable {
+
+  private static final Log                    LOG                      = ExoLogger.getLogger(TrashCleanerJobManager.class);
+
+  public static final String                  TRASH_CLEANER            = "trashCleaner";
+
+  public static final String                  COMPUTE_TRASH_SIZE       = "computeTrashSize";
+
+  public static final String                  COMPUTE_USER_FOLDER_SIZE = "computeUserFolderSize";
+
+  public static final String                  RECONCILE_TRASH_SIZE     = "reconcileTrashSize";
+
+  public static final String                  RECLAIM_SPACE            = "reclaimSpace";
+
+  public static final String                  PURGE_USER_FOLDERS       = "purgeUserFolders";
+
+  public static final String                  TRIM_VERSIONS            = "trimVersions";
+
+  public static final String                  SNAPSHOT_TRASH           = "snapshotTrash";
+
+  public static final String                  SNAPSHOT_USER_FOLDERS    = "snapshotUserFolders";
+
+  public static final String                  EXECUTE_SNAPSHOT         = "executeSnapshot";
+
+  public static final List<String>            TYPES                    = Arrays.asList(TRASH_CLEANER,
+                                                                                       COMPUTE_TRASH_SIZE,
+                                                                                       COMPUTE_USER_FOLDER_SIZE,
+                                                                                       RECONCILE_TRASH_SIZE,
+                                                                                       RECLAIM_SPACE,
+                                                                                       PURGE_USER_FOLDERS,
+                                                                                       TRIM_VERSIONS,
+                                                                                       SNAPSHOT_TRASH,
+                                                                                       SNAPSHOT_USER_FOLDERS,
+                                                                                       EXECUTE_SNAPSHOT);
+
+  /** One thread per job type, so a submitted job is never rejected */
+  private static final int                    POOL_SIZE                = TYPES.size();
+
+  private static final int                    MAX_FINISHED_JOBS        = 50;
+
+  private final Map<String, AsyncJob>         runningJobs              = new ConcurrentHashMap<>();
+
+  private final Map<String, AsyncJob>         jobs                     = new LinkedHashMap<String, AsyncJob>() {
+                                                                         @Override
+                                                                         protected boolean removeEldestEntry(Map.Entry<String, AsyncJob> eldest) {
+                                                                           return size() > MAX_FINISHED_JOBS
+                                                                               && eldest.getValue().isFinished();
+                                                                         }
+                                                                       };
+
+  private final ExoContainer                  container;
+
+  private ThreadPoolExecutor                  executor;
+
+  public TrashCleanerJobManager() {
+    this.container = ExoContainerContext.getCurrentContainer();
+  }
+
+  @Override
+  public void start() {
+    AtomicInteger threadIndex = new AtomicInteger();
+    executor = new ThreadPoolExecutor(POOL_SIZE,
+                                      POOL_SIZE,
+                                      0L,
+                                      TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(POOL_SIZE),
+                                      runnable -> new Thread(runnable, "TrashCleanerAsyncJob-" + threadIndex.incrementAndGet()));
+  }
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      for (AsyncJob job : runningJobs.values()) {
+        job.cancel();
+      }
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Submits an operation, which receives the job progress and returns its result.
+   *
+   * @throws IllegalStateException if a job of the same type is already pending or running
+   * @throws RejectedExecutionException if the manager is stopped
+   */
+  public AsyncJob submit(String type, Function<JobProgress, String> operation) {
+    AsyncJob job = register(type);
+    try {
+      job.setFuture(executor.submit(() -> run(job, operation)));
+    } catch (RuntimeException e) {
+      runningJobs.remove(type, job);
+      job.failed(e);
+      throw e;
+    }
+    LOG.info("Job {} submitted with id {}", type, job.getId());
+    return job;
+  }
+
+  /**
+   * Runs an operation in the calling thread, as a job which can be followed and
+   * cancelled like the submitted ones. Used by the scheduled runs, so they never
+   * overlap a job of the same type launched from REST.
+   *
+   * @return the finished job, or null if a job of the same type is already
+   *         pending or running
+   */
+  public AsyncJob runInCurrentThread(String type, Function<JobProgress, String> operation) {
+    AsyncJob job;
+    try {
+      job = register(type);
+    } catch (IllegalStateException e) {
+      return null;
+    }
+    run(job, operation);
+    return job;
+  }
+
+  private AsyncJob register(String type) {
+    AsyncJob job = new AsyncJob(UUID.randomUUID().toString(), type);
+    if (runningJobs.putIfAbsent(type, job) != null) {
+      throw new IllegalStateException("A job " + type + " is already running");
+    }
+    synchronized (jobs) {
+      jobs.put(job.getId(), job);
+    }
+    return job;
+  }
+
+  private void run(AsyncJob job, Function<JobProgress, String> operation) {
+    ExoContainerContext.setCurrentContainer(container);
+    job.started();
+    LOG.info("Job {} {} started", job.getType(), job.getId());
+    try {
+      job.finished(operation.apply(job.getProgress()));
+      LOG.info("Job {} {} {} in {} ms", job.getType(), job.getId(), job.getStatus(), job.getEndedAt() - job.getStartedAt());
+    } catch (Throwable e) {
+      LOG.error("Job {} {} failed", job.getType(), job.getId(), e);
+      job.failed(e);
+    } finally {
+      runningJobs.remove(job.getType(), job);
+    }
+  }
+
+  public AsyncJob getJob(String id) {
+    synchronized (jobs) {
+      return jobs.get(id);
+    }
+  }
+
+  public List<AsyncJob> getJobs() {
+    synchronized (jobs) {
+      return new ArrayList<>(jobs.values());
+    }
+  }
+
+  /**
+   * @return the cancelled job, or null if it does not exist
+   */
+  public AsyncJob cancel(String id) {
+    AsyncJob job = getJob(id);
+    if (job != null) {
+      job.cancel();
+      if (job.isFinished()) {
+        runningJobs.remove(job.getType(), job);
+      }
+      LOG.info("Job {} {} cancellation requested", job.getType(), job.getId());
+    }
+    return job;
+  }
+}
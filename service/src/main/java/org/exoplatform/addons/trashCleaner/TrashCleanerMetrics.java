@@ -0,0 +1,70 @@
+package org.exoplatform.addons.trashCleaner;
+
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+
+/**
+ * Deletion metrics cumulated since startup, exposed through the eXo management
+ * layer (JMX).
+ */
+@Managed
+@NameTemplate({ @Property(key = "service", value = "TrashCleaner"), @Property(key = "view", value = "metrics") })
+@ManagedDescription("Trash cleaner deletion metrics")
+public class TrashCleanerMetrics {
+
+  private final DeletionMetrics    metrics = new DeletionMetrics();
+
+  private volatile AdaptiveThrottle throttle;
+
+  public DeletionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @param throttle the throttle of the running cleaner, null when it stops
+   */
+  public void setThrottle(AdaptiveThrottle throttle) {
+    this.throttle = throttle;
+  }
+
+  @Managed
+  @ManagedDescription("Effective deletion rate of the running throttled cleaner, in items per second, -1 if none")
+  public double getThrottleRate() {
+    AdaptiveThrottle currentThrottle = throttle;
+    return currentThrottle == null ? -1 : currentThrottle.getRate();
+  }
+
+  @Managed
+  @ManagedDescription("Count, errors and latency percentiles of each deletion phase")
+  public String getSummary() {
+    return metrics.toTable();
+  }
+
+  @Managed
+  @ManagedDescription("Number of executions of a deletion phase")
+  public long getCount(@ManagedDescription("Phase name") @ManagedName("phase") String phase) {
+    return metrics.getCount(DeletionPhase.valueOf(phase.toUpperCase()));
+  }
+
+  @Managed
+  @ManagedDescription("Number of errors of a deletion phase")
+  public long getErrors(@ManagedDescription("Phase name") @ManagedName("phase") String phase) {
+    return metrics.getErrors(DeletionPhase.valueOf(phase.toUpperCase()));
+  }
+
+  @Managed
+  @ManagedDescription("Latency percentile of a deletion phase in ms")
+  public double getLatency(@ManagedDescription("Phase name") @ManagedName("phase") String phase,
+                           @ManagedDescription("Percentile, between 0 and 100") @ManagedName("percentile") double percentile) {
+    return metrics.getPercentile(DeletionPhase.valueOf(phase.toUpperCase()), percentile) / 1000d;
+  }
+
+  @Managed
+  @ManagedDescription("Reset the metrics")
+  public void reset() {
+    metrics.reset();
+  }
+}
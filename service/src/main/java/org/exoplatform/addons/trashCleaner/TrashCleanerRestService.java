@@ -2,45 +2,327 @@ package org.exoplatform.addons.trashCleaner;
 
 import org.exoplatform.container.ExoContainer;
 import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.cms.documents.TrashService;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.rest.resource.ResourceContainer;
-import org.exoplatform.services.scheduler.JobSchedulerService;
-import org.exoplatform.social.service.rest.api.VersionResources;
-import org.quartz.JobExecutionException;
+
+import io.swagger.v3.oas.annotations.Parameter;
 
 import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 @Path("/trashcleaner")
 public class TrashCleanerRestService implements ResourceContainer {
   private static final Log                 LOG = ExoLogger.getLogger(TrashCleanerRestService.class);
 
-  public TrashCleanerRestService() {
+  private final TrashCleanerJobManager       jobManager;
+
+  private final ComputeTrashSizeService      computeTrashSizeService;
+
+  private final ComputeUserFolderSizeService computeUserFolderSizeService;
+
+  private final TrashSizeIndex               trashSizeIndex;
+
+  private final UserFolderPurgeService       userFolderPurgeService;
+
+  private final ScanSnapshotService          scanSnapshotService;
 
+  private final Map<String, JobFactory>      jobFactories = new HashMap<>();
+
+  /**
+   * Checks the parameters of a job type and creates its operation.
+   */
+  private interface JobFactory {
+    /**
+     * @throws IllegalArgumentException if a parameter is missing or invalid
+     */
+    Function<JobProgress, String> create(JobRequest request);
+  }
+
+  private interface JobOperation {
+    String run(JobProgress progress) throws Exception;
+  }
+
+  public TrashCleanerRestService(TrashCleanerJobManager jobManager,
+                                 ComputeTrashSizeService computeTrashSizeService,
+                                 ComputeUserFolderSizeService computeUserFolderSizeService,
+                                 TrashSizeIndex trashSizeIndex,
+                                 UserFolderPurgeService userFolderPurgeService,
+                                 ScanSnapshotService scanSnapshotService) {
+    this.jobManager = jobManager;
+    this.computeTrashSizeService = computeTrashSizeService;
+    this.computeUserFolderSizeService = computeUserFolderSizeService;
+    this.trashSizeIndex = trashSizeIndex;
+    this.userFolderPurgeService = userFolderPurgeService;
+    this.scanSnapshotService = scanSnapshotService;
+    jobFactories.put(TrashCleanerJobManager.TRASH_CLEANER, this::trashCleaner);
+    jobFactories.put(TrashCleanerJobManager.COMPUTE_TRASH_SIZE, this::computeTrashSize);
+    jobFactories.put(TrashCleanerJobManager.COMPUTE_USER_FOLDER_SIZE, this::computeUserFolderSize);
+    jobFactories.put(TrashCleanerJobManager.RECONCILE_TRASH_SIZE, this::reconcileTrashSize);
+    jobFactories.put(TrashCleanerJobManager.RECLAIM_SPACE, this::reclaimSpace);
+    jobFactories.put(TrashCleanerJobManager.PURGE_USER_FOLDERS, this::purgeUserFolders);
+    jobFactories.put(TrashCleanerJobManager.TRIM_VERSIONS, this::trimVersions);
+    jobFactories.put(TrashCleanerJobManager.SNAPSHOT_TRASH, this::snapshotTrash);
+    jobFactories.put(TrashCleanerJobManager.SNAPSHOT_USER_FOLDERS, this::snapshotUserFolders);
+    jobFactories.put(TrashCleanerJobManager.EXECUTE_SNAPSHOT, this::executeSnapshot);
   }
 
   @GET
   @RolesAllowed("administrators")
   public Response launchTrashCleanerJob() {
-    ExoContainer context = ExoContainerContext.getCurrentContainer();
+    Response response = submit(JobRequest.of(TrashCleanerJobManager.TRASH_CLEANER));
+    return response.getStatus() == Response.Status.OK.getStatusCode() ? Response.ok().build() : response;
+  }
+
+  @GET
+  @Path("trashSize")
+  @RolesAllowed("administrators")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getTrashSize() {
+    TrashSizeSummary summary = trashSizeIndex.getSummary();
+    if (summary == null) {
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Trash size index is disabled or not built yet").build();
+    }
+    return Response.ok(summary).build();
+  }
+
+  @POST
+  @Path("jobs/{type}")
+  @RolesAllowed("administrators")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response submitJob(@Parameter(description = "Job type : trashCleaner, computeTrashSize, computeUserFolderSize, reconcileTrashSize, reclaimSpace, purgeUserFolders, trimVersions, snapshotTrash, snapshotUserFolders or executeSnapshot") @PathParam("type") String type,
+                            @Parameter(description = "For computeUserFolderSize, purgeUserFolders and snapshotUserFolders, check for user not connected since this date (format timestamp in ms)") @QueryParam("date") String date,
+                            @Parameter(description = "For reclaimSpace, bytes to reclaim, with an optional K, M, G or T suffix") @QueryParam("target") String target,
+                            @Parameter(description = "For reclaimSpace, time budget in minutes") @QueryParam("budget") long budget,
+                            @Parameter(description = "For reclaimSpace and snapshotTrash, only delete items in trash for more than this number of days, trashcleaner.lifetime by default") @QueryParam("lifetime") String lifetime,
+                            @Parameter(description = "For purgeUserFolders, only compute the folders to purge, false is required to delete them") @QueryParam("dryRun") @DefaultValue("true") boolean dryRun,
+                            @Parameter(description = "For trimVersions, number of most recent versions kept for each trashed document") @QueryParam("keep") @DefaultValue("-1") int keep,
+                            @Parameter(description = "For computeTrashSize and computeUserFolderSize, return the byte distribution by MIME type, age and owner as JSON") @QueryParam("analytics") boolean analytics,
+                            @Parameter(description = "For executeSnapshot, id of the snapshot to execute") @QueryParam("snapshot") String snapshot) {
+    return submit(new JobRequest(type, date, target, budget, lifetime, dryRun, keep, analytics, snapshot));
+  }
+
+  @GET
+  @Path("snapshots")
+  @RolesAllowed("administrators")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getSnapshots() {
+    try {
+      return Response.ok(scanSnapshotService.list()).build();
+    } catch (IOException e) {
+      LOG.error("Error listing snapshots", e);
+      return Response.serverError().build();
+    }
+  }
+
+  @GET
+  @Path("snapshots/diff")
+  @RolesAllowed("administrators")
+  public Response diffSnapshots(@Parameter(description = "Id of the oldest snapshot") @QueryParam("from") String from,
+                                @Parameter(description = "Id of the newest snapshot") @QueryParam("to") String to) {
+    try {
+      return Response.ok(scanSnapshotService.diff(from, to)).build();
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+    } catch (IOException e) {
+      LOG.error("Error comparing snapshots {} and {}", from, to, e);
+      return Response.serverError().build();
+    }
+  }
+
+  @GET
+  @Path("snapshots/{id}")
+  @RolesAllowed("administrators")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getSnapshot(@PathParam("id") String id) {
+    try {
+      return Response.ok(scanSnapshotService.open(id).toString()).build();
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage()).build();
+    } catch (IOException e) {
+      LOG.error("Error reading snapshot {}", id, e);
+      return Response.serverError().build();
+    }
+  }
+
+  @GET
+  @Path("jobs")
+  @RolesAllowed("administrators")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getJobs() {
+    return Response.ok(jobManager.getJobs()).build();
+  }
+
+  @GET
+  @Path("jobs/{id}")
+  @RolesAllowed("administrators")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getJob(@PathParam("id") String id) {
+    AsyncJob job = jobManager.getJob(id);
+    if (job == null) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+    return Response.ok(job).build();
+  }
+
+  @GET
+  @Path("jobs/{id}/result")
+  @RolesAllowed("administrators")
+  public Response getJobResult(@PathParam("id") String id) {
+    AsyncJob job = jobManager.getJob(id);
+    if (job == null) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+    if (!job.isFinished()) {
+      return Response.status(Response.Status.ACCEPTED).entity("Job " + id + " is " + job.getStatus()).build();
+    }
+    if (job.getStatus() == AsyncJob.Status.FAILED) {
+      return Response.serverError().entity(job.getError()).build();
+    }
+    return Response.ok(job.getResult()).build();
+  }
+
+  @DELETE
+  @Path("jobs/{id}")
+  @RolesAllowed("administrators")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response cancelJob(@PathParam("id") String id) {
+    AsyncJob job = jobManager.cancel(id);
+    if (job == null) {
+      return Response.status(Response.Status.NOT_FOUND).build();
+    }
+    return Response.ok(job).build();
+  }
+
+  private Response submit(JobRequest request) {
+    JobFactory factory = jobFactories.get(request.getType());
+    if (factory == null) {
+      return Response.status(Response.Status.BAD_REQUEST).entity("Unknown job type " + request.getType()).build();
+    }
+    Function<JobProgress, String> operation;
     try {
-      new Thread(() -> {
-        TrashCleanerJob trashCleanerJob = new TrashCleanerJob();
-        ExoContainerContext.setCurrentContainer(context);
-        try {
-          trashCleanerJob.execute(null);
-        } catch (JobExecutionException e) {
-          throw new RuntimeException(e);
-        }
-      }).start();
-      return Response.ok().build();
+      operation = factory.create(request);
+    } catch (IllegalArgumentException e) {
+      return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+    }
+    try {
+      return Response.ok(jobManager.submit(request.getType(), operation)).type(MediaType.APPLICATION_JSON).build();
+    } catch (IllegalStateException e) {
+      return Response.status(Response.Status.CONFLICT).entity(e.getMessage()).build();
+    } catch (RejectedExecutionException e) {
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("Jobs can not be started, the job manager is stopped").build();
     } catch (Exception e) {
-      LOG.error("Error starting job TrashCleanerJob",e);
+      LOG.error("Error starting job {}", request.getType(), e);
       return Response.serverError().build();
+    }
+  }
 
+  private Function<JobProgress, String> trashCleaner(JobRequest request) {
+    return unchecked(progress -> {
+      TrashCleanerJob trashCleanerJob = new TrashCleanerJob(progress);
+      trashCleanerJob.run();
+      return "TrashCleanerJob " + (progress.isCancelled() ? "cancelled" : "done") + " : " + trashCleanerJob.getCounters();
+    });
+  }
+
+  private Function<JobProgress, String> computeTrashSize(JobRequest request) {
+    return request.isAnalytics() ? computeTrashSizeService::computeTrashAnalytics : computeTrashSizeService::computeTrashSize;
+  }
+
+  private Function<JobProgress, String> computeUserFolderSize(JobRequest request) {
+    Instant limitDate = request.getLimitDate();
+    boolean analytics = request.isAnalytics();
+    return unchecked(progress -> analytics ? computeUserFolderSizeService.computeUserFolderAnalytics(limitDate, progress)
+                                           : computeUserFolderSizeService.computeUserFolderSize(limitDate, progress));
+  }
+
+  private Function<JobProgress, String> reconcileTrashSize(JobRequest request) {
+    return unchecked(trashSizeIndex::reconcile);
+  }
+
+  private Function<JobProgress, String> reclaimSpace(JobRequest request) {
+    long budget = request.getBudget();
+    if (!request.hasTarget() && budget <= 0) {
+      throw new IllegalArgumentException("A target or a budget is required");
+    }
+    long targetBytes = request.getTargetBytes();
+    long days = request.getLifetimeDays();
+    SpaceTargetCleaner spaceTargetCleaner = new SpaceTargetCleaner(computeTrashSizeService,
+                                                                   trashSizeIndex,
+                                                                   ExoContainerContext.getCurrentContainer());
+    return unchecked(progress -> {
+      long expirationTime = System.currentTimeMillis() - days * 24 * 60 * 60 * 1000;
+      long deadline = budget > 0 ? System.currentTimeMillis() + budget * 60 * 1000 : 0;
+      return spaceTargetCleaner.reclaim(targetBytes, expirationTime, deadline, progress);
+    });
+  }
+
+  private Function<JobProgress, String> purgeUserFolders(JobRequest request) {
+    Instant limitDate = request.getLimitDate();
+    boolean dryRun = request.isDryRun();
+    return unchecked(progress -> userFolderPurgeService.purge(limitDate, dryRun, progress));
+  }
+
+  private Function<JobProgress, String> trimVersions(JobRequest request) {
+    int keep = request.getKeep();
+    if (keep < 0) {
+      throw new IllegalArgumentException("The number of versions to keep is required");
     }
+    ExoContainer container = ExoContainerContext.getCurrentContainer();
+    TrashNodeCleaner cleaner = TrashNodeCleaner.fromContainer(container);
+    VersionHistoryPruner pruner = new VersionHistoryPruner(cleaner.getRepositoryService(),
+                                                           cleaner.getMetrics(),
+                                                           VersionHistoryPruner.getChunkSize());
+    TrashService trashService = container.getComponentInstanceOfType(TrashService.class);
+    return unchecked(progress -> pruner.trimTrash(trashService.getTrashHomeNode(), keep, progress));
+  }
+
+  private Function<JobProgress, String> snapshotTrash(JobRequest request) {
+    long days = request.getLifetimeDays();
+    return unchecked(progress -> scanSnapshotService.snapshotTrash(days, progress));
+  }
+
+  private Function<JobProgress, String> snapshotUserFolders(JobRequest request) {
+    Instant limitDate = request.getLimitDate();
+    return unchecked(progress -> scanSnapshotService.snapshotUserFolders(limitDate, progress));
+  }
+
+  private Function<JobProgress, String> executeSnapshot(JobRequest request) {
+    String snapshot = request.getSnapshot();
+    try {
+      scanSnapshotService.open(snapshot);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unreadable snapshot " + snapshot, e);
+    }
+    return unchecked(progress -> scanSnapshotService.execute(snapshot, progress));
+  }
+
+  /**
+   * @return the operation, its checked exceptions failing the job
+   */
+  private static Function<JobProgress, String> unchecked(JobOperation operation) {
+    return progress -> {
+      try {
+        return operation.run(progress);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    };
   }
 }
@@ -0,0 +1,213 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.ecm.webui.utils.PermissionUtil;
+import org.exoplatform.ecm.webui.utils.Utils;
+import org.exoplatform.services.cms.actions.ActionServiceContainer;
+import org.exoplatform.services.cms.relations.RelationsService;
+import org.exoplatform.services.cms.thumbnail.ThumbnailService;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Removes what is attached to a trash subtree before the subtree itself is removed :
+ * relations, actions, thumbnails and audit. Changes done in the node session are
+ * not saved, the caller saves them with the node removal. When enabled, the
+ * oldest versions of the versionable nodes with long histories are pruned last,
+ * with their own transactions, see {@link VersionHistoryPruner}.
+ */
+public class TrashNodeCleaner {
+
+  private static final Log             LOG = ExoLogger.getLogger(TrashNodeCleaner.class);
+
+  private final ActionServiceContainer actionService;
+
+  private final ThumbnailService       thumbnailService;
+
+  private final RelationsService       relationsService;
+
+  private final RepositoryService      repositoryService;
+
+  private final DeletionMetrics        metrics;
+
+  private final VersionHistoryPruner   versionHistoryPruner;
+
+  private final TreeWalker             treeWalker;
+
+  public TrashNodeCleaner(ActionServiceContainer actionService,
+                          ThumbnailService thumbnailService,
+                          RelationsService relationsService,
+                          RepositoryService repositoryService,
+                          DeletionMetrics metrics) {
+    this.actionService = actionService;
+    this.thumbnailService = thumbnailService;
+    this.relationsService = relationsService;
+    this.repositoryService = repositoryService;
+    this.metrics = metrics;
+    this.versionHistoryPruner = VersionHistoryPruner.fromSystemProperties(repositoryService, metrics);
+    this.treeWalker = TreeWalker.fromSystemProperties();
+  }
+
+  /**
+   * @return a cleaner recording into run metrics, themselves cumulated into the
+   *         {@link TrashCleanerMetrics} of the container
+   */
+  public static TrashNodeCleaner fromContainer(ExoContainer container) {
+    TrashCleanerMetrics globalMetrics = container.getComponentInstanceOfType(TrashCleanerMetrics.class);
+    return new TrashNodeCleaner(container.getComponentInstanceOfType(ActionServiceContainer.class),
+                                container.getComponentInstanceOfType(ThumbnailService.class),
+                                container.getComponentInstanceOfType(RelationsService.class),
+                                container.getComponentInstanceOfType(RepositoryService.class),
+                                new DeletionMetrics(globalMetrics == null ? null : globalMetrics.getMetrics()));
+  }
+
+  public RepositoryService getRepositoryService() {
+    return repositoryService;
+  }
+
+  public DeletionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Cleans a trash node and all its descendants. The subtree is traversed once to
+   * collect the relations pointing into it, the actionable nodes and the audited
+   * nodes, then they are cleaned in bulk. Thumbnails of descendants are stored
+   * inside the subtree, so only the root thumbnail needs to be removed.
+   *
+   * @throws TreeWalker.MaxDepthExceededException if the subtree is deeper than the
+   *           maximum traversal depth, nothing is cleaned and the node must be
+   *           kept, as its deepest nodes could not be cleaned
+   */
+  public void cleanSubtree(Node root) throws RepositoryException {
+    SubtreeCleanup cleanup = new SubtreeCleanup(root.getPath());
+    try {
+      metrics.time(DeletionPhase.COLLECT, () -> treeWalker.walk(root, (node, depth) -> collect(node, cleanup), null, true));
+    } catch (RepositoryException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new RepositoryException("Unable to traverse subtree " + cleanup.rootPath, ex);
+    }
+
+    for (int i = 0; i < cleanup.relationSources.size(); i++) {
+      String sourcePath = cleanup.relationSources.get(i);
+      String targetPath = cleanup.relationTargets.get(i);
+      try {
+        LOG.debug("Node " + targetPath + " is referenced by " + sourcePath + ", remove the reference");
+        metrics.time(DeletionPhase.REFERENCES,
+                     () -> relationsService.removeRelation((Node) root.getSession().getItem(sourcePath), targetPath));
+      } catch (Exception ex) {
+        LOG.error("An error occurs while removing relations for node {}", targetPath, ex);
+      }
+    }
+
+    for (Node actionable : cleanup.actionables) {
+      try {
+        metrics.time(DeletionPhase.ACTIONS,
+                     () -> actionService.removeAction(actionable,
+                                                      repositoryService.getCurrentRepository().getConfiguration().getName()));
+      } catch (Exception ex) {
+        LOG.error("An error occurs while removing actions related to node {} ", actionable.getPath(), ex);
+      }
+    }
+    try {
+      metrics.time(DeletionPhase.THUMBNAIL, () -> thumbnailService.processRemoveThumbnail(root));
+    } catch (Exception ex) {
+      LOG.error("An error occurs while removing thumbnail for node {} ", root.getPath(), ex);
+    }
+    if (!cleanup.auditedUUIDs.isEmpty()) {
+      try {
+        metrics.time(DeletionPhase.AUDIT, () -> removeAudits(root.getSession(), cleanup.auditedUUIDs));
+      } catch (Exception ex) {
+        LOG.error("An error occurs while removing audit for nodes of {}", root.getPath(), ex);
+      }
+    }
+    if (versionHistoryPruner != null && !cleanup.versionables.isEmpty()) {
+      try {
+        versionHistoryPruner.prune(root.getSession().getWorkspace().getName(), cleanup.versionables);
+      } catch (Exception ex) {
+        LOG.error("An error occurs while pruning versions of nodes of {}", root.getPath(), ex);
+      }
+    }
+    LOG.debug("Subtree {} cleaned : {} nodes, {} versionable nodes, {} relations, {} actionable nodes, {} audited nodes",
+              cleanup.rootPath,
+              cleanup.visitedNodes,
+              cleanup.versionables.size(),
+              cleanup.relationSources.size(),
+              cleanup.actionables.size(),
+              cleanup.auditedUUIDs.size());
+  }
+
+  /**
+   * @return true, all the descendants are visited
+   */
+  private boolean collect(Node node, SubtreeCleanup cleanup) throws RepositoryException {
+    cleanup.visitedNodes++;
+    if (node.isNodeType("mix:referenceable")) {
+      PropertyIterator references = node.getReferences();
+      while (references.hasNext()) {
+        String sourcePath = references.nextProperty().getParent().getPath();
+        if (!cleanup.contains(sourcePath)) {
+          cleanup.relationSources.add(sourcePath);
+          cleanup.relationTargets.add(node.getPath());
+        }
+      }
+    }
+    if (node.isNodeType("mix:versionable")) {
+      cleanup.versionables.add(((NodeImpl) node).getIdentifier());
+    }
+    if (node.isNodeType("exo:actionable")) {
+      cleanup.actionables.add(node);
+    }
+    if (node.isNodeType(Utils.EXO_AUDITABLE) && PermissionUtil.canRemoveNode(node)) {
+      cleanup.auditedUUIDs.add(node.getUUID());
+    }
+    return true;
+  }
+
+  private void removeAudits(Session session, List<String> auditedUUIDs) throws RepositoryException {
+    if (!session.getRootNode().hasNode("exo:audit")) {
+      return;
+    }
+    Node auditNode = session.getRootNode().getNode("exo:audit");
+    for (String uuid : auditedUUIDs) {
+      if (auditNode.hasNode(uuid)) {
+        auditNode.getNode(uuid).remove();
+      }
+    }
+  }
+
+  private static class SubtreeCleanup {
+    private final String       rootPath;
+
+    private final List<String> relationSources = new ArrayList<>();
+
+    private final List<String> relationTargets = new ArrayList<>();
+
+    private final List<Node>   actionables     = new ArrayList<>();
+
+    private final List<String> auditedUUIDs    = new ArrayList<>();
+
+    private final List<String> versionables    = new ArrayList<>();
+
+    private long               visitedNodes;
+
+    private SubtreeCleanup(String rootPath) {
+      this.rootPath = rootPath;
+    }
+
+    private boolean contains(String path) {
+      return path.equals(rootPath) || path.startsWith(rootPath + "/");
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.time.Instant;
+
+import javax.jcr.Session;
+
+/**
+ * A part of the expired trash items, claimed by one cluster node at a time with
+ * a lease. Shards are ranges of trash date, so they are selected by indexed
+ * queries and the deletions in one shard do not move the items of the others.
+ * The undated items form a shard of their own.
+ */
+public class TrashShard {
+
+  /** Bounds of the shard of the items without date */
+  public static final long UNDATED = -1;
+
+  private final String     name;
+
+  private final long       from;
+
+  private final long       to;
+
+  private final long       offset;
+
+  public TrashShard(String name, long from, long to, long offset) {
+    this.name = name;
+    this.from = from;
+    this.to = to;
+    this.offset = offset;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getFrom() {
+    return from;
+  }
+
+  public long getTo() {
+    return to;
+  }
+
+  /**
+   * @return the number of already processed items of the shard still in the trash
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  public ExpiredTrashItemQuery createQuery(Session session, String trashPath, int pageSize) {
+    if (from == UNDATED) {
+      return ExpiredTrashItemQuery.undated(session, trashPath, pageSize);
+    }
+    return ExpiredTrashItemQuery.forRange(session, trashPath, from, to, pageSize);
+  }
+
+  @Override
+  public String toString() {
+    return name + (from == UNDATED ? " (undated)" : " [" + Instant.ofEpochMilli(from) + ", " + Instant.ofEpochMilli(to) + "[")
+        + ", offset " + offset;
+  }
+}
@@ -0,0 +1,755 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.ItemExistsException;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.lock.LockException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.picocontainer.Startable;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.cms.documents.TrashService;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.jcr.impl.core.SessionImpl;
+import org.exoplatform.services.jcr.util.Text;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Trash size maintained incrementally from the JCR observation of the trash home
+ * node : the size of an item is added when it is moved to the trash, and
+ * subtracted when it is restored or deleted.
+ * <p>
+ * The size of each trash item and the totals are persisted under
+ * <code>/exo:applications/trashSizeIndex</code>, so the totals are read without
+ * any scan. The entries are keyed by the identifier of their item and spread in
+ * two levels of hash buckets, so no index node holds one child per trash item.
+ * As a removal event only gives the path of the removed item, the identifiers
+ * of the entries are also listed by item name : the entries of the items of
+ * that name no longer in the trash are removed, whatever their same name
+ * sibling index.
+ * <p>
+ * Events are applied on a single thread, in order, and not in the thread of the
+ * session which moved the item. Each observation batch is applied at once,
+ * under one JCR lock and with one save. Each cluster node applies the events of
+ * its own sessions, so the totals are updated while holding a session scoped
+ * JCR lock on the index node, and no update is lost.
+ * <p>
+ * A full rescan reconciles the index periodically and reports the drift it
+ * finds, for instance when events were lost while the server was stopped. Only
+ * one cluster node runs each reconciliation : the first one to claim it under
+ * the lock, the others skip it. The rescan streams the trash items, comparing
+ * each one to its entry and saving the changes every
+ * {@value #SAVE_INTERVAL} entries, so its memory does not depend on the trash
+ * size.
+ * <p>
+ * The index is disabled by default.
+ */
+public class TrashSizeIndex implements Startable, EventListener {
+
+  private static final Log             LOG                         = ExoLogger.getLogger(TrashSizeIndex.class);
+
+  public static final String           ENABLED_PROPERTY            = "trashcleaner.sizeindex.enabled";
+
+  public static final String           RECONCILE_INTERVAL_PROPERTY = "trashcleaner.sizeindex.reconcile.interval";
+
+  private static final String          APPLICATIONS_NODE           = "exo:applications";
+
+  private static final String          INDEX_NODE                  = "trashSizeIndex";
+
+  private static final String          ITEMS_NODE                  = "items";
+
+  private static final String          NAMES_NODE                  = "names";
+
+  private static final int             FILES                       = 0;
+
+  private static final int             SIZE                        = 1;
+
+  private static final int             VERSIONS                    = 2;
+
+  private static final int             RECLAIMABLE                 = 3;
+
+  private static final int             SAVE_INTERVAL               = 500;
+
+  private static final int             LOCK_ATTEMPTS               = 50;
+
+  private static final long            LOCK_RETRY_DELAY            = 100;
+
+  private interface LockedOperation<T> {
+    T run(Node indexNode) throws Exception;
+  }
+
+  /**
+   * The values of the entry of a trash item, with the item name.
+   */
+  private static class IndexEntry {
+    private final String name;
+
+    private final long[] values;
+
+    private IndexEntry(String name, long[] values) {
+      this.name = name;
+      this.values = values;
+    }
+  }
+
+  private final RepositoryService       repositoryService;
+
+  private final TrashService            trashService;
+
+  private final ComputeTrashSizeService computeTrashSizeService;
+
+  private final ExoContainer            container;
+
+  private ScheduledExecutorService      executor;
+
+  private SessionProvider               listenerSessionProvider;
+
+  private String                        trashPath;
+
+  private String                        workspace;
+
+  private volatile TrashSizeSummary     summary;
+
+  private long                          reconcileInterval;
+
+  public TrashSizeIndex(RepositoryService repositoryService,
+                        TrashService trashService,
+                        ComputeTrashSizeService computeTrashSizeService) {
+    this.repositoryService = repositoryService;
+    this.trashService = trashService;
+    this.computeTrashSizeService = computeTrashSizeService;
+    this.container = ExoContainerContext.getCurrentContainer();
+  }
+
+  @Override
+  public void start() {
+    if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "false"))) {
+      LOG.info("Trash size index is disabled");
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "TrashSizeIndex"));
+    executor.execute(this::initialize);
+    long interval = Long.parseLong(System.getProperty(RECONCILE_INTERVAL_PROPERTY, "24"));
+    reconcileInterval = TimeUnit.HOURS.toMillis(interval);
+    if (interval > 0) {
+      executor.scheduleWithFixedDelay(() -> {
+        try {
+          if (claimReconciliation()) {
+            doReconcile(new JobProgress());
+          }
+        } catch (Exception e) {
+          LOG.error("Error while reconciling the trash size index", e);
+        }
+      }, interval, interval, TimeUnit.HOURS);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdownNow();
+    if (listenerSessionProvider != null) {
+      try {
+        Session session = listenerSessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOG.debug("Unable to remove the trash size index listener", e);
+      }
+      listenerSessionProvider.close();
+    }
+  }
+
+  /**
+   * @return the current totals, or null if the index is disabled or not built yet
+   */
+  public TrashSizeSummary getSummary() {
+    if (summary == null && workspace != null) {
+      // built by another cluster node since this one started
+      try {
+        load();
+      } catch (RepositoryException e) {
+        LOG.debug("Unable to load the trash size index", e);
+      }
+    }
+    return summary;
+  }
+
+  /**
+   * Rescans the whole trash and replaces the index with the result. The rescan
+   * runs on the index thread, so events received meanwhile are applied after it.
+   *
+   * @return the reconciliation message, with the drift found
+   */
+  public String reconcile(JobProgress progress) throws Exception {
+    if (executor == null) {
+      throw new IllegalStateException("Trash size index is disabled");
+    }
+    return executor.submit(() -> doReconcile(progress)).get();
+  }
+
+  /**
+   * @param session a session of the trash workspace
+   * @param identifier the identifier of the trash item
+   * @return the indexed reclaimable size of the trash item, -1 if it is not
+   *         indexed
+   */
+  public long getReclaimableSize(Session session, String identifier) throws RepositoryException {
+    if (summary == null) {
+      return -1;
+    }
+    String entryPath = "/" + APPLICATIONS_NODE + "/" + INDEX_NODE + "/" + getBucketPath(ITEMS_NODE, identifier) + "/" + identifier;
+    if (!session.itemExists(entryPath)) {
+      return -1;
+    }
+    Node entry = (Node) session.getItem(entryPath);
+    return entry.hasProperty("reclaimableSize") ? entry.getProperty("reclaimableSize").getLong() : -1;
+  }
+
+  @Override
+  public void onEvent(EventIterator events) {
+    List<String> addedPaths = new ArrayList<>();
+    Set<String> removedNames = new HashSet<>();
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        if (event.getType() == Event.NODE_ADDED) {
+          addedPaths.add(event.getPath());
+        } else {
+          removedNames.add(getName(event.getPath()));
+        }
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to read trash event, the trash size index will be fixed by the next reconciliation", e);
+      }
+    }
+    if (addedPaths.isEmpty() && removedNames.isEmpty()) {
+      return;
+    }
+    try {
+      executor.execute(() -> apply(addedPaths, removedNames));
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Trash size index is stopped, {} events ignored", addedPaths.size() + removedNames.size());
+    }
+  }
+
+  private void initialize() {
+    ExoContainerContext.setCurrentContainer(container);
+    try {
+      Node trashHome = trashService.getTrashHomeNode();
+      trashPath = trashHome.getPath();
+      workspace = trashHome.getSession().getWorkspace().getName();
+      listenerSessionProvider = SessionProvider.createSystemProvider();
+      Session listenerSession = listenerSessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      listenerSession.getWorkspace()
+                     .getObservationManager()
+                     .addEventListener(this, Event.NODE_ADDED | Event.NODE_REMOVED, trashPath, false, null, null, false);
+
+      if (load()) {
+        LOG.info("Trash size index loaded : {}", summary);
+        return;
+      }
+      if (claimReconciliation()) {
+        LOG.info("No trash size index found, build it");
+        doReconcile(new JobProgress());
+      }
+    } catch (Exception e) {
+      LOG.error("Unable to initialize the trash size index", e);
+    }
+  }
+
+  /**
+   * Publishes the totals of the persisted index, once it has been built.
+   *
+   * @return false if the index has not been built yet
+   */
+  private boolean load() throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Node root = session.getRootNode();
+      if (root.hasNode(APPLICATIONS_NODE) && root.getNode(APPLICATIONS_NODE).hasNode(INDEX_NODE)
+          && root.getNode(APPLICATIONS_NODE).getNode(INDEX_NODE).hasProperty("reconciled")) {
+        publish(root.getNode(APPLICATIONS_NODE).getNode(INDEX_NODE));
+        return true;
+      }
+      return false;
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Claims the next scheduled reconciliation for this cluster node. It is not
+   * claimed when another node started or finished one during the last half
+   * interval, as the same schedule runs on every node.
+   *
+   * @return true if this node must reconcile the index
+   */
+  private boolean claimReconciliation() throws Exception {
+    String owner = ShardLeaseManager.getDefaultOwner();
+    return withLock(indexNode -> {
+      long last = Math.max(getTime(indexNode, "reconciled"), getTime(indexNode, "reconcileStarted"));
+      if (last > System.currentTimeMillis() - reconcileInterval / 2) {
+        LOG.info("Trash size index reconciliation already run by {}",
+                 indexNode.hasProperty("reconcileOwner") ? indexNode.getProperty("reconcileOwner").getString() : "another node");
+        return false;
+      }
+      indexNode.setProperty("reconcileStarted", Calendar.getInstance());
+      indexNode.setProperty("reconcileOwner", owner);
+      indexNode.getSession().save();
+      return true;
+    });
+  }
+
+  private long getTime(Node indexNode, String property) throws RepositoryException {
+    return indexNode.hasProperty(property) ? indexNode.getProperty(property).getDate().getTimeInMillis() : 0;
+  }
+
+  /**
+   * Applies a batch of events. The items may have been moved again since the
+   * events, so their current state is read : the added items are scanned before
+   * taking the lock, the entries of the removed names are checked, and the
+   * totals are read, updated and saved while holding it.
+   *
+   * @param addedPaths the paths of the items added to the trash
+   * @param removedNames the names of the items removed from the trash
+   */
+  private void apply(List<String> addedPaths, Set<String> removedNames) {
+    ExoContainerContext.setCurrentContainer(container);
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Map<String, IndexEntry> added = new LinkedHashMap<>();
+      Session scanSession = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      for (String path : addedPaths) {
+        if (scanSession.itemExists(path)) {
+          Node item = (Node) scanSession.getItem(path);
+          TrashSizeScan scan = computeTrashSizeService.scanItem(item, new JobProgress());
+          added.put(((NodeImpl) item).getIdentifier(),
+                    new IndexEntry(item.getName(),
+                                   new long[] { scan.getNbFiles(), scan.getSize(), scan.getVersionHistorySize(),
+                                       scan.getReclaimableSize() }));
+        }
+      }
+      withLock(indexNode -> {
+        long[] totals = getTotals(indexNode);
+        long items = getItems(indexNode);
+        for (String name : removedNames) {
+          for (String identifier : getIdentifiers(indexNode, name)) {
+            if (!added.containsKey(identifier) && !isTrashItem(indexNode.getSession(), identifier)
+                && removeEntry(indexNode, identifier, totals)) {
+              items--;
+            }
+          }
+        }
+        for (Map.Entry<String, IndexEntry> entry : added.entrySet()) {
+          if (removeEntry(indexNode, entry.getKey(), totals)) {
+            items--;
+          }
+          writeEntry(indexNode, entry.getKey(), entry.getValue());
+          items++;
+          for (int i = 0; i < totals.length; i++) {
+            totals[i] += entry.getValue().values[i];
+          }
+        }
+        writeTotals(indexNode, items, totals);
+        indexNode.getSession().save();
+        publish(indexNode);
+        return null;
+      });
+      LOG.debug("Trash size index updated for {} added and {} removed names : {}", added.size(), removedNames.size(), summary);
+    } catch (Exception e) {
+      LOG.error("Unable to update the trash size index for {} and {}, it will be fixed by the next reconciliation",
+                addedPaths,
+                removedNames,
+                e);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * @return true if the node with the given identifier is a trash item
+   */
+  private boolean isTrashItem(Session session, String identifier) throws RepositoryException {
+    try {
+      Node item = ((SessionImpl) session).getNodeByIdentifier(identifier);
+      return item.getDepth() > 0 && item.getParent().getPath().equals(trashPath);
+    } catch (ItemNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Rescans the trash in two streamed passes : the trash items are compared to
+   * their entries, then the entries of items no longer in the trash are removed.
+   * The trash is read with its own sessions, the index changes are saved every
+   * {@value #SAVE_INTERVAL} entries, and the totals are written under the lock.
+   */
+  private String doReconcile(JobProgress progress) throws Exception {
+    if (trashPath == null) {
+      throw new IllegalStateException("Trash size index is not initialized");
+    }
+    ExoContainerContext.setCurrentContainer(container);
+    long startTime = System.currentTimeMillis();
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    SessionProvider scanSessionProvider = SessionProvider.createSystemProvider();
+    SessionProvider indexSessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Session scanSession = scanSessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Session indexSession = indexSessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Node indexNode = getIndexNode(indexSession);
+      long[] totals = new long[4];
+      long items = 0;
+      long changes = 0;
+      NodeIterator trashItems = ((Node) session.getItem(trashPath)).getNodes();
+      while (trashItems.hasNext() && !progress.isCancelled()) {
+        String itemPath = trashItems.nextNode().getPath();
+        if (!scanSession.itemExists(itemPath)) {
+          continue;
+        }
+        Node item = (Node) scanSession.getItem(itemPath);
+        TrashSizeScan scan = computeTrashSizeService.scanItem(item, progress);
+        IndexEntry entry = new IndexEntry(item.getName(),
+                                          new long[] { scan.getNbFiles(), scan.getSize(), scan.getVersionHistorySize(),
+                                              scan.getReclaimableSize() });
+        items++;
+        for (int i = 0; i < totals.length; i++) {
+          totals[i] += entry.values[i];
+        }
+        String identifier = ((NodeImpl) item).getIdentifier();
+        Node indexed = getEntry(indexNode, identifier);
+        if (indexed == null || !Arrays.equals(entry.values, readEntry(indexed))
+            || !entry.name.equals(getEntryName(indexed))) {
+          writeEntry(indexNode, identifier, entry);
+          if (++changes % SAVE_INTERVAL == 0) {
+            indexSession.save();
+          }
+        }
+      }
+      indexSession.save();
+      if (progress.isCancelled()) {
+        return "Trash size reconciliation cancelled, totals unchanged";
+      }
+
+      Node readIndexNode = (Node) session.getItem(indexNode.getPath());
+      NodeIterator children = readIndexNode.getNodes();
+      while (children.hasNext()) {
+        // entries keyed by item name before the hash buckets
+        String name = children.nextNode().getName();
+        if (!ITEMS_NODE.equals(name) && !NAMES_NODE.equals(name) && indexNode.hasNode(name)) {
+          indexNode.getNode(name).remove();
+          changes++;
+        }
+      }
+      if (readIndexNode.hasNode(ITEMS_NODE)) {
+        NodeIterator buckets = readIndexNode.getNode(ITEMS_NODE).getNodes();
+        while (buckets.hasNext()) {
+          NodeIterator subBuckets = buckets.nextNode().getNodes();
+          while (subBuckets.hasNext()) {
+            NodeIterator entries = subBuckets.nextNode().getNodes();
+            while (entries.hasNext()) {
+              String identifier = entries.nextNode().getName();
+              if (!isTrashItem(session, identifier) && removeEntry(indexNode, identifier, null)
+                  && ++changes % SAVE_INTERVAL == 0) {
+                indexSession.save();
+              }
+            }
+          }
+        }
+      }
+      indexSession.save();
+
+      long reconciledItems = items;
+      String drift = withLock(lockedIndexNode -> {
+        long[] indexed = getTotals(lockedIndexNode);
+        writeTotals(lockedIndexNode, reconciledItems, totals);
+        String foundDrift = null;
+        if (lockedIndexNode.hasProperty("reconciled")
+            && (indexed[FILES] != totals[FILES] || indexed[SIZE] != totals[SIZE] || indexed[VERSIONS] != totals[VERSIONS]
+                || indexed[RECLAIMABLE] != totals[RECLAIMABLE])) {
+          foundDrift = "files " + (totals[FILES] - indexed[FILES]) + ", size " + (totals[SIZE] - indexed[SIZE])
+              + " B, version history " + (totals[VERSIONS] - indexed[VERSIONS]) + " B, reclaimable "
+              + (totals[RECLAIMABLE] - indexed[RECLAIMABLE]) + " B";
+        }
+        lockedIndexNode.setProperty("reconciled", Calendar.getInstance());
+        lockedIndexNode.setProperty("lastDrift", foundDrift);
+        lockedIndexNode.getSession().save();
+        publish(lockedIndexNode);
+        return foundDrift;
+      });
+
+      String result = "Trash size index reconciled in " + (System.currentTimeMillis() - startTime) + " ms, " + changes
+          + " entries changed. " + summary;
+      if (drift != null) {
+        result += " Drift found : " + drift;
+        LOG.warn(result);
+      } else {
+        LOG.info(result);
+      }
+      return result;
+    } finally {
+      indexSessionProvider.close();
+      scanSessionProvider.close();
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Runs the operation while holding the lock of the index node, with a new
+   * system session.
+   */
+  private <T> T withLock(LockedOperation<T> operation) throws Exception {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      Node indexNode = getIndexNode(session);
+      if (!indexNode.isNodeType("mix:lockable")) {
+        indexNode.addMixin("mix:lockable");
+        session.save();
+      }
+      for (int attempt = 1;; attempt++) {
+        try {
+          indexNode.lock(false, true);
+          break;
+        } catch (LockException e) {
+          if (attempt >= LOCK_ATTEMPTS) {
+            throw e;
+          }
+          Thread.sleep(LOCK_RETRY_DELAY);
+        }
+      }
+      try {
+        session.refresh(false);
+        return operation.run(indexNode);
+      } finally {
+        session.refresh(false);
+        indexNode.unlock();
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private void publish(Node indexNode) throws RepositoryException {
+    long[] totals = getTotals(indexNode);
+    summary = new TrashSizeSummary(getItems(indexNode),
+                                   totals[FILES],
+                                   totals[SIZE],
+                                   totals[VERSIONS],
+                                   totals[RECLAIMABLE],
+                                   indexNode.getProperty("updated").getDate().getTimeInMillis(),
+                                   indexNode.hasProperty("reconciled") ? indexNode.getProperty("reconciled").getDate().getTimeInMillis()
+                                                                       : 0,
+                                   indexNode.hasProperty("lastDrift") ? indexNode.getProperty("lastDrift").getString() : null);
+  }
+
+  /**
+   * @return the index node, created and saved if missing
+   */
+  private Node getIndexNode(Session session) throws RepositoryException {
+    Node root = session.getRootNode();
+    Node applications = root.hasNode(APPLICATIONS_NODE) ? root.getNode(APPLICATIONS_NODE)
+                                                        : root.addNode(APPLICATIONS_NODE, "nt:unstructured");
+    if (applications.hasNode(INDEX_NODE)) {
+      return applications.getNode(INDEX_NODE);
+    }
+    try {
+      Node indexNode = applications.addNode(INDEX_NODE, "nt:unstructured");
+      indexNode.addMixin("mix:lockable");
+      session.save();
+      return indexNode;
+    } catch (ItemExistsException e) {
+      // created at the same time by another node
+      session.refresh(false);
+      return session.getRootNode().getNode(APPLICATIONS_NODE).getNode(INDEX_NODE);
+    }
+  }
+
+  /**
+   * @return the name of the item with the given path, without its same name
+   *         sibling index
+   */
+  private String getName(String path) {
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    int index = name.indexOf('[');
+    return index < 0 ? name : name.substring(0, index);
+  }
+
+  /**
+   * @return the path of the bucket of the key, relative to the index node, two
+   *         levels of 256 buckets under the given child
+   */
+  private String getBucketPath(String child, String key) {
+    int hash = key.hashCode();
+    return child + "/" + String.format("%02x/%02x", (hash >>> 8) & 0xff, hash & 0xff);
+  }
+
+  /**
+   * @return the bucket of the key, null if it does not exist and must not be
+   *         created
+   */
+  private Node getBucket(Node indexNode, String child, String key, boolean create) throws RepositoryException {
+    String path = getBucketPath(child, key);
+    if (indexNode.hasNode(path)) {
+      return indexNode.getNode(path);
+    }
+    if (!create) {
+      return null;
+    }
+    Node bucket = indexNode;
+    for (String name : path.split("/")) {
+      bucket = bucket.hasNode(name) ? bucket.getNode(name) : bucket.addNode(name, "nt:unstructured");
+    }
+    return bucket;
+  }
+
+  /**
+   * @return the entry of the trash item with the given identifier, null if it is
+   *         not indexed
+   */
+  private Node getEntry(Node indexNode, String identifier) throws RepositoryException {
+    Node bucket = getBucket(indexNode, ITEMS_NODE, identifier, false);
+    return bucket != null && bucket.hasNode(identifier) ? bucket.getNode(identifier) : null;
+  }
+
+  private String getEntryName(Node entry) throws RepositoryException {
+    return entry.hasProperty("itemName") ? entry.getProperty("itemName").getString() : null;
+  }
+
+  /**
+   * Removes an entry, and subtracts it from the given totals.
+   *
+   * @param totals the totals to update, null to leave them
+   * @return false if the item was not indexed
+   */
+  private boolean removeEntry(Node indexNode, String identifier, long[] totals) throws RepositoryException {
+    Node entry = getEntry(indexNode, identifier);
+    if (entry == null) {
+      return false;
+    }
+    if (totals != null) {
+      long[] removed = readEntry(entry);
+      for (int i = 0; i < totals.length; i++) {
+        totals[i] -= removed[i];
+      }
+    }
+    String name = getEntryName(entry);
+    if (name != null) {
+      removeIdentifier(indexNode, name, identifier);
+    }
+    entry.remove();
+    return true;
+  }
+
+  /**
+   * @return the identifiers of the indexed items with the given name
+   */
+  private List<String> getIdentifiers(Node indexNode, String name) throws RepositoryException {
+    String key = Text.escapeIllegalJcrChars(name);
+    Node bucket = getBucket(indexNode, NAMES_NODE, key, false);
+    List<String> identifiers = new ArrayList<>();
+    if (bucket != null && bucket.hasNode(key)) {
+      for (Value value : bucket.getNode(key).getProperty("identifiers").getValues()) {
+        identifiers.add(value.getString());
+      }
+    }
+    return identifiers;
+  }
+
+  private void addIdentifier(Node indexNode, String name, String identifier) throws RepositoryException {
+    List<String> identifiers = getIdentifiers(indexNode, name);
+    if (identifiers.contains(identifier)) {
+      return;
+    }
+    identifiers.add(identifier);
+    String key = Text.escapeIllegalJcrChars(name);
+    Node bucket = getBucket(indexNode, NAMES_NODE, key, true);
+    Node names = bucket.hasNode(key) ? bucket.getNode(key) : bucket.addNode(key, "nt:unstructured");
+    names.setProperty("identifiers", identifiers.toArray(new String[identifiers.size()]));
+  }
+
+  private void removeIdentifier(Node indexNode, String name, String identifier) throws RepositoryException {
+    List<String> identifiers = getIdentifiers(indexNode, name);
+    if (!identifiers.remove(identifier)) {
+      return;
+    }
+    String key = Text.escapeIllegalJcrChars(name);
+    Node names = getBucket(indexNode, NAMES_NODE, key, false).getNode(key);
+    if (identifiers.isEmpty()) {
+      names.remove();
+    } else {
+      names.setProperty("identifiers", identifiers.toArray(new String[identifiers.size()]));
+    }
+  }
+
+  private long[] getTotals(Node indexNode) throws RepositoryException {
+    return indexNode.hasProperty("nbFiles") ? readEntry(indexNode) : new long[4];
+  }
+
+  private long getItems(Node indexNode) throws RepositoryException {
+    return indexNode.hasProperty("items") ? indexNode.getProperty("items").getLong() : 0;
+  }
+
+  private void writeTotals(Node indexNode, long items, long[] totals) throws RepositoryException {
+    indexNode.setProperty("nbFiles", totals[FILES]);
+    indexNode.setProperty("size", totals[SIZE]);
+    indexNode.setProperty("versionHistorySize", totals[VERSIONS]);
+    indexNode.setProperty("reclaimableSize", totals[RECLAIMABLE]);
+    indexNode.setProperty("items", items);
+    indexNode.setProperty("updated", Calendar.getInstance());
+  }
+
+  /**
+   * The reclaimable size is missing from the entries written before it was
+   * computed, they are fixed by the next reconciliation.
+   */
+  private long[] readEntry(Node entry) throws RepositoryException {
+    return new long[] { entry.getProperty("nbFiles").getLong(), entry.getProperty("size").getLong(),
+        entry.getProperty("versionHistorySize").getLong(),
+        entry.hasProperty("reclaimableSize") ? entry.getProperty("reclaimableSize").getLong() : 0 };
+  }
+
+  /**
+   * Writes the entry of a trash item, and lists its identifier under its name.
+   */
+  private void writeEntry(Node indexNode, String identifier, IndexEntry values) throws RepositoryException {
+    Node bucket = getBucket(indexNode, ITEMS_NODE, identifier, true);
+    Node entry = bucket.hasNode(identifier) ? bucket.getNode(identifier) : bucket.addNode(identifier, "nt:unstructured");
+    String previousName = getEntryName(entry);
+    if (previousName != null && !previousName.equals(values.name)) {
+      removeIdentifier(indexNode, previousName, identifier);
+    }
+    entry.setProperty("itemName", values.name);
+    entry.setProperty("nbFiles", values.values[FILES]);
+    entry.setProperty("size", values.values[SIZE]);
+    entry.setProperty("versionHistorySize", values.values[VERSIONS]);
+    entry.setProperty("reclaimableSize", values.values[RECLAIMABLE]);
+    addIdentifier(indexNode, values.name, identifier);
+  }
+}
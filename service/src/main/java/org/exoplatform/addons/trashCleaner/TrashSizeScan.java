@@ -0,0 +1,123 @@
+package org.exoplatform.addons.trashCleaner;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+/**
+ * State of one trash size computation.
+ */
+public class TrashSizeScan {
+
+  private final SizeProbeStatistics probeStatistics;
+
+  private final JobProgress         progress;
+
+  private long                      nbFiles;
+
+  private long                      size;
+
+  private long                      versionHistorySize;
+
+  private long                      reclaimableSize;
+
+  private final BinaryDeduplicator  deduplicator = new BinaryDeduplicator();
+
+  private final StorageAnalytics    analytics;
+
+  private Long                      itemAgeInDays;
+
+  private String                    itemOwner;
+
+  public TrashSizeScan(SizeProbeStatistics probeStatistics, JobProgress progress) {
+    this(probeStatistics, progress, null);
+  }
+
+  /**
+   * @param analytics the histograms filled with the scanned files, or null
+   */
+  public TrashSizeScan(SizeProbeStatistics probeStatistics, JobProgress progress, StorageAnalytics analytics) {
+    this.probeStatistics = probeStatistics;
+    this.progress = progress;
+    this.analytics = analytics;
+  }
+
+  /**
+   * Sets the trash item whose files are scanned next, for the analytics.
+   *
+   * @param ageInDays the number of days since the item was trashed, null if unknown
+   */
+  public void startItem(Long ageInDays, String owner) {
+    this.itemAgeInDays = ageInDays;
+    this.itemOwner = owner;
+  }
+
+  public void addFile(long fileSize) {
+    nbFiles++;
+    size += fileSize;
+    progress.addItems(1);
+    progress.addBytes(fileSize);
+  }
+
+  public void addVersionHistory(long versionsSize) {
+    versionHistorySize += versionsSize;
+    progress.addBytes(versionsSize);
+  }
+
+  /**
+   * Counts a binary in the reclaimable size, unless the same binary was already
+   * counted.
+   */
+  public void addReclaimable(Property data, long binarySize) throws RepositoryException {
+    if (!deduplicator.isDuplicate(data, binarySize)) {
+      reclaimableSize += binarySize;
+    }
+  }
+
+  /**
+   * Adds a file of the current trash item to the analytics, if any.
+   */
+  public void addAnalytics(String mimeType, long fileSize, long versionsSize) {
+    if (analytics != null) {
+      analytics.addFile(mimeType, itemAgeInDays, itemOwner, fileSize, versionsSize);
+    }
+  }
+
+  public StorageAnalytics getAnalytics() {
+    return analytics;
+  }
+
+  public BinaryDeduplicator getDeduplicator() {
+    return deduplicator;
+  }
+
+  public SizeProbeStatistics getProbeStatistics() {
+    return probeStatistics;
+  }
+
+  public JobProgress getProgress() {
+    return progress;
+  }
+
+  public long getNbFiles() {
+    return nbFiles;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the logical size of the versions, each version counted with its full
+   *         content
+   */
+  public long getVersionHistorySize() {
+    return versionHistorySize;
+  }
+
+  /**
+   * @return the size of the distinct binaries of the files and their versions
+   */
+  public long getReclaimableSize() {
+    return reclaimableSize;
+  }
+}
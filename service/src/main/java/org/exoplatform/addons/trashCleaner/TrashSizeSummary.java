@@ -0,0 +1,94 @@
+package org.exoplatform.addons.trashCleaner;
+
+/**
+ * Totals of the {@link TrashSizeIndex}, as returned by the REST API.
+ */
+public class TrashSizeSummary {
+
+  private final long   items;
+
+  private final long   nbFiles;
+
+  private final long   size;
+
+  private final long   versionHistorySize;
+
+  private final long   reclaimableSize;
+
+  private final long   updated;
+
+  private final long   reconciled;
+
+  private final String lastDrift;
+
+  public TrashSizeSummary(long items,
+                          long nbFiles,
+                          long size,
+                          long versionHistorySize,
+                          long reclaimableSize,
+                          long updated,
+                          long reconciled,
+                          String lastDrift) {
+    this.items = items;
+    this.nbFiles = nbFiles;
+    this.size = size;
+    this.versionHistorySize = versionHistorySize;
+    this.reclaimableSize = reclaimableSize;
+    this.updated = updated;
+    this.reconciled = reconciled;
+    this.lastDrift = lastDrift;
+  }
+
+  public long getItems() {
+    return items;
+  }
+
+  public long getNbFiles() {
+    return nbFiles;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getVersionHistorySize() {
+    return versionHistorySize;
+  }
+
+  /**
+   * @return the size of the distinct binaries of the files and their versions,
+   *         summed per trash item
+   */
+  public long getReclaimableSize() {
+    return reclaimableSize;
+  }
+
+  /**
+   * @return the time of the last update of the index, in ms
+   */
+  public long getUpdated() {
+    return updated;
+  }
+
+  /**
+   * @return the time of the last full rescan, in ms, 0 if never reconciled
+   */
+  public long getReconciled() {
+    return reconciled;
+  }
+
+  /**
+   * @return the difference found by the last full rescan, null if there was none
+   */
+  public String getLastDrift() {
+    return lastDrift;
+  }
+
+  @Override
+  public String toString() {
+    return "There are " + nbFiles + " files in trash, with a size of " + ComputeTrashSizeService.humanReadableByteCountBin(size)
+        + ". Theses files are related to a size of " + ComputeTrashSizeService.humanReadableByteCountBin(versionHistorySize)
+        + " in versions history! Identical binaries counted once, the reclaimable size is "
+        + ComputeTrashSizeService.humanReadableByteCountBin(reclaimableSize) + ".";
+  }
+}
@@ -0,0 +1,132 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Walks a JCR subtree without recursion. The paths still to visit are kept in a
+ * work deque, so the stack does not depend on the tree depth, and only paths are
+ * kept, not nodes. Subtrees deeper than the maximum depth are skipped, or fail
+ * the walk when the whole subtree must be visited. The
+ * session is refreshed every N visited nodes to release its item cache, unless
+ * it has pending changes, which are never discarded.
+ */
+public class TreeWalker {
+
+  private static final Log   LOG                       = ExoLogger.getLogger(TreeWalker.class);
+
+  public static final String MAX_DEPTH_PROPERTY        = "trashcleaner.traversal.max.depth";
+
+  public static final String REFRESH_INTERVAL_PROPERTY = "trashcleaner.traversal.refresh.interval";
+
+  /**
+   * Visits one node of the walked subtree.
+   */
+  public interface Visitor {
+    /**
+     * @param depth the depth of the node below the walk root, 0 for the root
+     * @return true to visit the children of the node
+     */
+    boolean visit(Node node, int depth) throws RepositoryException;
+  }
+
+  private final int maxDepth;
+
+  private final int refreshInterval;
+
+  /**
+   * @param maxDepth the depth below which nodes are not visited
+   * @param refreshInterval the number of visited nodes between two session
+   *          refreshes, 0 to never refresh
+   */
+  public TreeWalker(int maxDepth, int refreshInterval) {
+    this.maxDepth = maxDepth;
+    this.refreshInterval = refreshInterval;
+  }
+
+  public static TreeWalker fromSystemProperties() {
+    return new TreeWalker(Integer.parseInt(System.getProperty(MAX_DEPTH_PROPERTY, "1000")),
+                          Integer.parseInt(System.getProperty(REFRESH_INTERVAL_PROPERTY, "1000")));
+  }
+
+  /**
+   * Walks the subtree of the root, depth first, skipping the nodes deeper than the
+   * maximum depth.
+   *
+   * @param progress stops the walk when cancelled, or null
+   * @return the number of visited nodes
+   */
+  public long walk(Node root, Visitor visitor, JobProgress progress) throws RepositoryException {
+    return walk(root, visitor, progress, false);
+  }
+
+  /**
+   * Walks the subtree of the root, depth first.
+   *
+   * @param progress stops the walk when cancelled, or null
+   * @param failOnMaxDepth true to fail when a node deeper than the maximum depth
+   *          is found, when the subtree is only correct if visited entirely
+   * @return the number of visited nodes
+   * @throws MaxDepthExceededException if a node is deeper than the maximum depth
+   *           and failOnMaxDepth is true
+   */
+  public long walk(Node root, Visitor visitor, JobProgress progress, boolean failOnMaxDepth) throws RepositoryException {
+    Session session = root.getSession();
+    Deque<String> paths = new ArrayDeque<>();
+    Deque<Integer> depths = new ArrayDeque<>();
+    paths.push(root.getPath());
+    depths.push(0);
+    long visited = 0;
+    while (!paths.isEmpty() && (progress == null || !progress.isCancelled())) {
+      String path = paths.pop();
+      int depth = depths.pop();
+      Node node;
+      try {
+        node = (Node) session.getItem(path);
+      } catch (PathNotFoundException e) {
+        LOG.debug("Node {} removed during the walk", path);
+        continue;
+      }
+      visited++;
+      if (visitor.visit(node, depth)) {
+        if (depth < maxDepth) {
+          NodeIterator children = node.getNodes();
+          while (children.hasNext()) {
+            paths.push(children.nextNode().getPath());
+            depths.push(depth + 1);
+          }
+        } else if (node.hasNodes()) {
+          if (failOnMaxDepth) {
+            throw new MaxDepthExceededException("Maximum depth of " + maxDepth + " reached at " + path);
+          }
+          LOG.warn("Maximum depth of {} reached at {}, its children are skipped", maxDepth, path);
+        }
+      }
+      if (refreshInterval > 0 && visited % refreshInterval == 0 && !session.hasPendingChanges()) {
+        session.refresh(false);
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * Thrown when a subtree which must be visited entirely is deeper than the
+   * maximum depth.
+   */
+  public static class MaxDepthExceededException extends RepositoryException {
+    private static final long serialVersionUID = 1L;
+
+    public MaxDepthExceededException(String message) {
+      super(message);
+    }
+  }
+}
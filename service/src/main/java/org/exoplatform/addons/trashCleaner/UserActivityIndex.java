@@ -0,0 +1,152 @@
+package org.exoplatform.addons.trashCleaner;
+
+import org.exoplatform.commons.utils.ListAccess;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserStatus;
+
+/**
+ * In-memory index of username to creation and last login times, loaded with one
+ * paged pass over the organization service users. Times are kept as primitive
+ * epoch millis in an open addressing table, no {@link User} is retained.
+ */
+public class UserActivityIndex {
+
+  private static final Log  LOG           = ExoLogger.getLogger(UserActivityIndex.class);
+
+  /** Last login time of a user who never logged in */
+  public static final long  NEVER         = -1;
+
+  private static final int  PAGE_SIZE     = 500;
+
+  private String[]          usernames;
+
+  private long[]            createdDates;
+
+  private long[]            lastLoginDates;
+
+  private int               size;
+
+  private long              buildTime;
+
+  public UserActivityIndex(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+    usernames = new String[capacity];
+    createdDates = new long[capacity];
+    lastLoginDates = new long[capacity];
+  }
+
+  /**
+   * Loads all the users, whatever their status, page by page.
+   */
+  public static UserActivityIndex build(OrganizationService organizationService) throws Exception {
+    long startTime = System.currentTimeMillis();
+    RequestLifeCycle.begin(ExoContainerContext.getCurrentContainer());
+    try {
+      ListAccess<User> users = organizationService.getUserHandler().findAllUsers(UserStatus.ANY);
+      int total = users.getSize();
+      UserActivityIndex index = new UserActivityIndex(total);
+      for (int offset = 0; offset < total; offset += PAGE_SIZE) {
+        for (User user : users.load(offset, Math.min(PAGE_SIZE, total - offset))) {
+          if (user == null) {
+            continue;
+          }
+          long createdDate = user.getCreatedDate() == null ? 0 : user.getCreatedDate().getTime();
+          long lastLoginDate = user.getLastLoginTime() == null ? NEVER : user.getLastLoginTime().getTime();
+          index.put(user.getUserName(), createdDate, lastLoginDate);
+        }
+      }
+      index.buildTime = System.currentTimeMillis() - startTime;
+      LOG.info("User activity index built for {} users in {} ms, estimated memory footprint {}",
+               index.size(),
+               index.buildTime,
+               ComputeUserFolderSizeService.humanReadableByteCountBin(index.getEstimatedFootprint()));
+      return index;
+    } finally {
+      RequestLifeCycle.end();
+    }
+  }
+
+  public void put(String username, long createdDate, long lastLoginDate) {
+    if ((size + 1) * 2 > usernames.length) {
+      resize();
+    }
+    int slot = slot(username);
+    if (usernames[slot] == null) {
+      usernames[slot] = username;
+      size++;
+    }
+    createdDates[slot] = createdDate;
+    lastLoginDates[slot] = lastLoginDate;
+  }
+
+  /**
+   * @return the slot of the user, to be used with the getters, or -1 if the user is not indexed
+   */
+  public int indexOf(String username) {
+    int slot = slot(username);
+    return usernames[slot] == null ? -1 : slot;
+  }
+
+  public long getCreatedDate(int slot) {
+    return createdDates[slot];
+  }
+
+  public long getLastLoginDate(int slot) {
+    return lastLoginDates[slot];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getBuildTime() {
+    return buildTime;
+  }
+
+  /**
+   * @return an estimation in bytes of the memory used by the index, usernames included
+   */
+  public long getEstimatedFootprint() {
+    long footprint = (long) usernames.length * (8 + 8 + 8);
+    for (String username : usernames) {
+      if (username != null) {
+        // String header and value array header, Latin-1 compact string
+        footprint += 24 + 16 + username.length();
+      }
+    }
+    return footprint;
+  }
+
+  private int slot(String username) {
+    int mask = usernames.length - 1;
+    int slot = mix(username.hashCode()) & mask;
+    while (usernames[slot] != null && !usernames[slot].equals(username)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    String[] oldUsernames = usernames;
+    long[] oldCreatedDates = createdDates;
+    long[] oldLastLoginDates = lastLoginDates;
+    usernames = new String[oldUsernames.length * 2];
+    createdDates = new long[usernames.length];
+    lastLoginDates = new long[usernames.length];
+    size = 0;
+    for (int i = 0; i < oldUsernames.length; i++) {
+      if (oldUsernames[i] != null) {
+        put(oldUsernames[i], oldCreatedDates[i], oldLastLoginDates[i]);
+      }
+    }
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,65 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * User folders selected for a purge, with their size, collected by the traversal
+ * workers of a user folders size computation.
+ */
+public class UserFolderPlan {
+
+  private final List<String> identifiers = new ArrayList<>();
+
+  private final List<String> paths       = new ArrayList<>();
+
+  private final List<Long>   sizes       = new ArrayList<>();
+
+  private final List<Long>   dates       = new ArrayList<>();
+
+  private long               totalSize;
+
+  /**
+   * @param lastActivity the last activity time of the user, -1 if the user does
+   *          not exist
+   */
+  public synchronized void add(String identifier, String path, long lastActivity, long size) {
+    identifiers.add(identifier);
+    paths.add(path);
+    sizes.add(size);
+    dates.add(lastActivity);
+    totalSize += size;
+  }
+
+  public synchronized int size() {
+    return identifiers.size();
+  }
+
+  public synchronized String getIdentifier(int index) {
+    return identifiers.get(index);
+  }
+
+  public synchronized String getPath(int index) {
+    return paths.get(index);
+  }
+
+  /**
+   * @return the name of the user folder, which is the user name
+   */
+  public synchronized String getUsername(int index) {
+    String path = paths.get(index);
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  public synchronized long getSize(int index) {
+    return sizes.get(index);
+  }
+
+  public synchronized long getLastActivity(int index) {
+    return dates.get(index);
+  }
+
+  public synchronized long getTotalSize() {
+    return totalSize;
+  }
+}
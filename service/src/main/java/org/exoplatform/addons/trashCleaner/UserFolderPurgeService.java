@@ -0,0 +1,270 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.jcr.impl.core.SessionImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Purges the folders of users not connected since a limit date, or of users
+ * which no longer exist. The folders are selected with the same rule as the user
+ * folders size computation, then deleted on a pool of workers. Right before its
+ * deletion, each folder is resolved again by identifier and its user is looked
+ * up again : the folder is kept if it has moved, or if the user has been active
+ * since or can not be looked up. A user folder can be
+ * huge, so its nodes are removed children first, by saves of a bounded number of
+ * nodes. Relations, actions, thumbnails and audit are cleaned as for the trash
+ * items.
+ */
+public class UserFolderPurgeService {
+
+  private static final Log                   LOG                 = ExoLogger.getLogger(UserFolderPurgeService.class);
+
+  public static final String                 WORKERS_PROPERTY    = "trashcleaner.userfolders.purge.workers";
+
+  public static final String                 BATCH_SIZE_PROPERTY = "trashcleaner.userfolders.purge.batch.size";
+
+  private static final int                   REFRESH_INTERVAL    = 1000;
+
+  private final ComputeUserFolderSizeService computeUserFolderSizeService;
+
+  public UserFolderPurgeService(ComputeUserFolderSizeService computeUserFolderSizeService) {
+    this.computeUserFolderSizeService = computeUserFolderSizeService;
+  }
+
+  /**
+   * @param limitDate the folders of users not connected since this date are purged
+   * @param dryRun only computes the plan, nothing is deleted
+   * @return the result message
+   */
+  public String purge(Instant limitDate, boolean dryRun, JobProgress progress) throws Exception {
+    UserFolderPlan plan = new UserFolderPlan();
+    String selection = computeUserFolderSizeService.computeUserFolderSize(limitDate, progress, null, plan);
+    if (dryRun || progress.isCancelled()) {
+      String result = (progress.isCancelled() ? "Cancelled. " : "Dry run. ") + plan.size() + " user folders would be purged, "
+          + ComputeTrashSizeService.humanReadableByteCountBin(plan.getTotalSize()) + " would be freed. " + selection;
+      LOG.info(result);
+      return result;
+    }
+    return purge(plan, limitDate.toEpochMilli(), progress) + " " + selection;
+  }
+
+  /**
+   * Deletes the user folders of the plan whose user is still inactive since the
+   * limit date, or still does not exist.
+   *
+   * @return the result message
+   */
+  public String purge(UserFolderPlan plan, long limitDate, JobProgress progress) throws RepositoryException {
+    String workspace = computeUserFolderSizeService.getUsersWorkspace();
+    int workers = Integer.parseInt(System.getProperty(WORKERS_PROPERTY, "2"));
+    int batchSize = Integer.parseInt(System.getProperty(BATCH_SIZE_PROPERTY, "500"));
+    LOG.info("Purge {} user folders, with {} workers and saves of {} nodes", plan.size(), workers, batchSize);
+    progress.setTotalItems(progress.getItemsScanned() + plan.size());
+
+    long startTime = System.currentTimeMillis();
+    ExoContainer container = ExoContainerContext.getCurrentContainer();
+    TrashNodeCleaner cleaner = TrashNodeCleaner.fromContainer(container);
+    TrashCleanerCounters nodeCounters = new TrashCleanerCounters();
+    AtomicLong purged = new AtomicLong();
+    AtomicLong kept = new AtomicLong();
+    AtomicInteger nextFolder = new AtomicInteger();
+    AdaptiveThrottle throttle = AdaptiveThrottle.fromSystemProperties();
+    AtomicInteger threadIndex = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(workers,
+                                                             runnable -> new Thread(runnable,
+                                                                                    "UserFolderPurgeWorker-"
+                                                                                        + threadIndex.incrementAndGet()));
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < workers; i++) {
+        futures.add(executor.submit(() -> purgeFolders(container,
+                                                       cleaner,
+                                                       new TrashBatchDeleter(cleaner, workspace, batchSize, nodeCounters, throttle),
+                                                       workspace,
+                                                       throttle,
+                                                       plan,
+                                                       limitDate,
+                                                       nextFolder,
+                                                       purged,
+                                                       kept,
+                                                       progress)));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException ex) {
+          LOG.error("User folder purge worker failed", ex.getCause());
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      progress.cancel();
+      LOG.warn("User folder purge interrupted while waiting for workers");
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (nodeCounters.getDeleted() > 0) {
+      SizeResultCache.invalidate(container);
+    }
+    long executionTime = Math.max(1, System.currentTimeMillis() - startTime);
+    LOG.info("User folder purge deletion metrics :\n" + cleaner.getMetrics().toTable());
+    String result = (progress.isCancelled() ? "Cancelled. " : "") + purged.get() + " of " + plan.size()
+        + " user folders purged (" + nodeCounters.getDeleted() + " nodes), " + nodeCounters.getFailed() + " node failures, "
+        + kept.get() + " kept as they have moved or their user has been active since the scan or could not be looked up, "
+        + ComputeTrashSizeService.humanReadableByteCountBin(nodeCounters.getDeletedBytes()) + " freed, "
+        + String.format("%.1f", purged.get() * 1000d / executionTime) + " folders/s, execution time " + executionTime
+        + " ms.";
+    LOG.info(result);
+    return result;
+  }
+
+  /**
+   * Takes the folders of the plan one by one until none is left, and queues their
+   * nodes in the batch deleter of the worker.
+   */
+  private void purgeFolders(ExoContainer container,
+                            TrashNodeCleaner cleaner,
+                            TrashBatchDeleter batchDeleter,
+                            String workspace,
+                            AdaptiveThrottle throttle,
+                            UserFolderPlan plan,
+                            long limitDate,
+                            AtomicInteger nextFolder,
+                            AtomicLong purged,
+                            AtomicLong kept,
+                            JobProgress progress) {
+    ExoContainerContext.setCurrentContainer(container);
+    List<String> queued = new ArrayList<>();
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, cleaner.getRepositoryService().getCurrentRepository());
+      int index;
+      while (!progress.isCancelled() && (index = nextFolder.getAndIncrement()) < plan.size()) {
+        try {
+          Node folder = ((SessionImpl) session).getNodeByIdentifier(plan.getIdentifier(index));
+          if (!folder.getPath().equals(plan.getPath(index))) {
+            LOG.info("User folder {} has moved to {} since the scan, it is kept", plan.getPath(index), folder.getPath());
+            kept.incrementAndGet();
+          } else if (!isStillToPurge(plan, index, limitDate)) {
+            kept.incrementAndGet();
+          } else {
+            LOG.debug("Purge user folder {}", plan.getPath(index));
+            if (throttle != null) {
+              throttle.acquire();
+            }
+            queueFolder(session, batchDeleter, folder, plan.getSize(index), progress);
+            queued.add(plan.getIdentifier(index));
+          }
+        } catch (ItemNotFoundException e) {
+          LOG.debug("User folder {} no longer exists", plan.getPath(index));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          progress.cancel();
+        } catch (RepositoryException e) {
+          LOG.error("Unable to purge user folder {}", plan.getPath(index), e);
+        }
+        progress.addItems(1);
+      }
+      batchDeleter.flush();
+      session.refresh(false);
+      for (String identifier : queued) {
+        try {
+          ((SessionImpl) session).getNodeByIdentifier(identifier);
+        } catch (ItemNotFoundException e) {
+          purged.incrementAndGet();
+        }
+      }
+    } catch (RepositoryException e) {
+      LOG.error("User folder purge worker failed", e);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Looks the user of a folder up again right before the folder is deleted.
+   *
+   * @return true if the user is still inactive since the limit date, or still
+   *         does not exist, false if it has been active since or the lookup failed
+   */
+  private boolean isStillToPurge(UserFolderPlan plan, int index, long limitDate) {
+    String username = plan.getUsername(index);
+    try {
+      if (computeUserFolderSizeService.isInactiveSince(username, limitDate)) {
+        return true;
+      }
+      LOG.info("User {} has been active since the scan, folder {} is kept", username, plan.getPath(index));
+    } catch (Exception e) {
+      LOG.warn("Unable to look up user {}, folder {} is kept", username, plan.getPath(index), e);
+    }
+    return false;
+  }
+
+  /**
+   * Queues the nodes of a user folder for deletion, children before their parent,
+   * so no save removes more than the batch size of nodes, whatever the size of the
+   * folder. Files are removed with their content. The folder is walked in post
+   * order with a deque of paths, its size is counted with its own node.
+   */
+  private void queueFolder(Session session,
+                           TrashBatchDeleter batchDeleter,
+                           Node folder,
+                           long folderSize,
+                           JobProgress progress) throws RepositoryException {
+    String folderIdentifier = ((NodeImpl) folder).getIdentifier();
+    Deque<String> paths = new ArrayDeque<>();
+    Deque<Boolean> expanded = new ArrayDeque<>();
+    paths.push(folder.getPath());
+    expanded.push(false);
+    long visited = 0;
+    while (!paths.isEmpty() && !progress.isCancelled()) {
+      String path = paths.pop();
+      boolean childrenQueued = expanded.pop();
+      Node node;
+      try {
+        node = (Node) session.getItem(path);
+      } catch (PathNotFoundException e) {
+        continue;
+      }
+      if (!childrenQueued && !node.isNodeType("nt:file") && node.hasNodes()) {
+        paths.push(path);
+        expanded.push(true);
+        NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+          paths.push(children.nextNode().getPath());
+          expanded.push(false);
+        }
+      } else {
+        String identifier = ((NodeImpl) node).getIdentifier();
+        batchDeleter.add(identifier, identifier.equals(folderIdentifier) ? folderSize : 0);
+      }
+      if (++visited % REFRESH_INTERVAL == 0) {
+        session.refresh(false);
+      }
+    }
+  }
+}
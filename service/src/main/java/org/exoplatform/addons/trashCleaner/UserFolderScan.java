@@ -0,0 +1,152 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.services.jcr.core.ManageableRepository;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * State of one user folders size computation, shared by the traversal workers.
+ * Each worker thread gets its own system session.
+ */
+public class UserFolderScan {
+
+  private static final Log                    LOG              = ExoLogger.getLogger(UserFolderScan.class);
+
+  private final long                          limitDate;
+
+  private final UserActivityIndex             userActivityIndex;
+
+  private final SizeProbeStatistics           probeStatistics;
+
+  private final JobProgress                   progress;
+
+  private final ManageableRepository          repository;
+
+  private final String                        workspace;
+
+  private final LongAdder                     totalSize        = new LongAdder();
+
+  private final AtomicLong                    usersCount       = new AtomicLong();
+
+  private final AtomicLong                    lookupFailures   = new AtomicLong();
+
+  private final Map<Thread, SessionProvider> sessionProviders = new ConcurrentHashMap<>();
+
+  private final ScanReport                    report;
+
+  private final UserFolderPlan                plan;
+
+  private final StorageAnalytics              analytics;
+
+  public UserFolderScan(long limitDate,
+                        UserActivityIndex userActivityIndex,
+                        SizeProbeStatistics probeStatistics,
+                        JobProgress progress,
+                        ManageableRepository repository,
+                        String workspace,
+                        ScanReport report,
+                        UserFolderPlan plan,
+                        StorageAnalytics analytics) {
+    this.limitDate = limitDate;
+    this.userActivityIndex = userActivityIndex;
+    this.probeStatistics = probeStatistics;
+    this.progress = progress;
+    this.repository = repository;
+    this.workspace = workspace;
+    this.report = report;
+    this.plan = plan;
+    this.analytics = analytics;
+  }
+
+  /**
+   * @return the session of the current worker thread
+   */
+  public Session getSession() throws RepositoryException {
+    return sessionProviders.computeIfAbsent(Thread.currentThread(), thread -> SessionProvider.createSystemProvider())
+                           .getSession(workspace, repository);
+  }
+
+  /**
+   * @param lastActivity the last login time of the user, or its creation time if
+   *          the user never logged in, null if the user does not exist
+   */
+  public void addUserFolder(Node userFolder, String username, Instant lastActivity, long size) throws RepositoryException {
+    String path = userFolder.getPath();
+    if (plan != null) {
+      plan.add(((NodeImpl) userFolder).getIdentifier(), path, lastActivity == null ? -1 : lastActivity.toEpochMilli(), size);
+    }
+    if (report != null) {
+      report.record(username, path, lastActivity == null ? null : lastActivity.toString(), size);
+    }
+    totalSize.add(size);
+    progress.addBytes(size);
+    long count = usersCount.incrementAndGet();
+    if (count % 100 == 0) {
+      LOG.info("Progression : {} users folder computed", count);
+    }
+  }
+
+  public long getLimitDate() {
+    return limitDate;
+  }
+
+  public UserActivityIndex getUserActivityIndex() {
+    return userActivityIndex;
+  }
+
+  public SizeProbeStatistics getProbeStatistics() {
+    return probeStatistics;
+  }
+
+  /**
+   * @return the histograms filled with the files of the user folders, or null
+   */
+  public StorageAnalytics getAnalytics() {
+    return analytics;
+  }
+
+  public JobProgress getProgress() {
+    return progress;
+  }
+
+  public long getTotalSize() {
+    return totalSize.sum();
+  }
+
+  public long getUsersCount() {
+    return usersCount.get();
+  }
+
+  /**
+   * Counts a user folder skipped because its user could not be looked up.
+   */
+  public void addLookupFailure() {
+    lookupFailures.incrementAndGet();
+  }
+
+  public long getLookupFailures() {
+    return lookupFailures.get();
+  }
+
+  /**
+   * Closes the sessions of all the workers.
+   */
+  public void close() {
+    for (SessionProvider sessionProvider : sessionProviders.values()) {
+      sessionProvider.close();
+    }
+    sessionProviders.clear();
+  }
+}
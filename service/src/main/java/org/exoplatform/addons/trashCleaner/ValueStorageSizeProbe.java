@@ -0,0 +1,37 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.File;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.exoplatform.services.jcr.datamodel.ValueData;
+import org.exoplatform.services.jcr.impl.core.value.BaseValue;
+import org.exoplatform.services.jcr.impl.dataflow.persistent.FilePersistedValueData;
+
+/**
+ * Reads the binary length from the file backing the value in the value storage.
+ */
+public class ValueStorageSizeProbe implements SizeProbe {
+
+  @Override
+  public String getName() {
+    return "value-storage";
+  }
+
+  @Override
+  public long probe(Property data) throws RepositoryException {
+    Value value = data.getValue();
+    if (value instanceof BaseValue) {
+      ValueData valueData = ((BaseValue) value).getInternalData();
+      if (valueData instanceof FilePersistedValueData) {
+        File file = ((FilePersistedValueData) valueData).getFile();
+        if (file != null && file.isFile()) {
+          return file.length();
+        }
+      }
+    }
+    return -1;
+  }
+}
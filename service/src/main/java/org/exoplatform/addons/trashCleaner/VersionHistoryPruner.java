@@ -0,0 +1,225 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.NodeImpl;
+import org.exoplatform.services.jcr.impl.core.SessionImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Bounds the number of versions removed with a versionable trash node. The
+ * version history of a node is removed in the same save as the node, so a node
+ * with thousands of versions makes one huge transaction. When
+ * <code>trashcleaner.versions.prune.enabled</code> is set, before such a node is
+ * removed, its oldest versions are removed until only the chunk size of versions
+ * is left, which are then removed with the node. Nodes whose history is within
+ * the bound are not pruned at all. The trimVersions job uses the same chunk size,
+ * whether the pruning before deletion is enabled or not.
+ * <p>
+ * The JCR persists each version removal on its own, outside of the node removal
+ * transaction, so the pruning only runs once the subtree is cleaned and the node
+ * about to be removed, and the most recent versions are kept : a trash item
+ * whose removal still fails keeps its last versions. The session is refreshed
+ * after each chunk, so the memory used does not depend on the number of
+ * versions. The root version and the base version can not be removed, they are
+ * removed with the node.
+ */
+public class VersionHistoryPruner {
+
+  private static final Log        LOG                 = ExoLogger.getLogger(VersionHistoryPruner.class);
+
+  public static final String      ENABLED_PROPERTY    = "trashcleaner.versions.prune.enabled";
+
+  public static final String      CHUNK_SIZE_PROPERTY = "trashcleaner.versions.chunk.size";
+
+  public static final int         DEFAULT_CHUNK_SIZE  = 100;
+
+  private final RepositoryService repositoryService;
+
+  private final DeletionMetrics   metrics;
+
+  private final int               chunkSize;
+
+  private final TreeWalker        treeWalker          = TreeWalker.fromSystemProperties();
+
+  /**
+   * @param chunkSize the maximum number of versions removed with a node, also the
+   *          number of versions removed between two session refreshes
+   * @throws IllegalArgumentException if the chunk size is not positive
+   */
+  public VersionHistoryPruner(RepositoryService repositoryService, DeletionMetrics metrics, int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("The versions chunk size must be positive : " + chunkSize);
+    }
+    this.repositoryService = repositoryService;
+    this.metrics = metrics;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * @return a pruner with the chunk size of the system properties, null if the
+   *         pruning before deletion is disabled, which is the default
+   */
+  public static VersionHistoryPruner fromSystemProperties(RepositoryService repositoryService, DeletionMetrics metrics) {
+    if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "false"))) {
+      return null;
+    }
+    return new VersionHistoryPruner(repositoryService, metrics, getChunkSize());
+  }
+
+  /**
+   * @return the chunk size of the system properties, 100 by default
+   */
+  public static int getChunkSize() {
+    return Integer.parseInt(System.getProperty(CHUNK_SIZE_PROPERTY, String.valueOf(DEFAULT_CHUNK_SIZE)));
+  }
+
+  /**
+   * Removes the oldest versions of the given versionable nodes which have more
+   * than the chunk size of versions, so only the chunk size of versions is left
+   * to remove with each node. Uses a session of its own.
+   *
+   * @return the number of versions removed
+   */
+  public long prune(String workspace, List<String> identifiers) throws RepositoryException {
+    long removed = 0;
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      for (String identifier : identifiers) {
+        try {
+          removed += trim(((SessionImpl) session).getNodeByIdentifier(identifier), chunkSize);
+        } catch (ItemNotFoundException e) {
+          LOG.debug("Versionable node {} no longer exists", identifier);
+        }
+      }
+    } finally {
+      sessionProvider.close();
+    }
+    return removed;
+  }
+
+  /**
+   * Trims the versionable nodes of each trash item to their last versions, the
+   * items themselves are kept.
+   *
+   * @param keep the number of most recent versions kept
+   * @return the result message
+   */
+  public String trimTrash(Node trashNode, int keep, JobProgress progress) throws RepositoryException {
+    long startTime = System.currentTimeMillis();
+    String workspace = trashNode.getSession().getWorkspace().getName();
+    long items = 0;
+    long removed = 0;
+    long failures = 0;
+    LOG.info("Trim the trash items to their last {} versions", keep);
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      NodeIterator trashItems = ((Node) session.getItem(trashNode.getPath())).getNodes();
+      List<String> itemIdentifiers = new ArrayList<>();
+      while (trashItems.hasNext()) {
+        itemIdentifiers.add(((NodeImpl) trashItems.nextNode()).getIdentifier());
+      }
+      progress.setTotalItems(itemIdentifiers.size());
+      for (String itemIdentifier : itemIdentifiers) {
+        if (progress.isCancelled()) {
+          break;
+        }
+        try {
+          Node item = ((SessionImpl) session).getNodeByIdentifier(itemIdentifier);
+          List<String> versionables = new ArrayList<>();
+          treeWalker.walk(item, (node, depth) -> {
+            if (node.isNodeType("mix:versionable")) {
+              versionables.add(((NodeImpl) node).getIdentifier());
+            }
+            return true;
+          }, progress);
+          for (String identifier : versionables) {
+            removed += trim(((SessionImpl) session).getNodeByIdentifier(identifier), keep);
+          }
+          items++;
+        } catch (ItemNotFoundException e) {
+          LOG.debug("Trash item {} no longer exists", itemIdentifier);
+        } catch (RepositoryException e) {
+          failures++;
+          LOG.error("Unable to trim the versions of trash item {}", itemIdentifier, e);
+        }
+        progress.addItems(1);
+        session.refresh(false);
+      }
+    } finally {
+      sessionProvider.close();
+    }
+    String result = (progress.isCancelled() ? "Cancelled. " : "") + removed + " versions removed from " + items
+        + " trash items, " + failures + " failures, execution time " + (System.currentTimeMillis() - startTime) + " ms";
+    LOG.info(result);
+    return result;
+  }
+
+  /**
+   * @param keep the number of most recent versions kept, the base version is
+   *          always kept
+   * @return the number of versions removed
+   */
+  private long trim(Node node, int keep) throws RepositoryException {
+    VersionHistory history = node.getVersionHistory();
+    String rootVersion = history.getRootVersion().getName();
+    String baseVersion = node.getBaseVersion().getName();
+    List<Map.Entry<String, Long>> versions = new ArrayList<>();
+    VersionIterator iterator = history.getAllVersions();
+    while (iterator.hasNext()) {
+      Version version = iterator.nextVersion();
+      if (!version.getName().equals(rootVersion)) {
+        versions.add(new AbstractMap.SimpleEntry<>(version.getName(), version.getCreated().getTimeInMillis()));
+      }
+    }
+    versions.sort(Map.Entry.comparingByValue());
+    List<String> removable = new ArrayList<>();
+    for (Map.Entry<String, Long> version : versions.subList(0, Math.max(0, versions.size() - keep))) {
+      if (!version.getKey().equals(baseVersion)) {
+        removable.add(version.getKey());
+      }
+    }
+
+    Session session = node.getSession();
+    String path = node.getPath();
+    long removed = 0;
+    for (int from = 0; from < removable.size(); from += chunkSize) {
+      List<String> chunk = removable.subList(from, Math.min(from + chunkSize, removable.size()));
+      VersionHistory chunkHistory = ((Node) session.getItem(path)).getVersionHistory();
+      try {
+        metrics.time(DeletionPhase.VERSIONS, () -> {
+          for (String versionName : chunk) {
+            chunkHistory.removeVersion(versionName);
+          }
+        });
+      } catch (RepositoryException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RepositoryException("Unable to remove versions of " + path, e);
+      }
+      removed += chunk.size();
+      session.refresh(false);
+    }
+    if (removed > 0) {
+      LOG.debug("{} versions of {} removed", removed, path);
+    }
+    return removed;
+  }
+}
@@ -0,0 +1,45 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BinaryDeduplicatorTest {
+
+  @Test
+  public void filesSeenAreRemembered() {
+    BinaryDeduplicator deduplicator = new BinaryDeduplicator(2);
+
+    assertFalse(deduplicator.isDuplicateIdentity("/storage/a"));
+    assertTrue(deduplicator.isDuplicateIdentity("/storage/a"));
+    assertFalse(deduplicator.isDuplicateIdentity("/storage/b"));
+  }
+
+  @Test
+  public void leastRecentlySeenFileIsForgotten() {
+    BinaryDeduplicator deduplicator = new BinaryDeduplicator(2);
+    deduplicator.isDuplicateIdentity("/storage/a");
+    deduplicator.isDuplicateIdentity("/storage/b");
+    // seen again, b is now the least recently seen one
+    assertTrue(deduplicator.isDuplicateIdentity("/storage/a"));
+    deduplicator.isDuplicateIdentity("/storage/c");
+
+    assertTrue(deduplicator.isDuplicateIdentity("/storage/a"));
+    assertFalse(deduplicator.isDuplicateIdentity("/storage/b"));
+  }
+
+  @Test
+  public void binariesWithoutFileAreComparedWithinAHistory() throws Exception {
+    BinaryDeduplicator deduplicator = new BinaryDeduplicator(2);
+    byte[] content = "content".getBytes();
+    byte[] other = "CONTENT".getBytes();
+
+    assertFalse(deduplicator.isDuplicate(JcrStubs.data(content.length, JcrStubs.binary(content)), content.length));
+    assertTrue(deduplicator.isDuplicate(JcrStubs.data(content.length, JcrStubs.binary(content)), content.length));
+    assertFalse(deduplicator.isDuplicate(JcrStubs.data(other.length, JcrStubs.binary(other)), other.length));
+
+    deduplicator.startHistory();
+    assertFalse(deduplicator.isDuplicate(JcrStubs.data(content.length, JcrStubs.binary(content)), content.length));
+  }
+}
@@ -0,0 +1,127 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+import org.junit.Test;
+
+import org.exoplatform.container.xml.InitParams;
+
+public class ContentSizeResolverTest {
+
+  private static final Property DATA = JcrStubs.data(-1, JcrStubs.binary(new byte[100]));
+
+  @Test
+  public void firstProbeResolvingTheSizeWins() throws Exception {
+    ContentSizeResolver resolver = new ContentSizeResolver(Arrays.asList(new FixedProbe("none", -1),
+                                                                         new FixedProbe("first", 42),
+                                                                         new FixedProbe("second", 7)));
+    SizeProbeStatistics statistics = resolver.newStatistics();
+
+    assertEquals(42, resolver.getContentSize(JcrStubs.content(DATA), statistics));
+    assertEquals(0, statistics.getResolved("none"));
+    assertEquals(1, statistics.getResolved("first"));
+    assertEquals(0, statistics.getResolved("second"));
+    assertEquals(0, statistics.getUnresolved());
+  }
+
+  @Test
+  public void zeroSizeIsResolved() throws Exception {
+    ContentSizeResolver resolver = new ContentSizeResolver(Arrays.asList(new FixedProbe("empty", 0), new FixedProbe("other", 42)));
+    SizeProbeStatistics statistics = resolver.newStatistics();
+
+    assertEquals(0, resolver.getContentSize(JcrStubs.content(DATA), statistics));
+    assertEquals(1, statistics.getResolved("empty"));
+    assertEquals(0, statistics.getUnresolved());
+  }
+
+  @Test
+  public void failingProbeFallsBackToTheNextOne() throws Exception {
+    ContentSizeResolver resolver = new ContentSizeResolver(Arrays.asList(new FixedProbe("failing", -2), new FixedProbe("next", 42)));
+    SizeProbeStatistics statistics = resolver.newStatistics();
+
+    assertEquals(42, resolver.getContentSize(JcrStubs.content(DATA), statistics));
+    assertEquals(0, statistics.getResolved("failing"));
+    assertEquals(1, statistics.getResolved("next"));
+  }
+
+  @Test
+  public void unresolvedSizeIsZero() throws Exception {
+    ContentSizeResolver resolver = new ContentSizeResolver(Arrays.asList(new FixedProbe("none", -1), new FixedProbe("failing", -2)));
+    SizeProbeStatistics statistics = resolver.newStatistics();
+
+    assertEquals(0, resolver.getContentSize(JcrStubs.content(DATA), statistics));
+    assertEquals(1, statistics.getUnresolved());
+  }
+
+  @Test
+  public void missingDataIsUnresolved() throws Exception {
+    ContentSizeResolver resolver = new ContentSizeResolver(Arrays.asList(new FixedProbe("first", 42)));
+    SizeProbeStatistics statistics = resolver.newStatistics();
+
+    assertEquals(0, resolver.getContentSize(JcrStubs.content(null), statistics));
+    assertEquals(0, statistics.getResolved("first"));
+    assertEquals(1, statistics.getUnresolved());
+  }
+
+  @Test
+  public void defaultChainReadsThePropertyLengthFirst() throws Exception {
+    ContentSizeResolver resolver = new ContentSizeResolver((InitParams) null);
+    SizeProbeStatistics statistics = resolver.newStatistics();
+
+    assertEquals(1234, resolver.getContentSize(JcrStubs.content(JcrStubs.data(1234, JcrStubs.binary(new byte[100]))), statistics));
+    assertEquals(1, statistics.getResolved("length"));
+    assertEquals(0, statistics.getResolved("value-storage"));
+    assertEquals(0, statistics.getResolved("stream"));
+  }
+
+  @Test
+  public void defaultChainStreamsValuesWithoutLengthNorFile() throws Exception {
+    ContentSizeResolver resolver = new ContentSizeResolver((InitParams) null);
+    SizeProbeStatistics statistics = resolver.newStatistics();
+
+    assertEquals(100, resolver.getContentSize(JcrStubs.content(DATA), statistics));
+    assertEquals(0, statistics.getResolved("length"));
+    assertEquals(0, statistics.getResolved("value-storage"));
+    assertEquals(1, statistics.getResolved("stream"));
+  }
+
+  @Test
+  public void probesReadTheLengthOrTheValueStorageFile() throws Exception {
+    assertEquals(1234, new PropertyLengthSizeProbe().probe(JcrStubs.data(1234, null)));
+    assertEquals(-1, new PropertyLengthSizeProbe().probe(JcrStubs.data(-1, null)));
+    // a value which is not stored in a value storage file
+    assertEquals(-1, new ValueStorageSizeProbe().probe(DATA));
+  }
+
+  /**
+   * Returns a fixed size, or fails when the size is -2.
+   */
+  private static class FixedProbe implements SizeProbe {
+    private final String name;
+
+    private final long   size;
+
+    private FixedProbe(String name, long size) {
+      this.name = name;
+      this.size = size;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public long probe(Property data) throws RepositoryException {
+      if (size == -2) {
+        throw new RepositoryException("Probe " + name + " failed");
+      }
+      return size;
+    }
+  }
+}
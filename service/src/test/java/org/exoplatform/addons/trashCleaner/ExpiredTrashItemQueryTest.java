@@ -0,0 +1,26 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ExpiredTrashItemQueryTest {
+
+  @Test
+  public void usualPathIsQuotedWithoutEscapeClause() {
+    assertEquals("'/Trash{0}'", ExpiredTrashItemQuery.likePattern("/Trash"));
+  }
+
+  @Test
+  public void quotesAreDoubled() {
+    assertEquals("'/Trash of O''Brien{0}'", ExpiredTrashItemQuery.likePattern("/Trash of O'Brien"));
+  }
+
+  @Test
+  public void wildcardsAndEscapeCharactersAreEscaped() {
+    assertEquals("'/my\\_trash{0}' ESCAPE '\\'", ExpiredTrashItemQuery.likePattern("/my_trash"));
+    assertEquals("'/100\\%{0}' ESCAPE '\\'", ExpiredTrashItemQuery.likePattern("/100%"));
+    assertEquals("'/a\\\\b{0}' ESCAPE '\\'", ExpiredTrashItemQuery.likePattern("/a\\b"));
+    assertEquals("'/it''s\\_a\\\\\\%{0}' ESCAPE '\\'", ExpiredTrashItemQuery.likePattern("/it's_a\\%"));
+  }
+}
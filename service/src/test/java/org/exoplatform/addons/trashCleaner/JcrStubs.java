@@ -0,0 +1,85 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.Value;
+
+/**
+ * Minimal JCR objects for the tests which need no repository : only the methods
+ * given an answer are implemented, the others throw
+ * {@link UnsupportedOperationException}.
+ */
+public class JcrStubs {
+
+  private JcrStubs() {
+  }
+
+  /**
+   * @return a binary value whose stream reads the given bytes
+   */
+  public static Value binary(byte[] bytes) {
+    Map<String, Object> answers = new HashMap<>();
+    answers.put("getStream", (Answer) () -> new ByteArrayInputStream(bytes));
+    return stub(Value.class, answers);
+  }
+
+  /**
+   * @param length the length returned by the property, -1 if unknown
+   */
+  public static Property data(long length, Value value) {
+    Map<String, Object> answers = new HashMap<>();
+    answers.put("getLength", length);
+    answers.put("getValue", value);
+    answers.put("getPath", "/test/jcr:content/jcr:data");
+    return stub(Property.class, answers);
+  }
+
+  /**
+   * @param data the <code>jcr:data</code> property, null if it is missing
+   */
+  public static Node content(Property data) {
+    Map<String, Object> answers = new HashMap<>();
+    answers.put("getProperty", (Answer) () -> {
+      if (data == null) {
+        throw new PathNotFoundException("jcr:data");
+      }
+      return data;
+    });
+    answers.put("getPath", "/test/jcr:content");
+    return stub(Node.class, answers);
+  }
+
+  /**
+   * An answer computed on each call, possibly throwing.
+   */
+  public interface Answer {
+    Object get() throws Exception;
+  }
+
+  private static <T> T stub(Class<T> type, Map<String, Object> answers) {
+    Object stub = Proxy.newProxyInstance(JcrStubs.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+      String name = method.getName();
+      if (name.equals("toString")) {
+        return type.getSimpleName() + " stub";
+      }
+      if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      }
+      if (name.equals("equals")) {
+        return proxy == args[0];
+      }
+      if (!answers.containsKey(name)) {
+        throw new UnsupportedOperationException(type.getSimpleName() + "." + name);
+      }
+      Object answer = answers.get(name);
+      return answer instanceof Answer ? ((Answer) answer).get() : answer;
+    });
+    return type.cast(stub);
+  }
+}
@@ -0,0 +1,56 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketsAreExactBelow16() {
+    for (int value = 0; value < 16; value++) {
+      assertEquals(value, LatencyHistogram.bucketFor(value));
+      assertEquals(value, LatencyHistogram.upperBound(value));
+    }
+  }
+
+  @Test
+  public void valueIsWithinItsBucketBounds() {
+    for (long value = 16; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 / 2 + 1) {
+      int bucket = LatencyHistogram.bucketFor(value);
+      long upperBound = LatencyHistogram.upperBound(bucket);
+      assertTrue(value + " above its bucket " + bucket, value <= upperBound);
+      assertTrue(value + " below its bucket " + bucket, value > LatencyHistogram.upperBound(bucket - 1));
+      // 8 sub buckets per power of two
+      assertTrue(value + " in a bucket too wide", upperBound - value < value / 8 + 1);
+    }
+  }
+
+  @Test
+  public void bucketsFollowEachOther() {
+    for (int bucket = 16; bucket < 487; bucket++) {
+      assertEquals(bucket + 1, LatencyHistogram.bucketFor(LatencyHistogram.upperBound(bucket) + 1));
+    }
+    assertEquals(487, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(487));
+  }
+
+  @Test
+  public void percentileIsTheUpperBoundOfItsBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 10);
+    }
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    long median = histogram.getPercentile(50);
+    assertTrue(median >= 500 && median < 500 + 500 / 8 + 1);
+    assertEquals(1000, histogram.getPercentile(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50));
+  }
+}
@@ -0,0 +1,105 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScanSnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void entriesAreReadAsWritten() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("trash.snapshot");
+    ScanSnapshot.Writer writer = ScanSnapshot.create(file, ScanSnapshot.Kind.TRASH, 1000);
+    assertTrue(writer.add("id1", "/Trash/\u00e9t\u00e9", 10, 20, 500, ScanSnapshot.FLAG_RESTORABLE));
+    char[] longName = new char[70000];
+    Arrays.fill(longName, 'a');
+    assertFalse(writer.add("id2", "/Trash/" + new String(longName), 1, 1, 1, (byte) 0));
+    assertTrue(writer.add("id3", "/Trash/file", 0, 0, -1, (byte) 0));
+    assertFalse(Files.exists(file));
+    writer.close();
+
+    assertEquals(2, writer.getCount());
+    assertEquals(1, writer.getSkipped());
+    ScanSnapshot snapshot = ScanSnapshot.open(file);
+    assertEquals(ScanSnapshot.Kind.TRASH, snapshot.getKind());
+    assertEquals(1000, snapshot.getLimitDate());
+    assertEquals(2, snapshot.getCount());
+    ScanSnapshot.Cursor cursor = snapshot.cursor();
+    assertTrue(cursor.next());
+    assertEquals("id1", cursor.getIdentifier());
+    assertEquals("/Trash/\u00e9t\u00e9", cursor.getPath());
+    assertEquals(10, cursor.getSize());
+    assertEquals(20, cursor.getVersionsSize());
+    assertEquals(500, cursor.getDate());
+    assertTrue(cursor.hasFlag(ScanSnapshot.FLAG_RESTORABLE));
+    assertFalse(cursor.hasFlag(ScanSnapshot.FLAG_USER_NOT_FOUND));
+    assertTrue(cursor.next());
+    assertEquals("id3", cursor.getIdentifier());
+    assertEquals(-1, cursor.getDate());
+    assertFalse(cursor.next());
+  }
+
+  @Test
+  public void abortedSnapshotLeavesNoFile() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("aborted.snapshot");
+    ScanSnapshot.Writer writer = ScanSnapshot.create(file, ScanSnapshot.Kind.USER_FOLDERS, 0);
+    writer.add("id1", "/Users/john", 10, 0, 500, ScanSnapshot.FLAG_USER_NOT_FOUND);
+    writer.abort();
+
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test(expected = FileAlreadyExistsException.class)
+  public void snapshotBeingWrittenIsNotWrittenTwice() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("twice.snapshot");
+    ScanSnapshot.create(file, ScanSnapshot.Kind.TRASH, 0);
+    ScanSnapshot.create(file, ScanSnapshot.Kind.TRASH, 0);
+  }
+
+  @Test
+  public void corruptSnapshotIsRejected() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("complete.snapshot");
+    ScanSnapshot.Writer writer = ScanSnapshot.create(file, ScanSnapshot.Kind.TRASH, 1000);
+    writer.add("id1", "/Trash/file", 10, 20, 500, ScanSnapshot.FLAG_RESTORABLE);
+    writer.close();
+    byte[] bytes = Files.readAllBytes(file);
+
+    assertRejected(Arrays.copyOf(bytes, bytes.length - 1), "truncated");
+    assertRejected(Arrays.copyOf(bytes, bytes.length + 1), "trailing byte");
+    byte[] badMagic = bytes.clone();
+    badMagic[0]++;
+    assertRejected(badMagic, "bad magic");
+    byte[] badVersion = bytes.clone();
+    badVersion[7]++;
+    assertRejected(badVersion, "bad version");
+    assertRejected(new byte[0], "empty");
+  }
+
+  private void assertRejected(byte[] bytes, String corruption) throws IOException {
+    Path file = folder.newFile().toPath();
+    Files.write(file, bytes);
+    try {
+      ScanSnapshot.open(file);
+      fail("Snapshot with a " + corruption + " accepted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+
+/**
+ * Two lease clients of the same JVM, each with its own owner name, compete for
+ * the shards of a cleaning run like two cluster nodes. The run has two shards :
+ * nodeA claims one, nodeB claims and completes the other, so the only shard left
+ * is the one leased to nodeA. Both clients read a fake clock, so the leases
+ * expire when the test moves it forward.
+ */
+public class ShardLeaseManagerTest {
+
+  private static final String TRASH_NODE     = "leaseTestTrash";
+
+  private static final long   LEASE_DURATION = 300;
+
+  private static final long   TIMEOUT        = 5000;
+
+  private final AtomicLong    now            = new AtomicLong(System.currentTimeMillis());
+
+  private ShardLeaseManager   nodeA;
+
+  private ShardLeaseManager   nodeB;
+
+  private TrashShard          shardA;
+
+  @Before
+  public void setUp() throws Exception {
+    TestRepository repository = TestRepository.getInstance();
+    repository.clear("exo:applications");
+    String trashPath = createTrash(repository);
+    nodeA = new ShardLeaseManager(repository.getRepositoryService(), TestRepository.WORKSPACE, "nodeA", LEASE_DURATION, now::get);
+    nodeB = new ShardLeaseManager(repository.getRepositoryService(), TestRepository.WORKSPACE, "nodeB", LEASE_DURATION, now::get);
+    long expirationTime = now.get() - 30L * 24 * 3600 * 1000;
+    // a single dated shard and the undated one
+    assertTrue(nodeA.preparePlan(trashPath, expirationTime, 1));
+    assertTrue(nodeB.preparePlan(trashPath, expirationTime, 1));
+
+    shardA = nodeA.claim();
+    TrashShard shardB = nodeB.claim();
+    assertNotNull(shardA);
+    assertNotNull(shardB);
+    assertNotEquals(shardA.getName(), shardB.getName());
+    nodeB.complete(shardB, 0);
+  }
+
+  @Test
+  public void leasedShardIsNotClaimedByAnotherOwner() throws Exception {
+    assertNull(nodeB.claim());
+    TrashShard claimedAgain = nodeA.claim();
+    assertNotNull(claimedAgain);
+    assertEquals(shardA.getName(), claimedAgain.getName());
+  }
+
+  @Test
+  public void expiredLeaseIsTakenOverFromItsOffset() throws Exception {
+    assertTrue(nodeA.renew(shardA, 42));
+    now.addAndGet(LEASE_DURATION - 1);
+    assertNull(nodeB.claim());
+
+    now.addAndGet(2);
+
+    TrashShard takenOver = nodeB.claim();
+    assertNotNull(takenOver);
+    assertEquals(shardA.getName(), takenOver.getName());
+    assertEquals(42, takenOver.getOffset());
+
+    // the previous owner finds out it lost the lease, and can no longer update the shard
+    assertFalse(nodeA.renew(shardA, 100));
+    nodeA.complete(shardA, 100);
+    nodeB.release(takenOver, 7);
+    TrashShard resumed = nodeB.claim();
+    assertNotNull(resumed);
+    assertEquals(shardA.getName(), resumed.getName());
+    assertEquals(7, resumed.getOffset());
+  }
+
+  @Test
+  public void heldLeaseIsRenewedByItsTimer() throws Exception {
+    long start = now.get();
+    try (ShardLeaseManager.Lease lease = nodeA.hold(shardA, 0)) {
+      lease.setOffset(5);
+      now.set(start + LEASE_DURATION - 50);
+      awaitRenewal(lease, now.get());
+
+      // past the expiry of the first renewal, without any explicit renewal
+      now.set(start + LEASE_DURATION + 50);
+      assertTrue(lease.isValid());
+      assertNull(nodeB.claim());
+    }
+
+    now.addAndGet(LEASE_DURATION + 1);
+
+    TrashShard takenOver = nodeB.claim();
+    assertNotNull(takenOver);
+    assertEquals(shardA.getName(), takenOver.getName());
+    assertEquals(5, takenOver.getOffset());
+  }
+
+  @Test
+  public void leaseIsInvalidOnceExpiredOrTakenOver() throws Exception {
+    ShardLeaseManager.Lease lease = nodeA.hold(shardA, 0);
+    lease.close();
+    assertTrue(lease.isValid());
+
+    now.addAndGet(LEASE_DURATION);
+    assertFalse(lease.isValid());
+
+    assertNotNull(nodeB.claim());
+    assertFalse(lease.renew());
+    assertFalse(lease.isValid());
+  }
+
+  /**
+   * Waits for the timer of the lease to renew it at the given time of the fake
+   * clock.
+   */
+  private void awaitRenewal(ShardLeaseManager.Lease lease, long time) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (lease.getRenewedAt() != time) {
+      assertTrue("Lease not renewed by its timer", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * @return the path of a trash holding one expired dated item and one undated
+   *         item
+   */
+  private String createTrash(TestRepository repository) throws Exception {
+    repository.clear(TRASH_NODE);
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = repository.getSession(sessionProvider);
+      Node trash = session.getRootNode().addNode(TRASH_NODE, "nt:folder");
+      Node dated = addItem(trash, "dated");
+      dated.addMixin("exo:modify");
+      Calendar date = Calendar.getInstance();
+      date.setTimeInMillis(now.get() - 60L * 24 * 3600 * 1000);
+      dated.setProperty("exo:lastModifiedDate", date);
+      addItem(trash, "undated");
+      session.save();
+      return trash.getPath();
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private Node addItem(Node trash, String name) throws Exception {
+    Node item = trash.addNode(name, "nt:folder");
+    item.addMixin("exo:restoreLocation");
+    item.setProperty("exo:restorePath", "/Documents/" + name);
+    item.setProperty("exo:restoreWorkspace", TestRepository.WORKSPACE);
+    return item;
+  }
+}
@@ -0,0 +1,37 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SpaceTargetCleanerTest {
+
+  @Test
+  public void sizeIsInBytesWithoutSuffix() {
+    assertEquals(0, SpaceTargetCleaner.parseSize("0"));
+    assertEquals(1500, SpaceTargetCleaner.parseSize(" 1500 "));
+  }
+
+  @Test
+  public void suffixesArePowersOf1024() {
+    assertEquals(10L * 1024, SpaceTargetCleaner.parseSize("10K"));
+    assertEquals(2L * 1024 * 1024, SpaceTargetCleaner.parseSize("2 m"));
+    assertEquals(1L << 30, SpaceTargetCleaner.parseSize("1G"));
+    assertEquals(3L << 40, SpaceTargetCleaner.parseSize("3t"));
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void negativeSizeIsRejected() {
+    SpaceTargetCleaner.parseSize("-1G");
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void unknownSuffixIsRejected() {
+    SpaceTargetCleaner.parseSize("10P");
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void sizeNotFittingInALongIsRejected() {
+    SpaceTargetCleaner.parseSize(Long.MAX_VALUE + "K");
+  }
+}
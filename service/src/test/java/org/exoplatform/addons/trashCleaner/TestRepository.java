@@ -0,0 +1,69 @@
+package org.exoplatform.addons.trashCleaner;
+
+import java.net.URL;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.StandaloneContainer;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+
+/**
+ * Starts a standalone eXo container holding an in-memory JCR repository, with
+ * the <code>collaboration</code> workspace, for the tests which need one.
+ */
+public class TestRepository {
+
+  public static final String    WORKSPACE = "collaboration";
+
+  private static TestRepository instance;
+
+  private final StandaloneContainer container;
+
+  private final RepositoryService   repositoryService;
+
+  private TestRepository() throws Exception {
+    URL configuration = TestRepository.class.getResource("/conf/test/configuration.xml");
+    StandaloneContainer.addConfigurationURL(configuration.toString());
+    container = StandaloneContainer.getInstance();
+    ExoContainerContext.setCurrentContainer(container);
+    repositoryService = container.getComponentInstanceOfType(RepositoryService.class);
+    repositoryService.setCurrentRepositoryName(repositoryService.getDefaultRepository().getConfiguration().getName());
+  }
+
+  public static synchronized TestRepository getInstance() throws Exception {
+    if (instance == null) {
+      instance = new TestRepository();
+    }
+    ExoContainerContext.setCurrentContainer(instance.container);
+    return instance;
+  }
+
+  public RepositoryService getRepositoryService() {
+    return repositoryService;
+  }
+
+  public Session getSession(SessionProvider sessionProvider) throws RepositoryException {
+    return sessionProvider.getSession(WORKSPACE, repositoryService.getDefaultRepository());
+  }
+
+  /**
+   * Removes the given root node and all its content, if it exists.
+   */
+  public void clear(String rootName) throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = getSession(sessionProvider);
+      if (session.getRootNode().hasNode(rootName)) {
+        Node root = session.getRootNode().getNode(rootName);
+        root.remove();
+        session.save();
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package org.exoplatform.addons.trashCleaner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class UserActivityIndexTest {
+
+  @Test
+  public void usersAreFoundAfterTheTableGrew() {
+    UserActivityIndex index = new UserActivityIndex(4);
+    for (int i = 0; i < 1000; i++) {
+      index.put("user" + i, i, i % 3 == 0 ? UserActivityIndex.NEVER : 1000 + i);
+    }
+
+    assertEquals(1000, index.size());
+    for (int i = 0; i < 1000; i++) {
+      int slot = index.indexOf("user" + i);
+      assertNotEquals(-1, slot);
+      assertEquals(i, index.getCreatedDate(slot));
+      assertEquals(i % 3 == 0 ? UserActivityIndex.NEVER : 1000 + i, index.getLastLoginDate(slot));
+    }
+    assertEquals(-1, index.indexOf("user1000"));
+  }
+
+  @Test
+  public void userPutAgainIsUpdated() {
+    UserActivityIndex index = new UserActivityIndex(16);
+    index.put("john", 1, UserActivityIndex.NEVER);
+    index.put("john", 1, 5);
+
+    assertEquals(1, index.size());
+    assertEquals(5, index.getLastLoginDate(index.indexOf("john")));
+  }
+
+  @Test
+  public void collidingUsernamesAreProbed() {
+    // same String hash code
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    UserActivityIndex index = new UserActivityIndex(16);
+    index.put("Aa", 1, 10);
+    index.put("BB", 2, 20);
+
+    assertEquals(2, index.size());
+    assertNotEquals(index.indexOf("Aa"), index.indexOf("BB"));
+    assertEquals(10, index.getLastLoginDate(index.indexOf("Aa")));
+    assertEquals(20, index.getLastLoginDate(index.indexOf("BB")));
+    assertEquals(-1, index.indexOf("C#"));
+  }
+}